@@ -0,0 +1,141 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares IonLadder with the ladder built from lists and sorted, as
+ * TheoreticScan did before, on sequences from peptides to intact
+ * proteins. Every modification covers a few residues and has a mass
+ * written like in the PrSM tables. Run it with "gradle jmh".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IonLadderBenchmark {
+    private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+    private static final String[] SHIFTS = {
+            "15.9949", "42.0106", "79.96633", "-18.0106", "0.984"
+    };
+
+    @Param({"30", "300", "1000"})
+    public int residues;
+
+    @Param({"0", "4"})
+    public int modifications;
+
+    private String sequence;
+    private ResidueMassTable residueTable;
+
+    @Setup
+    public void setUp() {
+        residueTable = ResidueMassTable.getDefault();
+        Random random = new Random(residues * 31 + modifications);
+        StringBuilder builder = new StringBuilder();
+        int step = residues / (modifications + 1);
+        for (int i = 0; i < residues; i++) {
+            if (i > 0 && i % step == 0 && i / step <= modifications &&
+                    i + 1 < residues) {
+                builder.append('(').append(randomResidue(random))
+                        .append(randomResidue(random)).append(")[")
+                        .append(SHIFTS[random.nextInt(SHIFTS.length)])
+                        .append(']');
+                i++;
+            } else {
+                builder.append(randomResidue(random));
+            }
+        }
+        sequence = builder.toString();
+    }
+
+    private static char randomResidue(Random random) {
+        return RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+    }
+
+    @Benchmark
+    public TheoreticScan.Ion[] ladder() {
+        return IonLadder.build(sequence, residueTable).getIons();
+    }
+
+    @Benchmark
+    public TheoreticScan.Ion[] sortedLists() {
+        return buildSorted(sequence, residueTable);
+    }
+
+    /**
+     * The ladder as TheoreticScan.makeIons() built it before IonLadder.
+     */
+    private static TheoreticScan.Ion[] buildSorted(
+            String stringSequence, ResidueMassTable residueTable) {
+        double prefMass = 0.0;
+        boolean modified = false;
+        List<TheoreticScan.Ion> ionsBList = new ArrayList<>();
+        List<TheoreticScan.Ion> ionsYList = new ArrayList<>();
+        int acidsNumber = 0;
+
+        for (int pos = 0; pos < stringSequence.length() - 1; pos++) {
+            if (Character.isLetter(stringSequence.charAt(pos))) {
+                acidsNumber++;
+                prefMass += residueTable.getMass(stringSequence.charAt(pos));
+                if (!modified) {
+                    ionsBList.add(new TheoreticScan.Ion('B', acidsNumber,
+                            prefMass));
+                }
+            } else {
+                switch (stringSequence.charAt(pos)) {
+                    case '(': {
+                        modified = true;
+                        break;
+                    } case ')': {
+                        pos += 2;
+                        int closingPos = stringSequence.indexOf(']', pos);
+                        prefMass += Double.valueOf(
+                                stringSequence.substring(pos, closingPos));
+                        pos = closingPos;
+                        modified = false;
+                        ionsBList.add(new TheoreticScan.Ion('B', acidsNumber,
+                                prefMass));
+                        break;
+                    }
+                }
+            }
+        }
+        double totalMass = prefMass;
+        char last = stringSequence.charAt(stringSequence.length() - 1);
+        if (Character.isLetter(last)) {
+            acidsNumber++;
+            totalMass += residueTable.getMass(last);
+        }
+        for (TheoreticScan.Ion ionB: ionsBList) {
+            ionsYList.add(new TheoreticScan.Ion('Y',
+                    acidsNumber - ionB.getNumber(), totalMass -
+                    ionB.getMass() + residueTable.getWaterMass()));
+        }
+        TheoreticScan.Ion[] allIons =
+                new TheoreticScan.Ion[ionsBList.size() * 2];
+        for (int i = 0; i < ionsBList.size(); i++) {
+            allIons[i] = ionsBList.get(i);
+        }
+        for (int i = 0; i < ionsYList.size(); i++) {
+            allIons[i + ionsBList.size()] = ionsYList.get(i);
+        }
+        Arrays.sort(allIons, TheoreticScan.Ion.MASS_ASCENDING_ORDER);
+        return allIons;
+    }
+}
@@ -0,0 +1,82 @@
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the match kernels on ladders and peak lists of the sizes
+ * met in top-down scans. A third of the ions have a peak near them, the
+ * other peaks are noise spread over the same mass range. Run it with
+ * "gradle jmh", adding -PvectorJdk=<JDK home> for the vector kernel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchKernelBenchmark {
+    private static final double MAX_MASS = 20000;
+
+    @Param({"scalar", "vector"})
+    public String kernelName;
+
+    @Param({"200", "1000"})
+    public int ions;
+
+    @Param({"100", "1000", "10000"})
+    public int peakCount;
+
+    @Param({"10ppm", "0.5Da"})
+    public String toleranceDescription;
+
+    private MatchKernel kernel;
+    private Tolerance tolerance;
+    private double[] ladder;
+    private double[] peaks;
+
+    @Setup
+    public void setUp() {
+        kernel = kernelName.equals("vector") ? MatchKernel.vector() :
+                MatchKernel.scalar();
+        if (kernel == null) {
+            throw new IllegalStateException("The vector kernel is not " +
+                    "available, add the jdk.incubator.vector module");
+        }
+        tolerance = Tolerance.parse(toleranceDescription);
+
+        Random random = new Random(ions * 31 + peakCount);
+        ladder = new double[ions];
+        for (int i = 0; i < ions; i++) {
+            ladder[i] = random.nextDouble() * MAX_MASS;
+        }
+        Arrays.sort(ladder);
+        peaks = new double[peakCount];
+        for (int i = 0; i < peakCount; i++) {
+            if (i % 3 == 0) {
+                double mass = ladder[random.nextInt(ions)];
+                peaks[i] = mass + (random.nextDouble() - 0.5) *
+                        tolerance.getError(mass);
+            } else {
+                peaks[i] = random.nextDouble() * MAX_MASS;
+            }
+        }
+        Arrays.sort(peaks);
+    }
+
+    @Benchmark
+    public int countMatched() {
+        return kernel.countMatched(ladder, ladder.length, peaks, tolerance);
+    }
+}
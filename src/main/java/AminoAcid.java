@@ -2,34 +2,44 @@
  * A class representing an amino acid with letter code and mass.
  */
 public enum AminoAcid {
-    A ('A', 71.03711),
-    R ('R', 156.10111),
-    N ('N', 114.04293),
-    D ('D', 115.02694),
-    C ('C', 103.00919),
-    E ('E', 129.04259),
-    Q ('Q', 128.05858),
-    G ('G', 57.02146),
-    H ('H', 137.05891),
-    I ('I', 113.08406),
-    L ('L', 113.08406),
-    K ('K', 128.09496),
-    M ('M', 131.04049),
-    F ('F', 147.06841),
-    P ('P', 97.05276),
-    S ('S', 87.03203),
-    T ('T', 101.04768),
-    W ('W', 186.07931),
-    Y ('Y', 163.06333),
-    V ('V', 99.06841);
+    A ('A', 71.03711, 71.0788),
+    R ('R', 156.10111, 156.1875),
+    N ('N', 114.04293, 114.1038),
+    D ('D', 115.02694, 115.0886),
+    C ('C', 103.00919, 103.1388),
+    E ('E', 129.04259, 129.1155),
+    Q ('Q', 128.05858, 128.1307),
+    G ('G', 57.02146, 57.0519),
+    H ('H', 137.05891, 137.1411),
+    I ('I', 113.08406, 113.1594),
+    L ('L', 113.08406, 113.1594),
+    K ('K', 128.09496, 128.1741),
+    M ('M', 131.04049, 131.1926),
+    F ('F', 147.06841, 147.1766),
+    P ('P', 97.05276, 97.1167),
+    S ('S', 87.03203, 87.0782),
+    T ('T', 101.04768, 101.1051),
+    W ('W', 186.07931, 186.2132),
+    Y ('Y', 163.06333, 163.1760),
+    V ('V', 99.06841, 99.1326),
+    // selenocysteine and pyrrolysine
+    U ('U', 150.95364, 150.0388),
+    O ('O', 237.14773, 237.2982),
+    // ambiguous residues
+    B ('B', 114.53494, 114.5962),
+    Z ('Z', 128.55059, 128.6231),
+    J ('J', 113.08406, 113.1594),
+    // an unknown residue has no mass
+    X ('X', Double.NaN, Double.NaN);
 
     private final Character letterCode;
     private final double mass;
-    private static double[] masses;
+    private final double averageMass;
 
-    AminoAcid(Character letterCode, double mass) {
+    AminoAcid(Character letterCode, double mass, double averageMass) {
         this.letterCode = letterCode;
         this.mass = mass;
+        this.averageMass = averageMass;
     }
 
     /**
@@ -42,12 +52,34 @@ public enum AminoAcid {
 
     /**
      * Gets the mass of the acid.
-     * @return the mass of the acid.
+     * @return the mass of the acid, NaN for X.
      */
     public double getMass() {
         return mass;
     }
 
+    /**
+     * Gets the average mass of the acid.
+     * @return the average mass of the acid, NaN for X.
+     */
+    public double getAverageMass() {
+        return averageMass;
+    }
+
+    /**
+     * Gets the acid with the given letter code.
+     * @param letter the letter code in either case.
+     * @return the acid with the letter code, X if the letter is not a
+     * latin letter.
+     */
+    public static AminoAcid fromLetter(char letter) {
+        char upper = Character.toUpperCase(letter);
+        if (upper < 'A' || upper > 'Z') {
+            return X;
+        }
+        return MassesHolder.BY_LETTER[upper - 'A'];
+    }
+
     /**
      * Makes an array containing masses of the acids. Each mass is
      * stored at the position of its letter in the alphabet
@@ -55,12 +87,22 @@ public enum AminoAcid {
      * @return an array with all amino acid masses.
      */
     public static double[] getMasses() {
-        if (masses == null) {
-            masses = new double[26];
+        return MassesHolder.MASSES.clone();
+    }
+
+    /**
+     * Holds the lookup tables, which are built once on the first use
+     * by the class initialization.
+     */
+    private static class MassesHolder {
+        private static final AminoAcid[] BY_LETTER = new AminoAcid[26];
+        private static final double[] MASSES = new double[26];
+
+        static {
             for (AminoAcid acid: AminoAcid.values()) {
-                masses[acid.getLetterCode() - 'A'] = acid.getMass();
+                BY_LETTER[acid.getLetterCode() - 'A'] = acid;
+                MASSES[acid.getLetterCode() - 'A'] = acid.getMass();
             }
         }
-        return masses;
     }
 }
@@ -1,9 +1,13 @@
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class Analyzer {
@@ -12,6 +16,28 @@ public class Analyzer {
     private static final String PRISM = "PRISM";
     private static final String SPECTRUM_ID = "SPECTRUM_ID=%d\n";
     private static final String ION_TITLE = "ION %c%d %f\n";
+    private static final String MATCH_PAIR = "MATCH_PAIR";
+    private static final String MASS_SHIFT = "MASS_SHIFT";
+    private static final String UNMATCHED_PEAKS_TEMPLATE = "UNMATCHED_PEAKS=%d\n";
+    private static final String MODIFICATION_FORMAT = "%-3d %-3d %-3d %f\n";
+    private static final String EXPERIMENTAL_SPECTRUM_ID =
+            "EXPERIMENTAL_SPECTRUM_ID=%d\n";
+    private static final String PRECURSOR_MASS_DIFF =
+            "PRECURSOR_MASS_DIFF=%f\n";
+    private static final int MASS_DIGITS = 6;
+    private static final int DIFF_DIGITS = 9;
+    private static final String ANNOTATION_COLUMNS = "SPECTRUM_ID\tMATCH\t" +
+            "PEAK_MASS\tION_TYPE\tION_NUMBER\tION_MASS\tISOTOPE_OFFSET\n";
+    private static final String ANNOTATION_KIND = "ANNOTATE";
+    private static final int ANNOTATION_RECORD_LENGTH = 32;
+    private static final String PEAK_COLUMNS =
+            "SPECTRUM_ID\tION_TYPE\tION_NUMBER\tION_MASS";
+    private static final String PEAK_KIND = "PEAKS";
+    private static final int PEAK_RECORD_LENGTH = 24;
+    private static final String COINCIDENCE_COLUMNS = "SPECTRUM_ID\t" +
+            "THEORETIC_MASS\tEXPERIMENTAL_MASS\tDIFF\n";
+    private static final String COINCIDENCE_KIND = "COINCIDE";
+    private static final int COINCIDENCE_RECORD_LENGTH = 32;
 
     /**
      * Annotates deconvolution results.
@@ -27,16 +53,256 @@ public class Analyzer {
                                 Map<Integer, TheoreticScan> theoreticScans,
                                 Path outputPath,
                                 double maxEValue,
-                                double precision) throws IOException {
-        final String MATCH_PAIR = "MATCH_PAIR";
-        final String MASS_SHIFT = "MASS_SHIFT";
-        final String UNMATCHED_PEAKS_TEMPLATE = "UNMATCHED_PEAKS=%d\n";
-        final String MODIFICATION_FORMAT = "%-3d %-3d %-3d %f\n";
+                                Tolerance tolerance) throws IOException {
+        annotate(experimentalScans, theoreticScans, outputPath, maxEValue,
+                tolerance, 0);
+    }
+
+    /**
+     * Annotates deconvolution results allowing peaks to be off by a few
+     * isotope shifts. Every match is tagged with its isotope offset and
+     * the number of shifted matches is reported for every scan.
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param outputPath the path to put the results.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param isotopeErrors the maximum number of isotope shifts in
+     *                      either direction, 0 for exact matching.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void annotate(Iterator<ExperimentalScan> experimentalScans,
+                                Map<Integer, TheoreticScan> theoreticScans,
+                                Path outputPath,
+                                double maxEValue,
+                                Tolerance tolerance,
+                                int isotopeErrors) throws IOException {
+        annotate(experimentalScans, theoreticScans, outputPath, maxEValue,
+                tolerance, isotopeErrors, null);
+    }
+
+    /**
+     * Annotates deconvolution results reusing the annotations of the
+     * scans that were annotated before from the same table row, the
+     * same scan text and with the same parameters; the scans not read
+     * from text are annotated anew. The annotations are written in the
+     * format set by OutputFormat.setDefault().
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param outputPath the path to put the results.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param isotopeErrors the maximum number of isotope shifts in
+     *                      either direction, 0 for exact matching.
+     * @param cache the cache of the annotations of single scans or null
+     *              to annotate every scan anew.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void annotate(Iterator<ExperimentalScan> experimentalScans,
+                                Map<Integer, TheoreticScan> theoreticScans,
+                                Path outputPath,
+                                double maxEValue,
+                                Tolerance tolerance,
+                                int isotopeErrors,
+                                ResultCache cache) throws IOException {
+        annotate(experimentalScans, theoreticScans, outputPath, maxEValue,
+                tolerance, isotopeErrors, OutputFormat.getDefault(), cache);
+    }
+
+    /**
+     * Annotates deconvolution results like the other annotate() methods
+     * do, writing the annotations in the given format.
+     * @param format the format of the annotations.
+     * @param cache the cache of the annotations of single scans or null
+     *              to annotate every scan anew.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void annotate(Iterator<ExperimentalScan> experimentalScans,
+                                Map<Integer, TheoreticScan> theoreticScans,
+                                Path outputPath,
+                                double maxEValue,
+                                Tolerance tolerance,
+                                int isotopeErrors,
+                                OutputFormat format,
+                                ResultCache cache) throws IOException {
+        try (RecordWriter annotationWriter = RecordWriter.open(outputPath)) {
+            if (format == OutputFormat.tsv) {
+                annotationWriter.putText(ANNOTATION_COLUMNS);
+            } else if (format == OutputFormat.binary) {
+                annotationWriter.putHeader(ANNOTATION_KIND,
+                        ANNOTATION_RECORD_LENGTH, Collections.emptyList());
+            }
+            Pipeline.from(experimentalScans)
+                    .map("match", scan -> {
+                        TheoreticScan theoreticScan =
+                                theoreticScans.get(scan.getId());
+                        if (theoreticScan == null ||
+                                theoreticScan.getEValue() > maxEValue) {
+                            return null;
+                        }
+                        return new Annotation(theoreticScan,
+                                scan.getSourceKey(),
+                                isotopeErrors == 0 ? scan.getPeaks() :
+                                        scan.getSortedPeaks(), tolerance,
+                                isotopeErrors, format, cache);
+                    })
+                    .map("format", Annotation::format)
+                    .forEach(annotationWriter::put);
+        }
+    }
+
+    /**
+     * Annotates deconvolution results matching every experimental scan
+     * with all the theoretic scans whose precursor masses lie within the
+     * precursor tolerance, whatever their ids are. The experimental
+     * scans are processed in parallel, the annotations are written in
+     * the order of the scans.
+     * @param experimentalScans the deconvolution results.
+     * @param theoreticScans the index of the theoretic scans.
+     * @param outputPath the path to put the results.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param precursorTolerance the tolerance of comparison of the
+     *                           precursor masses.
+     * @param tolerance the tolerance of comparison of the peaks.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void annotateOpen(Stream<ExperimentalScan> experimentalScans,
+                                    PrecursorIndex theoreticScans,
+                                    Path outputPath,
+                                    double maxEValue,
+                                    Tolerance precursorTolerance,
+                                    Tolerance tolerance) throws IOException {
         final String MATCH_FORMAT = "%-3d %s\n";
 
-        BufferedWriter annotationWriter = Files.newBufferedWriter(outputPath);
+        try (BufferedWriter annotationWriter =
+                     Files.newBufferedWriter(outputPath)) {
+            experimentalScans.parallel().map(scan -> {
+                StringWriter annotation = new StringWriter();
+                double[] peaks = scan.getSortedPeaks();
+                for (TheoreticScan theoreticScan: theoreticScans.find(
+                        scan.getPrecursorMass(), precursorTolerance)) {
+                    if (theoreticScan.getEValue() > maxEValue) {
+                        continue;
+                    }
+                    try {
+                        writeAnnotationHeader(annotation, theoreticScan);
+                        annotation.write(String.format(
+                                EXPERIMENTAL_SPECTRUM_ID, scan.getId()));
+                        annotation.write(String.format(PRECURSOR_MASS_DIFF,
+                                scan.getPrecursorMass() -
+                                        theoreticScan.getPrecursorMass()));
+                    } catch (IOException e) {
+                        throw new Error(e);
+                    }
+                    annotation.write(BEGIN + MATCH_PAIR + "\n");
+                    TheoreticScan.Ion[] theoreticIons = theoreticScan.getIons();
+                    boolean[] matched = new boolean[peaks.length];
+                    int[] count = {0};
+                    MassMatcher.sweep(theoreticScan.getIonMasses(), peaks,
+                            tolerance, (ion, peak) -> {
+                                annotation.write(String.format(MATCH_FORMAT,
+                                        count[0]++, new IonMatch(
+                                                theoreticIons[ion],
+                                                peaks[peak], 0).toString()));
+                                matched[peak] = true;
+                            });
+                    annotation.write(END + MATCH_PAIR + "\n");
 
-        try {
+                    int unmatchedPeaks = 0;
+                    for (boolean peakMatched: matched) {
+                        if (!peakMatched) {
+                            unmatchedPeaks++;
+                        }
+                    }
+                    annotation.write(String.format(UNMATCHED_PEAKS_TEMPLATE,
+                            unmatchedPeaks));
+                    annotation.write(END + PRISM + "\n");
+                    annotation.write("\n");
+                }
+                return annotation.toString();
+            }).forEachOrdered(annotation -> {
+                try {
+                    annotationWriter.write(annotation);
+                } catch (IOException e) {
+                    throw new Error(e);
+                }
+            });
+        } catch (Error e) {
+            throw (IOException)e.getCause();
+        }
+    }
+
+    /**
+     * Counts how many theoretic ions are matched exactly and how many
+     * are matched only with an isotope shift. An ion is attributed to
+     * the smallest offset it is matched with.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param tolerance the tolerance of comparison.
+     * @param isotopeErrors the maximum number of isotope shifts in
+     *                      either direction.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @return an array with the number of ions matched with offset o
+     * at position o + isotopeErrors.
+     */
+    public static long[] countIsotopeOffsets(
+            Map<Integer, TheoreticScan> theoreticScans,
+            Iterator<ExperimentalScan> experimentalScans,
+            Tolerance tolerance,
+            int isotopeErrors,
+            double maxEValue) {
+        long[] counts = new long[2 * isotopeErrors + 1];
+        experimentalScans.forEachRemaining(scan -> {
+            TheoreticScan theoreticScan = theoreticScans.get(scan.getId());
+            if (theoreticScan == null || theoreticScan.getEValue() > maxEValue) {
+                return;
+            }
+            double[] ionMasses = theoreticScan.getIonMasses();
+            int[] bestOffsets = new int[ionMasses.length];
+            Arrays.fill(bestOffsets, Integer.MAX_VALUE);
+            MassMatcher.sweep(ionMasses, scan.getSortedPeaks(), tolerance,
+                    isotopeErrors, (ion, peak, offset) -> {
+                        if (Math.abs(offset) < Math.abs(bestOffsets[ion])) {
+                            bestOffsets[ion] = offset;
+                        }
+                    });
+            for (int offset: bestOffsets) {
+                if (offset != Integer.MAX_VALUE) {
+                    counts[offset + isotopeErrors]++;
+                }
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * Annotates deconvolution results against the theoretic ions taken
+     * in all the charge states from 1 to the precursor charge of the
+     * theoretic scan. Peaks are treated as m/z values, so the method is
+     * suitable for raw or partially deconvolved spectra.
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param outputPath the path to put the results.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param tolerance the tolerance of comparison.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void annotateCharged(Iterator<ExperimentalScan> experimentalScans,
+                                       Map<Integer, TheoreticScan> theoreticScans,
+                                       Path outputPath,
+                                       double maxEValue,
+                                       Tolerance tolerance) throws IOException {
+        final String MATCH_FORMAT = "%-3d %-18f %c%-2d %-3d %-18f\n";
+
+        try (BufferedWriter annotationWriter =
+                     Files.newBufferedWriter(outputPath)) {
             experimentalScans.forEachRemaining(scan -> {
                 TheoreticScan theoreticScan = theoreticScans.get(scan.getId());
                 if (theoreticScan == null || theoreticScan.getEValue() > maxEValue) {
@@ -44,60 +310,38 @@ public class Analyzer {
                 }
 
                 try {
-                    annotationWriter.write(BEGIN + PRISM + "\n");
-                    annotationWriter.write(String.format(SPECTRUM_ID,
-                            scan.getId()));
-
-                    annotationWriter.write(BEGIN + MASS_SHIFT + "\n");
-                    List<TheoreticScan.MassShift> modifications =
-                            theoreticScan.getModifications();
-                    for (int i = 0; i < modifications.size(); i++) {
-                        annotationWriter.write(String.format(
-                                MODIFICATION_FORMAT,
-                                i, modifications.get(i).getStart(),
-                                modifications.get(i).getEnd(),
-                                modifications.get(i).getMass()));
-                    }
-                    annotationWriter.write(END + MASS_SHIFT + "\n");
-
+                    writeAnnotationHeader(annotationWriter, theoreticScan);
                     annotationWriter.write(BEGIN + MATCH_PAIR + "\n");
+
                     TheoreticScan.Ion[] theoreticIons = theoreticScan.getIons();
-                    List<IonMatch> matches = new ArrayList<>();
+                    ChargeLadder ladder = theoreticScan.getChargeLadder();
+                    double[] peaks = scan.getSortedPeaks();
+                    boolean[] matched = new boolean[peaks.length];
+                    int[] matchNumber = {0};
+                    MassMatcher.sweep(ladder.getMzs(), peaks, tolerance,
+                            (pos, peak) -> {
+                                TheoreticScan.Ion ion =
+                                        theoreticIons[ladder.getIonIndex(pos)];
+                                matched[peak] = true;
+                                try {
+                                    annotationWriter.write(String.format(
+                                            MATCH_FORMAT, matchNumber[0]++,
+                                            peaks[peak], ion.getType(),
+                                            ion.getNumber(),
+                                            ladder.getCharge(pos),
+                                            ladder.getMzs()[pos]));
+                                } catch (IOException e) {
+                                    throw new Error(e);
+                                }
+                            });
+                    annotationWriter.write(END + MATCH_PAIR + "\n");
+
                     int unmatchedPeaks = 0;
-                    for (double peak : scan.getPeaks()) {
-                        double eps = peak * precision;
-                        double minMass = peak - eps;
-                        int left = -1;
-                        int right = theoreticIons.length - 1;
-                        while (right - left > 1) {
-                            int mid = (right + left) / 2;
-                            if (theoreticIons[mid].getMass() < minMass) {
-                                left = mid;
-                            } else {
-                                right = mid;
-                            }
-                        }
-                        int pos = right;
-                        boolean matched = false;
-                        while (pos < theoreticIons.length &&
-                                theoreticIons[pos].getMass() > peak - eps &&
-                                theoreticIons[pos].getMass() < peak + eps) {
-                            matches.add(new IonMatch(theoreticIons[pos], peak));
-                            pos++;
-                            matched = true;
-                        }
-                        if (!matched) {
+                    for (boolean peakMatched: matched) {
+                        if (!peakMatched) {
                             unmatchedPeaks++;
                         }
                     }
-                    matches.sort(IonMatch.MASS_ASCENDING_ORDER);
-                    for (int i = 0; i < matches.size(); i++) {
-                        annotationWriter.write(String.format(
-                                MATCH_FORMAT, i,
-                                matches.get(i).toString()));
-                    }
-                    annotationWriter.write(END + MATCH_PAIR + "\n");
-
                     annotationWriter.write(String.format(UNMATCHED_PEAKS_TEMPLATE,
                             unmatchedPeaks));
 
@@ -110,278 +354,615 @@ public class Analyzer {
         } catch (Error e) {
             throw (IOException)e.getCause();
         }
+    }
+
+    /**
+     * Localizes the mass shifts of theoretic scans using the peaks of
+     * the corresponding experimental scans and writes a table with the
+     * best position of every shift.
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param outputPath the path to put the results.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param tolerance the tolerance of comparison.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void localizeShifts(Iterator<ExperimentalScan> experimentalScans,
+                                      Map<Integer, TheoreticScan> theoreticScans,
+                                      Path outputPath,
+                                      double maxEValue,
+                                      Tolerance tolerance) throws IOException {
+        final String HEADER = "SPECTRUM_ID\tSHIFT\tMASS\tSTART\tEND\t" +
+                "POSITION\tRESIDUE\tSCORE\tTIES\n";
+        final String LINE_FORMAT = "%d\t%d\t%f\t%d\t%d\t%d\t%c\t%d\t%d\n";
+
+        try (BufferedWriter writer = Files.newBufferedWriter(outputPath)) {
+            writer.write(HEADER);
+            experimentalScans.forEachRemaining(scan -> {
+                TheoreticScan theoreticScan = theoreticScans.get(scan.getId());
+                if (theoreticScan == null || theoreticScan.getEValue() > maxEValue) {
+                    return;
+                }
 
-        annotationWriter.close();
+                AminoAcid[] sequence = theoreticScan.getSequence();
+                for (ModificationLocalizer.Localization localization:
+                        ModificationLocalizer.localize(theoreticScan,
+                                scan.getSortedPeaks(), tolerance)) {
+                    TheoreticScan.MassShift shift = localization.getShift();
+                    try {
+                        writer.write(String.format(LINE_FORMAT,
+                                theoreticScan.getId(),
+                                localization.getShiftIndex(),
+                                shift.getMass(), shift.getStart(),
+                                shift.getEnd(), localization.getPosition(),
+                                sequence[localization.getPosition()]
+                                        .getLetterCode(),
+                                localization.getScore(),
+                                localization.getTies()));
+                    } catch (IOException e) {
+                        throw new Error(e);
+                    }
+                }
+            });
+        } catch (Error e) {
+            throw (IOException)e.getCause();
+        }
+    }
+
+    /**
+     * Scores deconvolution results against theoretic scans and writes
+     * a table with a line per scan.
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param outputPath the path to put the results.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param tolerance the tolerance of comparison.
+     * @throws IOException in case of an output writing error.
+     */
+    public static void score(Iterator<ExperimentalScan> experimentalScans,
+                             Map<Integer, TheoreticScan> theoreticScans,
+                             Path outputPath,
+                             double maxEValue,
+                             Tolerance tolerance) throws IOException {
+        final String HEADER = "SPECTRUM_ID\tPRSM_ID\tIONS\tMATCHED\t" +
+                "COVERAGE\tLONGEST_RUN\tSCORE\n";
+        final String LINE_FORMAT = "%d\t%d\t%d\t%d\t%.4f\t%d\t%.4f\n";
+
+        try (BufferedWriter writer = Files.newBufferedWriter(outputPath)) {
+            writer.write(HEADER);
+            experimentalScans.forEachRemaining(scan -> {
+                TheoreticScan theoreticScan = theoreticScans.get(scan.getId());
+                if (theoreticScan == null || theoreticScan.getEValue() > maxEValue) {
+                    return;
+                }
+
+                ScanScore score = ScanScore.compute(theoreticScan,
+                        scan.getSortedPeaks(), tolerance);
+                try {
+                    writer.write(String.format(LINE_FORMAT,
+                            theoreticScan.getId(), theoreticScan.getPrsmId(),
+                            score.getIons(), score.getMatchedIons(),
+                            score.getCoverage(), score.getLongestRun(),
+                            score.getScore()));
+                } catch (IOException e) {
+                    throw new Error(e);
+                }
+            });
+        } catch (Error e) {
+            throw (IOException)e.getCause();
+        }
+    }
+
+    /**
+     * Counts the ions of target and decoy ladders matched by the peaks
+     * of deconvolution results. The decoys of a scan are counted in
+     * parallel.
+     * @param experimentalScans iterator over the deconvolution results.
+     * @param theoreticScans map from theoretical scan number to its
+     *                       TheoreticalScan representation.
+     * @param tolerances the tolerances to count the matches with.
+     * @param generator the generator of the decoys.
+     * @param decoys the number of decoys per scan.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @return an array with a pair of the matched target ions and the
+     * matched decoy ions of all the decoys for every tolerance.
+     */
+    public static long[][] countDecoyMatches(
+            Iterator<ExperimentalScan> experimentalScans,
+            Map<Integer, TheoreticScan> theoreticScans,
+            Tolerance[] tolerances,
+            DecoyGenerator generator,
+            int decoys,
+            double maxEValue) {
+        long[][] counts = new long[tolerances.length][2];
+        experimentalScans.forEachRemaining(scan -> {
+            TheoreticScan theoreticScan = theoreticScans.get(scan.getId());
+            if (theoreticScan == null || theoreticScan.getEValue() > maxEValue) {
+                return;
+            }
+
+            double[] residues = DecoyGenerator.getShiftedResidues(theoreticScan);
+            double waterMass = theoreticScan.getResidueTable().getWaterMass();
+            double[] peaks = scan.getSortedPeaks();
+            for (int i = 0; i < tolerances.length; i++) {
+                Tolerance tolerance = tolerances[i];
+                counts[i][0] += generator.countTargetMatches(residues,
+                        waterMass, peaks, tolerance);
+                counts[i][1] += IntStream.range(0, decoys).parallel()
+                        .mapToLong(decoy -> generator.countDecoyMatches(
+                                residues, waterMass,
+                                DecoyGenerator.seed(scan.getId(), decoy),
+                                peaks, tolerance))
+                        .sum();
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * Writes the beginning of a scan annotation: the spectrum id and
+     * the list of the mass shifts of the theoretic scan.
+     */
+    private static void writeAnnotationHeader(Writer writer,
+                                              TheoreticScan theoreticScan)
+            throws IOException {
+        writer.write(BEGIN + PRISM + "\n");
+        writer.write(String.format(SPECTRUM_ID, theoreticScan.getId()));
+
+        writer.write(BEGIN + MASS_SHIFT + "\n");
+        List<TheoreticScan.MassShift> modifications =
+                theoreticScan.getModifications();
+        for (int i = 0; i < modifications.size(); i++) {
+            writer.write(String.format(MODIFICATION_FORMAT,
+                    i, modifications.get(i).getStart(),
+                    modifications.get(i).getEnd(),
+                    modifications.get(i).getMass()));
+        }
+        writer.write(END + MASS_SHIFT + "\n");
     }
 
     /**
      * For each theoretic peak lists all the programs that have found it.
-     * @param table a table of theoretic scans.
+     * The sorted peaks of every program are written to a temporary
+     * PeakStore file before the search and the rest of the scans is
+     * dropped as it is read, so the heap holds the scans being matched
+     * only.
+     * @param theoreticScans a stream of theoretic scans.
      * @param outputPath the path to put results at.
+     * @param tolerance the tolerance of peaks comparison.
+     * @param format the format of the results.
      * @param streams a list of ScanStreams for all the programs to use.
      * @throws IOException if a read/write error occurs.
      */
-    public static void searchPeaks(Path table, Path outputPath,
+    public static void searchPeaks(Stream<TheoreticScan> theoreticScans,
+                                   Path outputPath,
+                                   Tolerance tolerance,
+                                   OutputFormat format,
                                    ScanStream... streams)
             throws IOException {
-        final double ACCURACY = 1e-5;
-        Map<DeconvolutionProgram, Map<Integer,ExperimentalScan>> programResults =
-                new HashMap<>();
+        Map<DeconvolutionProgram, List<Iterator<ExperimentalScan>>> outputs =
+                new LinkedHashMap<>();
         for (ScanStream stream: streams) {
-            Map<Integer,ExperimentalScan> scans =
-                    programResults.computeIfAbsent(stream.getProgram(),
-                    program -> new HashMap<>());
-            stream.getScans().forEachRemaining(scan ->
-                    scans.put(scan.getId(), scan));
+            outputs.computeIfAbsent(stream.getProgram(),
+                    program -> new ArrayList<>()).add(stream.getScans());
         }
+        Map<DeconvolutionProgram, PeakStore> programResults =
+                new LinkedHashMap<>();
+        List<Path> storePaths = new ArrayList<>();
+        try {
+            for (Map.Entry<DeconvolutionProgram, List<Iterator<ExperimentalScan>>>
+                    output: outputs.entrySet()) {
+                Path storePath = Files.createTempFile("peaks", ".store");
+                storePaths.add(storePath);
+                Iterator<Iterator<ExperimentalScan>> parts =
+                        output.getValue().iterator();
+                programResults.put(output.getKey(), PeakStore.write(
+                        new Iterator<ExperimentalScan>() {
+                            private Iterator<ExperimentalScan> part =
+                                    parts.next();
 
-        try (BufferedWriter resWriter = Files.newBufferedWriter(outputPath)) {
-            TheoreticScan.readTable(table).forEach(theoreticScan -> {
-                try {
-                    resWriter.write(BEGIN + PRISM + '\n');
-                    resWriter.write(String.format(SPECTRUM_ID,
-                            theoreticScan.getId()));
-
-                    Map<DeconvolutionProgram,double[]> findings =
-                            new HashMap<>();
-                    programResults.forEach((program, scans) -> {
-                        if (scans.containsKey(theoreticScan.getId())) {
-                            double[] peaks = scans.get(theoreticScan.getId())
-                                    .getPeaks();
-                            Arrays.sort(peaks);
-                            findings.put(program, peaks);
-                        }
-                    });
-                    for (TheoreticScan.Ion ion: theoreticScan.getIons()) {
-                        double eps = ion.getMass() * ACCURACY;
-                        String title = String.format(ION_TITLE,
-                                ion.getType(), ion.getNumber(),
-                                ion.getMass());
-
-                        resWriter.write(title);
-                        List<DeconvolutionProgram> finders = new ArrayList<>();
-                        findings.forEach(((program, peaks) -> {
-                            if (contains(peaks, ion.getMass(), eps)) {
-                                finders.add(program);
+                            @Override
+                            public boolean hasNext() {
+                                while (!part.hasNext() && parts.hasNext()) {
+                                    part = parts.next();
+                                }
+                                return part.hasNext();
                             }
-                        }));
-                        for (DeconvolutionProgram program: finders) {
-                            resWriter.write(program.toString() + '\n');
-                        }
-                    }
 
-                    resWriter.write(END + PRISM + '\n');
-                    resWriter.write('\n');
+                            @Override
+                            public ExperimentalScan next() {
+                                hasNext();
+                                return part.next();
+                            }
+                        }, storePath));
+            }
+            searchPeaks(theoreticScans, outputPath, tolerance, format,
+                    programResults);
+        } finally {
+            for (PeakStore store: programResults.values()) {
+                store.close();
+            }
+            for (Path storePath: storePaths) {
+                try {
+                    Files.deleteIfExists(storePath);
                 } catch (IOException e) {
-                    throw new Error(e);
+                    // a mapped file may not be deleted on some systems
+                    storePath.toFile().deleteOnExit();
                 }
-            });
-        } catch (Error e) {
-            throw (IOException) e.getCause();
+            }
+        }
+    }
+
+    private static void searchPeaks(Stream<TheoreticScan> theoreticScans,
+                                    Path outputPath,
+                                    Tolerance tolerance,
+                                    OutputFormat format,
+                                    Map<DeconvolutionProgram, PeakStore>
+                                            programResults)
+            throws IOException {
+        List<DeconvolutionProgram> programs =
+                new ArrayList<>(programResults.keySet());
+        try (RecordWriter resWriter = RecordWriter.open(outputPath)) {
+            if (format == OutputFormat.tsv) {
+                resWriter.putText(PEAK_COLUMNS);
+                for (DeconvolutionProgram program: programs) {
+                    resWriter.putChar('\t').putText(program.toString());
+                }
+                resWriter.putChar('\n');
+            } else if (format == OutputFormat.binary) {
+                resWriter.putHeader(PEAK_KIND, PEAK_RECORD_LENGTH,
+                        programs.stream().map(DeconvolutionProgram::toString)
+                                .collect(Collectors.toList()));
+            }
+            Pipeline.from(theoreticScans.iterator())
+                    .map("match", theoreticScan -> {
+                        Map<DeconvolutionProgram, PeakStore.Peaks> findings =
+                                new HashMap<>();
+                        programResults.forEach((program, store) -> {
+                            PeakStore.Peaks peaks =
+                                    store.getPeaks(theoreticScan.getId());
+                            if (peaks != null) {
+                                findings.put(program, peaks);
+                            }
+                        });
+                        TheoreticScan.Ion[] ions = theoreticScan.getIons();
+                        List<List<DeconvolutionProgram>> finders =
+                                new ArrayList<>(ions.length);
+                        for (TheoreticScan.Ion ion: ions) {
+                            List<DeconvolutionProgram> ionFinders =
+                                    new ArrayList<>();
+                            findings.forEach(((program, peaks) -> {
+                                if (MassMatcher.contains(peaks, ion.getMass(),
+                                        tolerance)) {
+                                    ionFinders.add(program);
+                                }
+                            }));
+                            finders.add(ionFinders);
+                        }
+                        return new Finding(theoreticScan, finders);
+                    })
+                    .map("format", finding ->
+                            finding.format(format, programs))
+                    .forEach(resWriter::put);
         }
     }
 
     /**
      * Counts peaks that were found by one set of programs and were not
      * found by another.
-     * @param table the table with theoretical scans.
-     * @param finders a list of maps of scans found by programs that
+     * @param theoreticScans a stream of theoretic scans.
+     * @param finders a list of stores of scans found by programs that
      *                should have found the peaks to count.
-     * @param nonFinders list of maps of scans programs that shouldn't
-     *                   have found the peaks.
-     * @param accuracy the accuracy of peaks comparison.
+     * @param nonFinders list of stores of scans found by programs that
+     *                   shouldn't have found the peaks.
+     * @param tolerance the tolerance of peaks comparison.
      * @return the number of the peaks that were found only by the
      * required programs.
-     * @throws IOException in case of a table reading error.
      */
-    public static int countExclusivelyFound(Path table,
-                                  List<Map<Integer, ExperimentalScan>> finders,
-                                  List<Map<Integer, ExperimentalScan>> nonFinders,
-                                            double accuracy)
-            throws IOException {
+    public static int countExclusivelyFound(
+            Stream<TheoreticScan> theoreticScans,
+            List<PeakStore> finders,
+            List<PeakStore> nonFinders,
+            Tolerance tolerance) {
         Counter findings = new Counter();
-        TheoreticScan.readTable(table).forEach(theoreticScan -> {
-            TheoreticScan.Ion[] theoreticIons = theoreticScan.getIons();
-            List<double[]> foundScanIons = new ArrayList<>();
-            List<double[]> nonFoundScanIons = new ArrayList<>();
-            for (Map<Integer, ExperimentalScan> finder : finders) {
-                ExperimentalScan foundScan = finder.get(theoreticScan.getId());
-                if (foundScan == null) {
-                    return;
-                } else {
-                    double[] ions = Arrays.copyOf(foundScan.getPeaks(),
-                            foundScan.getPeaks().length);
-                    Arrays.sort(ions);
-                    foundScanIons.add(ions);
-                }
-            }
-            for (Map<Integer, ExperimentalScan> finder : nonFinders) {
-                ExperimentalScan foundScan = finder.get(theoreticScan.getId());
-                if (foundScan == null) {
-                    nonFoundScanIons.add(null);
-                } else {
-                    double[] ions = Arrays.copyOf(foundScan.getPeaks(),
-                            foundScan.getPeaks().length);
-                    Arrays.sort(ions);
-                    nonFoundScanIons.add(ions);
-                }
+        theoreticScans.forEach(theoreticScan -> {
+            BitSet found = findExclusively(theoreticScan, finders,
+                    nonFinders, tolerance);
+            if (found != null) {
+                findings.add(found.cardinality());
             }
+        });
+        return findings.get();
+    }
 
-            Stream.of(theoreticIons).forEach(ion -> {
-                double eps = accuracy * ion.getMass();
-                for (double[] foundScanIon : foundScanIons) {
-                    if (!contains(foundScanIon, ion.getMass(), eps)) {
+    /**
+     * Counts peaks found by one set of programs and not found by
+     * another for several tolerances at once. The distance from every
+     * theoretic ion to the nearest peak of every program is computed
+     * once and then compared with the window of every tolerance.
+     * @param theoreticScans a stream of theoretic scans.
+     * @param finders a list of stores of scans found by programs that
+     *                should have found the peaks to count.
+     * @param nonFinders list of stores of scans found by programs that
+     *                   shouldn't have found the peaks.
+     * @param tolerances the tolerances to count the peaks with.
+     * @return an array with a row for every tolerance. The first
+     * element of a row is the number of the peaks found only by the
+     * required programs, the following ones are the numbers of the
+     * peaks found by every program, finders first.
+     */
+    public static long[][] sweepTolerances(
+            Stream<TheoreticScan> theoreticScans,
+            List<PeakStore> finders,
+            List<PeakStore> nonFinders,
+            Tolerance[] tolerances) {
+        int programs = finders.size() + nonFinders.size();
+        long[][] counts = new long[tolerances.length][programs + 1];
+        theoreticScans.forEach(theoreticScan -> {
+            double[] ionMasses = theoreticScan.getIonMasses();
+            double[][] distances = new double[programs][];
+            for (int p = 0; p < programs; p++) {
+                PeakStore.Peaks foundPeaks = p < finders.size() ?
+                        finders.get(p).getPeaks(theoreticScan.getId()) :
+                        nonFinders.get(p - finders.size())
+                                .getPeaks(theoreticScan.getId());
+                if (foundPeaks == null) {
+                    if (p < finders.size()) {
                         return;
                     }
+                    continue;
                 }
-                for (double[] nonFoundPeaks: nonFoundScanIons) {
-                    if (nonFoundPeaks != null &&
-                            contains(nonFoundPeaks, ion.getMass(), eps)) {
-                        return;
+                distances[p] = new double[ionMasses.length];
+                MassMatcher.nearestDistances(ionMasses, foundPeaks,
+                        distances[p]);
+            }
+
+            for (int ion = 0; ion < ionMasses.length; ion++) {
+                for (int level = 0; level < tolerances.length; level++) {
+                    double error = tolerances[level].getError(ionMasses[ion]);
+                    boolean exclusive = true;
+                    for (int p = 0; p < programs; p++) {
+                        if (distances[p] == null) {
+                            continue;
+                        }
+                        boolean found = distances[p][ion] < error;
+                        if (found) {
+                            counts[level][p + 1]++;
+                        }
+                        if (found != p < finders.size()) {
+                            exclusive = false;
+                        }
+                    }
+                    if (exclusive) {
+                        counts[level][0]++;
                     }
                 }
-                findings.inc();
-            });
+            }
         });
-        return findings.get();
+        return counts;
     }
 
     /**
      * Looks for peaks that were found by one set of programs and were
      * not found by another.
-     * @param table the table with theoretical scans.
-     * @param finders a list of maps of scans found by programs that
+     * @param theoreticScans a stream of theoretic scans.
+     * @param finders a list of stores of scans found by programs that
      *                should have found the peaks to count.
-     * @param nonFinders list of maps of scans programs that shouldn't
-     *                   have found the peaks.
-     * @param accuracy the accuracy of peaks comparison.
+     * @param nonFinders list of stores of scans found by programs that
+     *                   shouldn't have found the peaks.
+     * @param tolerance the tolerance of peaks comparison.
      * @return a list of the peaks that were found only by the
      * required programs.
-     * @throws IOException in case of a table reading error.
      */
-    public static List<Peak> searchExclusivelyFound(Path table,
-                                            List<Map<Integer, ExperimentalScan>> finders,
-                                            List<Map<Integer, ExperimentalScan>> nonFinders,
-                                            double accuracy)
-            throws IOException {
+    public static List<Peak> searchExclusivelyFound(
+            Stream<TheoreticScan> theoreticScans,
+            List<PeakStore> finders,
+            List<PeakStore> nonFinders,
+            Tolerance tolerance) {
         List<Peak> exclusivelyFound = new ArrayList<>();
-        TheoreticScan.readTable(table).forEach(theoreticScan -> {
+        theoreticScans.forEach(theoreticScan -> {
+            BitSet found = findExclusively(theoreticScan, finders,
+                    nonFinders, tolerance);
+            if (found == null) {
+                return;
+            }
             TheoreticScan.Ion[] theoreticIons = theoreticScan.getIons();
-            List<double[]> foundScanIons = new ArrayList<>();
-            List<double[]> nonFoundScanIons = new ArrayList<>();
-            for (Map<Integer, ExperimentalScan> finder : finders) {
-                ExperimentalScan foundScan = finder.get(theoreticScan.getId());
-                if (foundScan == null) {
-                    return;
-                } else {
-                    double[] ions = Arrays.copyOf(foundScan.getPeaks(),
-                            foundScan.getPeaks().length);
-                    Arrays.sort(ions);
-                    foundScanIons.add(ions);
-                }
+            for (int ion = found.nextSetBit(0); ion >= 0;
+                 ion = found.nextSetBit(ion + 1)) {
+                exclusivelyFound.add(new Peak(theoreticScan,
+                        theoreticIons[ion]));
             }
-            for (Map<Integer, ExperimentalScan> finder : nonFinders) {
-                ExperimentalScan foundScan = finder.get(theoreticScan.getId());
-                if (foundScan == null) {
-                    nonFoundScanIons.add(null);
-                } else {
-                    double[] ions = Arrays.copyOf(foundScan.getPeaks(),
-                            foundScan.getPeaks().length);
-                    Arrays.sort(ions);
-                    nonFoundScanIons.add(ions);
-                }
+        });
+        return exclusivelyFound;
+    }
+
+    /**
+     * Finds the ions of a scan found by all of one set of programs and
+     * by none of another. The matched ions of every program make a bit
+     * set and the sets are combined a word at a time.
+     * @return a set with the indices of the exclusively found ions or
+     * null if a required program hasn't found the scan.
+     */
+    private static BitSet findExclusively(TheoreticScan theoreticScan,
+                                          List<PeakStore> finders,
+                                          List<PeakStore> nonFinders,
+                                          Tolerance tolerance) {
+        double[] ionMasses = theoreticScan.getIonMasses();
+        PeakStore.Peaks[] foundPeaks = new PeakStore.Peaks[finders.size()];
+        for (int i = 0; i < foundPeaks.length; i++) {
+            foundPeaks[i] = finders.get(i).getPeaks(theoreticScan.getId());
+            if (foundPeaks[i] == null) {
+                return null;
             }
+        }
 
-            Stream.of(theoreticIons).forEach(ion -> {
-                double eps = accuracy * ion.getMass();
-                for (double[] foundScanIon : foundScanIons) {
-                    if (!contains(foundScanIon, ion.getMass(), eps)) {
-                        return;
-                    }
-                }
-                for (double[] nonFoundPeaks: nonFoundScanIons) {
-                    if (nonFoundPeaks != null &&
-                            contains(nonFoundPeaks, ion.getMass(), eps)) {
-                        return;
-                    }
+        BitSet found = new BitSet(ionMasses.length);
+        found.set(0, ionMasses.length);
+        for (PeakStore.Peaks peaks: foundPeaks) {
+            found.and(match(ionMasses, peaks, tolerance));
+            if (found.isEmpty()) {
+                return found;
+            }
+        }
+        for (PeakStore nonFinder: nonFinders) {
+            PeakStore.Peaks peaks = nonFinder.getPeaks(theoreticScan.getId());
+            if (peaks != null) {
+                found.andNot(match(ionMasses, peaks, tolerance));
+                if (found.isEmpty()) {
+                    return found;
                 }
-                exclusivelyFound.add(new Peak(theoreticScan, ion));
-            });
-        });
-        return exclusivelyFound;
+            }
+        }
+        return found;
     }
 
     /**
-     * Makes a stream of all matches between theoretic ions and
-     * experimental peaks.
-     * @param theoreticScans a stream of theoretic ions. Is destroyed
-     *                       during execution.
-     * @param experimentalScans an iterator over experimental scans to
-     *                          use.
-     * @param accuracy the accuracy of comparision.
-     * @return a stream containing a PeakMatch object for every
-     * coincidence between a theoretic ion and an experimental peak.
+     * Checks which of the masses have a peak of a stored scan lying
+     * within the tolerance.
+     * @return a set with the indices of the matched masses.
      */
-    public static Stream<PeakMatch> getPeakMatchesStream(Stream <TheoreticScan> theoreticScans,
-                                                         Iterator<ExperimentalScan> experimentalScans,
-                                                         double accuracy,
-                                                         double maxEValue) {
-        Map <Integer, double[]> experimentalRanges = new HashMap<>();
-        experimentalScans.forEachRemaining(scan ->
-                experimentalRanges.put(scan.getId(), scan.getPeaks()));
-
-        return theoreticScans
-                .filter(scan -> scan.getEValue() <= maxEValue)
-                .flatMap(thScan -> {
-            double[] exRange = experimentalRanges.get(thScan.getId());
-            if (exRange == null) {
-                return Stream.empty();
+    private static BitSet match(double[] masses, PeakStore.Peaks peaks,
+                                Tolerance tolerance) {
+        BitSet matched = new BitSet(masses.length);
+        for (int i = 0; i < masses.length; i++) {
+            if (MassMatcher.contains(peaks, masses[i], tolerance)) {
+                matched.set(i);
             }
-            Arrays.sort(exRange);
+        }
+        return matched;
+    }
 
-            return Arrays.stream(thScan.getIons()).flatMap(ion -> {
-                double mass = ion.getMass();
-                double eps = accuracy * mass;
+    /**
+     * Prints all the matches between theoretic ions and experimental
+     * peaks, the theoretic mass, the peak mass and their difference for
+     * every match, in the format set by OutputFormat.setDefault(). The
+     * scans are matched and the output is made by the "match" and
+     * "format" pipeline stages.
+     * @param theoreticScans a stream of theoretic scans.
+     * @param experimentalScans an iterator over experimental scans.
+     * @param tolerance the tolerance of comparision.
+     * @param maxEValue the maximum acceptable eValue of a theoretical
+     *                  scan.
+     * @param out the sink to print to.
+     * @throws IOException if a scan can't be read.
+     */
+    public static void listCoincidences(Stream<TheoreticScan> theoreticScans,
+                                        Iterator<ExperimentalScan> experimentalScans,
+                                        Tolerance tolerance,
+                                        double maxEValue,
+                                        OutputSink out) throws IOException {
+        listCoincidences(theoreticScans, experimentalScans, tolerance,
+                maxEValue, OutputFormat.getDefault(), out);
+    }
 
-                int beginning = Arrays.binarySearch(exRange, mass - eps);
-                if (beginning < 0) {
-                    beginning = -1 - beginning;
-                } else {
-                    while (beginning > 0 &&
-                            exRange[beginning] == mass - eps) {
-                        beginning--;
-                    }
-                }
-                int end = Arrays.binarySearch(exRange, mass + eps);
-                if (end < 0) {
-                    end = -1 - end;
-                } else {
-                    while (end < exRange.length &&
-                            exRange[end] == mass + eps) {
-                        end++;
-                    }
-                }
+    /**
+     * Prints all the matches between theoretic ions and experimental
+     * peaks like listCoincidences() above does in the given format.
+     * @param format the format of the matches.
+     * @param out the sink to print to.
+     * @throws IOException if a scan can't be read.
+     */
+    public static void listCoincidences(Stream<TheoreticScan> theoreticScans,
+                                        Iterator<ExperimentalScan> experimentalScans,
+                                        Tolerance tolerance,
+                                        double maxEValue,
+                                        OutputFormat format,
+                                        OutputSink out) throws IOException {
+        if (format == OutputFormat.tsv) {
+            out.print(COINCIDENCE_COLUMNS);
+        } else if (format == OutputFormat.binary) {
+            out.write(new RecordWriter().putHeader(COINCIDENCE_KIND,
+                    COINCIDENCE_RECORD_LENGTH, Collections.emptyList())
+                    .toByteArray());
+        }
+        matchScans(theoreticScans, experimentalScans, tolerance, maxEValue)
+                .map("format", batch -> formatCoincidences(batch, format))
+                .forEach(out::write);
+    }
 
-                return Arrays.stream(exRange, beginning, end)
-                        .mapToObj(exMass -> new PeakMatch(mass, exMass));
-            });
-        });
+    private static byte[] formatCoincidences(MatchBatch batch,
+                                             OutputFormat format)
+            throws IOException {
+        if (format == OutputFormat.text) {
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                lines.append(batch.getTheoreticMass(i)).append(' ')
+                        .append(batch.getExperimentalMass(i))
+                        .append(' ').append(batch.getDiff(i))
+                        .append(System.lineSeparator());
+            }
+            return lines.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        RecordWriter records = new RecordWriter();
+        for (int i = 0; i < batch.size(); i++) {
+            if (format == OutputFormat.tsv) {
+                records.putNumber(batch.getScanId()).putChar('\t')
+                        .putNumber(batch.getTheoreticMass(i), MASS_DIGITS)
+                        .putChar('\t')
+                        .putNumber(batch.getExperimentalMass(i), MASS_DIGITS)
+                        .putChar('\t')
+                        .putNumber(batch.getDiff(i), DIFF_DIGITS)
+                        .putChar('\n');
+            } else {
+                records.putInt(batch.getScanId()).skip(4)
+                        .putDouble(batch.getTheoreticMass(i))
+                        .putDouble(batch.getExperimentalMass(i))
+                        .putDouble(batch.getDiff(i));
+            }
+        }
+        return records.toByteArray();
+    }
+
+    /**
+     * Pairs the theoretic scans having acceptable eValues with the
+     * experimental scans of the same ids.
+     */
+    private static ScanJoinSpliterator joinScans(
+            Stream<TheoreticScan> theoreticScans,
+            Iterator<ExperimentalScan> experimentalScans,
+            double maxEValue) {
+        return new ScanJoinSpliterator(theoreticScans
+                .filter(scan -> scan.getEValue() <= maxEValue)
+                .iterator(), experimentalScans);
+    }
+
+    /**
+     * Matches the scans with the "match" pipeline stage.
+     */
+    private static Pipeline<MatchBatch> matchScans(
+            Stream<TheoreticScan> theoreticScans,
+            Iterator<ExperimentalScan> experimentalScans,
+            Tolerance tolerance,
+            double maxEValue) {
+        return Pipeline.from(Spliterators.iterator(joinScans(theoreticScans,
+                experimentalScans, maxEValue)))
+                .map("match", pair -> MatchBatch.match(pair, tolerance));
     }
 
     public static SortedMap<Double, Long> matchDiffsDistribution(
             Stream <TheoreticScan> theoreticScans,
             Iterator<ExperimentalScan> experimentalScans,
-            double accuracy,
+            Tolerance tolerance,
             double step,
-            double maxEValue) {
+            double maxEValue) throws IOException {
         final double EPS = 1e-9;
         TreeMap<Double, Long> dist =
-                getPeakMatchesStream(theoreticScans, experimentalScans,
-                accuracy, maxEValue)
-                .collect(Collectors.groupingBy(
-                        match -> round(match.getDiff(), step),
-                        TreeMap::new,
-                        Collectors.counting()));
+                matchScans(theoreticScans, experimentalScans,
+                tolerance, maxEValue)
+                .collect("aggregate", TreeMap::new,
+                        (map, batch) -> {
+                            for (int i = 0; i < batch.size(); i++) {
+                                map.merge(round(batch.getDiff(i), step), 1L,
+                                        Long::sum);
+                            }
+                        },
+                        (map1, map2) -> map2.forEach((diff, count) ->
+                                map1.merge(diff, count, Long::sum)));
         long least = (long)Math.floor(dist.firstKey() / step + EPS);
         long biggest = (long)Math.floor(dist.lastKey() / step + EPS);
         for (long i = least; i < biggest; i++) {
@@ -393,41 +974,54 @@ public class Analyzer {
     public static TreeMap<Double, Double> matchDiffsByMass(
             Stream <TheoreticScan> theoreticScans,
             Iterator<ExperimentalScan> experimentalScans,
-            double accuracy,
+            Tolerance tolerance,
             double step,
-            double maxEValue) {
-        final double EPS = 1e-9;
-        TreeMap<Double, Double> diffs = getPeakMatchesStream(
-                theoreticScans, experimentalScans, accuracy, maxEValue)
-                .collect(Collectors.groupingBy(
-                        match -> round(match.getTheoreticMass(), step),
-                        TreeMap::new,
-                        Collectors.averagingDouble(PeakMatch::getDiff)
-                ));
-        long least = (long)Math.floor(diffs.firstKey() / step + EPS);
-        long biggest = (long)Math.floor(diffs.lastKey() / step + EPS);
-        for (long i = least; i < biggest; i++) {
-            diffs.putIfAbsent(i * step, 0.0);
-        }
-        return diffs;
+            double maxEValue) throws IOException {
+        return averageDiffsByMass(matchScans(theoreticScans,
+                experimentalScans, tolerance, maxEValue), step, false);
     }
 
     public static TreeMap<Double, Double> matchRelDiffsByMass(
             Stream <TheoreticScan> theoreticScans,
             Iterator<ExperimentalScan> experimentalScans,
-            double accuracy,
+            Tolerance tolerance,
             double step,
-            double maxEValue) {
+            double maxEValue) throws IOException {
+        return averageDiffsByMass(matchScans(theoreticScans,
+                experimentalScans, tolerance, maxEValue), step, true);
+    }
+
+    /**
+     * Averages the differences of matches grouped by the theoretic mass.
+     * @param relative true to measure the differences in millionth
+     *                 shares of the theoretic mass, false for daltons.
+     */
+    private static TreeMap<Double, Double> averageDiffsByMass(
+            Pipeline<MatchBatch> batches, double step, boolean relative)
+            throws IOException {
         final double EPS = 1e-9;
-        TreeMap<Double, Double> diffs = getPeakMatchesStream(
-                theoreticScans, experimentalScans, accuracy, maxEValue)
-                .collect(Collectors.groupingBy(
-                        match -> round(match.getTheoreticMass(), step),
-                        TreeMap::new,
-                        Collectors.averagingDouble(point ->
-                                point.getDiff() /
-                                        (point.theoreticMass * 1e-6))
-                ));
+        TreeMap<Double, double[]> sums = batches
+                .collect("aggregate", TreeMap::new,
+                        (map, batch) -> {
+                            for (int i = 0; i < batch.size(); i++) {
+                                double mass = batch.getTheoreticMass(i);
+                                double diff = relative ?
+                                        batch.getDiff(i) / (mass * 1e-6) :
+                                        batch.getDiff(i);
+                                double[] sum = map.computeIfAbsent(
+                                        round(mass, step), key -> new double[2]);
+                                sum[0] += diff;
+                                sum[1]++;
+                            }
+                        },
+                        (map1, map2) -> map2.forEach((mass, sum) -> {
+                            double[] sum1 = map1.computeIfAbsent(mass,
+                                    key -> new double[2]);
+                            sum1[0] += sum[0];
+                            sum1[1] += sum[1];
+                        }));
+        TreeMap<Double, Double> diffs = new TreeMap<>();
+        sums.forEach((mass, sum) -> diffs.put(mass, sum[0] / sum[1]));
         long least = (long)Math.floor(diffs.firstKey() / step + EPS);
         long biggest = (long)Math.floor(diffs.lastKey() / step + EPS);
         for (long i = least; i < biggest; i++) {
@@ -441,23 +1035,11 @@ public class Analyzer {
         return step * Math.floor(val / step + EPS);
     }
 
-    /**
-     * Checks if the array contains the value with the given precision.
-     */
-    private static boolean contains(double[] arr, double key, double eps) {
-        int ind = Arrays.binarySearch(arr, key);
-        if (ind < 0) {
-            ind = -1 - ind;
-        }
-        return ind > 0 && Math.abs(arr[ind - 1] - key) < eps ||
-                ind < arr.length && Math.abs(arr[ind] - key) < eps;
-    }
-
     private static class Counter {
         private int counter = 0;
 
-        private void inc() {
-            counter++;
+        private void add(int count) {
+            counter += count;
         }
 
         private int get() {
@@ -478,6 +1060,12 @@ public class Analyzer {
             scans = program.getOutputIterator(file);
         }
 
+        public ScanStream(DeconvolutionProgram program,
+                          Iterator<ExperimentalScan> scans) {
+            this.program = program;
+            this.scans = scans;
+        }
+
         public DeconvolutionProgram getProgram() {
             return program;
         }
@@ -487,25 +1075,279 @@ public class Analyzer {
         }
     }
 
-    public static class PeakMatch {
-        private final double theoreticMass;
-        private final double experimentalMass;
+    /**
+     * The annotation of a scan. The matches are found when it is made,
+     * the output is made by format(), so the two may run in different
+     * stages. An annotation found in the cache isn't matched again.
+     */
+    private static class Annotation {
+        // changes with the matching, so older annotations aren't reused
+        private static final String CACHE_TAG = "annotate 3";
+        private static final String MATCH_FORMAT = "%-3d %s\n";
+        private static final String SHIFTED_MATCH_FORMAT = "%-3d %s %+d\n";
+        private static final String SHIFTED_MATCHES_TEMPLATE =
+                "ISOTOPE_SHIFTED_MATCHES=%d\n";
+
+        private final TheoreticScan theoreticScan;
+        private final int isotopeErrors;
+        private final OutputFormat format;
+        private final ResultCache cache;
+        private ResultCache.Key key;
+        private byte[] output;
+        private List<IonMatch> matches;
+        private int unmatchedPeaks;
 
-        private PeakMatch(double theoreticMass, double experimentalMass) {
-            this.theoreticMass = theoreticMass;
-            this.experimentalMass = experimentalMass;
+        /**
+         * Matches a scan or gets its annotation from the cache.
+         * @param peaksKey the fingerprint of the peaks or null if they
+         *                 can't be cached.
+         */
+        private Annotation(TheoreticScan theoreticScan,
+                           ResultCache.Key peaksKey, double[] peaks,
+                           Tolerance tolerance, int isotopeErrors,
+                           OutputFormat format, ResultCache cache) {
+            this.theoreticScan = theoreticScan;
+            this.isotopeErrors = isotopeErrors;
+            this.format = format;
+            this.cache = peaksKey == null ? null : cache;
+            if (this.cache != null) {
+                // the raw inputs: the fields of the table row and the
+                // text of the scan, no ladder is built for the key
+                ResidueMassTable residueTable =
+                        theoreticScan.getResidueTable();
+                key = new ResultCache.Fingerprint()
+                        .add(CACHE_TAG)
+                        .add(tolerance.toString())
+                        .add(isotopeErrors)
+                        .add(format.name())
+                        .add(theoreticScan.getId())
+                        .add(theoreticScan.getPrsmId())
+                        .add(theoreticScan.getCharge())
+                        .add(theoreticScan.getPrecursorMass())
+                        .add(theoreticScan.getEValue())
+                        .add(theoreticScan.getStringSequence())
+                        .add(residueTable.getMasses())
+                        .add(residueTable.getWaterMass())
+                        .add(peaksKey)
+                        .getKey();
+                output = cache.get(key);
+                if (output != null) {
+                    return;
+                }
+            }
+
+            TheoreticScan.Ion[] theoreticIons = theoreticScan.getIons();
+            matches = new ArrayList<>();
+            if (isotopeErrors == 0) {
+                matchPeaks(theoreticIons, theoreticScan.getIonMasses(),
+                        peaks, tolerance);
+                return;
+            }
+            boolean[] matched = new boolean[peaks.length];
+            MassMatcher.sweep(theoreticScan.getIonMasses(), peaks,
+                    tolerance, isotopeErrors, (ion, peak, offset) -> {
+                        matches.add(new IonMatch(theoreticIons[ion],
+                                peaks[peak], offset));
+                        matched[peak] = true;
+                    });
+            for (boolean peakMatched: matched) {
+                if (!peakMatched) {
+                    unmatchedPeaks++;
+                }
+            }
         }
 
-        public double getTheoreticMass() {
-            return theoreticMass;
+        /**
+         * Matches every peak with the ions lying within the tolerance
+         * of the peak mass, bounds excluded, and orders the matches by
+         * ion mass; the matches of an ion keep the order of the peaks.
+         * This is the exact matching annotate has always done.
+         * @param ions the ions in ascending order of mass.
+         * @param ionMasses the masses of the ions.
+         * @param peaks the peaks in any order.
+         */
+        private void matchPeaks(TheoreticScan.Ion[] ions, double[] ionMasses,
+                                double[] peaks, Tolerance tolerance) {
+            int cursor = 0;
+            for (double peak: peaks) {
+                double error = tolerance.getError(peak);
+                cursor = MassMatcher.findLower(ionMasses, cursor,
+                        peak - error);
+                boolean matched = false;
+                for (int ion = cursor; ion < ionMasses.length &&
+                        ionMasses[ion] < peak + error; ion++) {
+                    matches.add(new IonMatch(ions[ion], peak, 0));
+                    matched = true;
+                }
+                if (!matched) {
+                    unmatchedPeaks++;
+                }
+            }
+            matches.sort(IonMatch.MASS_ASCENDING_ORDER);
         }
 
-        public double getExperimentalMass() {
-            return experimentalMass;
+        private byte[] format() throws IOException {
+            if (output != null) {
+                return output;
+            }
+            switch (format) {
+                case tsv:
+                    output = formatColumns();
+                    break;
+                case binary:
+                    output = formatRecords();
+                    break;
+                default:
+                    output = formatText().getBytes(StandardCharsets.UTF_8);
+            }
+            if (cache != null) {
+                cache.put(key, output);
+            }
+            return output;
         }
 
-        public double getDiff() {
-            return experimentalMass - theoreticMass;
+        private String formatText() throws IOException {
+            StringWriter annotationWriter = new StringWriter();
+            writeAnnotationHeader(annotationWriter, theoreticScan);
+            annotationWriter.write(BEGIN + MATCH_PAIR + "\n");
+            int shiftedMatches = 0;
+            for (int i = 0; i < matches.size(); i++) {
+                IonMatch match = matches.get(i);
+                if (isotopeErrors == 0) {
+                    annotationWriter.write(String.format(
+                            MATCH_FORMAT, i, match.toString()));
+                } else {
+                    annotationWriter.write(String.format(
+                            SHIFTED_MATCH_FORMAT, i, match.toString(),
+                            match.isotopeOffset));
+                }
+                if (match.isotopeOffset != 0) {
+                    shiftedMatches++;
+                }
+            }
+            annotationWriter.write(END + MATCH_PAIR + "\n");
+            annotationWriter.write(String.format(UNMATCHED_PEAKS_TEMPLATE,
+                    unmatchedPeaks));
+            if (isotopeErrors != 0) {
+                annotationWriter.write(String.format(
+                        SHIFTED_MATCHES_TEMPLATE, shiftedMatches));
+            }
+            annotationWriter.write(END + PRISM + "\n");
+            annotationWriter.write("\n");
+            return annotationWriter.toString();
+        }
+
+        private byte[] formatColumns() throws IOException {
+            RecordWriter lines = new RecordWriter();
+            for (int i = 0; i < matches.size(); i++) {
+                IonMatch match = matches.get(i);
+                lines.putNumber(theoreticScan.getId()).putChar('\t')
+                        .putNumber(i).putChar('\t')
+                        .putNumber(match.peakMass, MASS_DIGITS).putChar('\t')
+                        .putChar(match.ion.getType()).putChar('\t')
+                        .putNumber(match.ion.getNumber()).putChar('\t')
+                        .putNumber(match.ion.getMass(), MASS_DIGITS)
+                        .putChar('\t')
+                        .putNumber(match.isotopeOffset).putChar('\n');
+            }
+            return lines.toByteArray();
+        }
+
+        private byte[] formatRecords() throws IOException {
+            List<TheoreticScan.MassShift> modifications =
+                    theoreticScan.getModifications();
+            int shiftedMatches = 0;
+            for (IonMatch match: matches) {
+                if (match.isotopeOffset != 0) {
+                    shiftedMatches++;
+                }
+            }
+            RecordWriter records = new RecordWriter();
+            records.putByte('S').skip(3).putInt(theoreticScan.getId())
+                    .putInt(modifications.size()).putInt(matches.size())
+                    .putInt(unmatchedPeaks).putInt(shiftedMatches).skip(8);
+            for (TheoreticScan.MassShift shift: modifications) {
+                records.putByte('M').skip(3).putInt(theoreticScan.getId())
+                        .putInt(shift.getStart()).putInt(shift.getEnd())
+                        .putDouble(shift.getMass()).skip(8);
+            }
+            for (int i = 0; i < matches.size(); i++) {
+                IonMatch match = matches.get(i);
+                records.putByte('P').putByte(match.ion.getType())
+                        .putByte(match.isotopeOffset).skip(1)
+                        .putInt(theoreticScan.getId())
+                        .putInt(match.ion.getNumber()).putInt(i)
+                        .putDouble(match.peakMass)
+                        .putDouble(match.ion.getMass());
+            }
+            return records.toByteArray();
+        }
+    }
+
+    /**
+     * The programs that have found every ion of a theoretic scan.
+     */
+    private static class Finding {
+        private final TheoreticScan theoreticScan;
+        private final List<List<DeconvolutionProgram>> finders;
+
+        private Finding(TheoreticScan theoreticScan,
+                        List<List<DeconvolutionProgram>> finders) {
+            this.theoreticScan = theoreticScan;
+            this.finders = finders;
+        }
+
+        /**
+         * Makes the output for the scan.
+         * @param programs all the programs searched, in the order of the
+         *                 columns or the bits of the masks.
+         */
+        private byte[] format(OutputFormat format,
+                              List<DeconvolutionProgram> programs)
+                throws IOException {
+            TheoreticScan.Ion[] ions = theoreticScan.getIons();
+            if (format == OutputFormat.text) {
+                StringBuilder text = new StringBuilder();
+                text.append(BEGIN + PRISM + '\n');
+                text.append(String.format(SPECTRUM_ID,
+                        theoreticScan.getId()));
+                for (int i = 0; i < ions.length; i++) {
+                    text.append(String.format(ION_TITLE,
+                            ions[i].getType(), ions[i].getNumber(),
+                            ions[i].getMass()));
+                    for (DeconvolutionProgram program: finders.get(i)) {
+                        text.append(program.toString()).append('\n');
+                    }
+                }
+                text.append(END + PRISM + '\n');
+                text.append('\n');
+                return text.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            RecordWriter records = new RecordWriter();
+            for (int i = 0; i < ions.length; i++) {
+                if (format == OutputFormat.tsv) {
+                    records.putNumber(theoreticScan.getId()).putChar('\t')
+                            .putChar(ions[i].getType()).putChar('\t')
+                            .putNumber(ions[i].getNumber()).putChar('\t')
+                            .putNumber(ions[i].getMass(), MASS_DIGITS);
+                    for (DeconvolutionProgram program: programs) {
+                        records.putChar('\t').putChar(
+                                finders.get(i).contains(program) ? '1' : '0');
+                    }
+                    records.putChar('\n');
+                } else {
+                    int mask = 0;
+                    for (DeconvolutionProgram program: finders.get(i)) {
+                        mask |= 1 << programs.indexOf(program);
+                    }
+                    records.putInt(theoreticScan.getId())
+                            .putInt(ions[i].getNumber())
+                            .putByte(ions[i].getType()).skip(3)
+                            .putInt(mask)
+                            .putDouble(ions[i].getMass());
+                }
+            }
+            return records.toByteArray();
         }
     }
 
@@ -517,12 +1359,19 @@ public class Analyzer {
         public static final String STRING_FORMAT = "%-18f %c%-2d %-18f";
         private final TheoreticScan.Ion ion;
         private final double peakMass;
+        private final int isotopeOffset;
 
-        private IonMatch(TheoreticScan.Ion ion, double peakMass) {
+        private IonMatch(TheoreticScan.Ion ion, double peakMass,
+                         int isotopeOffset) {
             this.ion = ion;
             this.peakMass = peakMass;
+            this.isotopeOffset = isotopeOffset;
         }
 
+        private static final Comparator<IonMatch> MASS_ASCENDING_ORDER =
+                (match1, match2) -> TheoreticScan.Ion.MASS_ASCENDING_ORDER
+                        .compare(match1.ion, match2.ion);
+
         @Override
         public String toString() {
             return String.format(STRING_FORMAT,
@@ -531,9 +1380,5 @@ public class Analyzer {
                     ion.getNumber(),
                     ion.getMass());
         }
-
-        private static final Comparator<IonMatch> MASS_ASCENDING_ORDER = (match1, match2) ->
-            TheoreticScan.Ion.MASS_ASCENDING_ORDER.
-                    compare(match1.ion, match2.ion);
     }
 }
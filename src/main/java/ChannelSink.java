@@ -0,0 +1,129 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * An output sink writing to a channel through a RecordWriter.
+ */
+public class ChannelSink implements OutputSink {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final int MASS_DIGITS = 6;
+
+    private final RecordWriter writer;
+    private final boolean closingChannel;
+    private boolean failed;
+
+    private ChannelSink(RecordWriter writer, boolean closingChannel) {
+        this.writer = writer;
+        this.closingChannel = closingChannel;
+    }
+
+    /**
+     * Makes a sink writing to the standard output. The standard output
+     * is left open when the sink is closed. The sink doesn't go through
+     * System.out, so the two shouldn't be mixed.
+     */
+    public static ChannelSink stdout() {
+        return new ChannelSink(new RecordWriter(
+                new FileOutputStream(FileDescriptor.out).getChannel()),
+                false);
+    }
+
+    /**
+     * Makes a sink writing to a file replacing its content.
+     * @param path the path of the file.
+     * @throws IOException if the file can't be opened.
+     */
+    public static ChannelSink open(Path path) throws IOException {
+        return new ChannelSink(RecordWriter.open(path), true);
+    }
+
+    @Override
+    public OutputSink print(CharSequence text) {
+        try {
+            writer.putText(text);
+        } catch (IOException e) {
+            failed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink print(char c) {
+        try {
+            writer.putChar(c);
+        } catch (IOException e) {
+            failed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink print(long number) {
+        try {
+            writer.putNumber(number);
+        } catch (IOException e) {
+            failed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink print(double number) {
+        return print(Double.toString(number));
+    }
+
+    @Override
+    public OutputSink printMass(double mass) {
+        try {
+            writer.putNumber(mass, MASS_DIGITS);
+        } catch (IOException e) {
+            failed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink println() {
+        return print(LINE_SEPARATOR);
+    }
+
+    @Override
+    public OutputSink write(byte[] bytes) {
+        try {
+            writer.put(bytes);
+        } catch (IOException e) {
+            failed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public boolean checkError() {
+        flush();
+        return failed;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (closingChannel) {
+                writer.close();
+            } else {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+}
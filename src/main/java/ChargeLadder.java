@@ -0,0 +1,121 @@
+/**
+ * A class representing the theoretic ions of a scan expanded over a
+ * range of charge states. The m/z values of all the charge states are
+ * kept in a single ascending array; parallel arrays hold the index of
+ * the source ion and the charge of every value.
+ */
+public class ChargeLadder {
+    public static final double PROTON_MASS = 1.00727647;
+
+    private final double[] mzs;
+    private final int[] ionIndices;
+    private final int[] charges;
+
+    private ChargeLadder(double[] mzs, int[] ionIndices, int[] charges) {
+        this.mzs = mzs;
+        this.ionIndices = ionIndices;
+        this.charges = charges;
+    }
+
+    /**
+     * Builds a ladder for the given neutral ion masses and charges from
+     * 1 to maxCharge. Every charge state gives an ascending sequence of
+     * m/z values, so the sequences are merged with a heap over the
+     * charges instead of sorting the whole ladder.
+     * @param ionMasses neutral ion masses in ascending order.
+     * @param maxCharge the maximum charge to consider.
+     * @return the merged ladder.
+     */
+    public static ChargeLadder build(double[] ionMasses, int maxCharge) {
+        if (maxCharge < 1) {
+            maxCharge = 1;
+        }
+        int size = ionMasses.length * maxCharge;
+        double[] mzs = new double[size];
+        int[] ionIndices = new int[size];
+        int[] charges = new int[size];
+        if (ionMasses.length == 0) {
+            return new ChargeLadder(mzs, ionIndices, charges);
+        }
+
+        // heap of charge states ordered by their current m/z
+        int[] heap = new int[maxCharge];
+        int[] positions = new int[maxCharge + 1];
+        double[] heads = new double[maxCharge + 1];
+        int heapSize = 0;
+        for (int charge = maxCharge; charge >= 1; charge--) {
+            heads[charge] = toMz(ionMasses[0], charge);
+            heap[heapSize++] = charge;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, heads, i);
+        }
+
+        for (int k = 0; k < size; k++) {
+            int charge = heap[0];
+            mzs[k] = heads[charge];
+            ionIndices[k] = positions[charge];
+            charges[k] = charge;
+            int next = ++positions[charge];
+            if (next < ionMasses.length) {
+                heads[charge] = toMz(ionMasses[next], charge);
+            } else {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, heads, 0);
+        }
+        return new ChargeLadder(mzs, ionIndices, charges);
+    }
+
+    /**
+     * Converts a neutral mass to the m/z value of the given charge state.
+     */
+    public static double toMz(double mass, int charge) {
+        return (mass + charge * PROTON_MASS) / charge;
+    }
+
+    /**
+     * Gets the m/z values of the ladder.
+     * @return an array with all the m/z values in ascending order.
+     */
+    public double[] getMzs() {
+        return mzs;
+    }
+
+    /**
+     * Gets the index of the ion a ladder value was made from.
+     * @param pos the position in the ladder.
+     * @return the index of the ion in the array it was built from.
+     */
+    public int getIonIndex(int pos) {
+        return ionIndices[pos];
+    }
+
+    public int getCharge(int pos) {
+        return charges[pos];
+    }
+
+    public int size() {
+        return mzs.length;
+    }
+
+    private static void siftDown(int[] heap, int size, double[] heads,
+                                 int pos) {
+        int item = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]]) {
+                child++;
+            }
+            if (heads[heap[child]] >= heads[item]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = item;
+    }
+}
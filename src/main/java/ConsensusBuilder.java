@@ -0,0 +1,262 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A class merging the peak lists several programs have found in a scan
+ * into a consensus spectrum. The sorted lists are merged with a heap
+ * and the merged peaks are clustered: a cluster starts at its lightest
+ * peak and takes all the following peaks within the tolerance of it.
+ * A consensus peak is the mean mass of a cluster, its support is the
+ * number of the programs that have a peak in the cluster.
+ */
+public class ConsensusBuilder {
+    private static final String SCAN_FORMAT = "BEGIN IONS\nID=%d\nSCANS=%d\n" +
+            "PRECURSOR_CHARGE=%d\nPRECURSOR_MASS=%.5f\n";
+    private static final String PEAK_FORMAT = "%.5f\t%d\t1\n";
+    private static final String SCAN_END = "END IONS\n\n";
+
+    private final Tolerance tolerance;
+    private final int minSupport;
+
+    /**
+     * Makes a builder.
+     * @param tolerance the tolerance of comparison of the peaks.
+     * @param minSupport the minimum number of programs that should have
+     *                   found a peak for it to get into the consensus.
+     */
+    public ConsensusBuilder(Tolerance tolerance, int minSupport) {
+        this.tolerance = tolerance;
+        this.minSupport = minSupport;
+    }
+
+    /**
+     * Merges the peak lists of a scan.
+     * @param peakLists the peaks found by every program in ascending
+     *                  order; null stands for a program that hasn't
+     *                  found the scan.
+     * @return the consensus peaks.
+     */
+    public Consensus merge(double[][] peakLists) {
+        int programs = peakLists.length;
+        int size = 0;
+        for (double[] peaks: peakLists) {
+            if (peaks != null) {
+                size += peaks.length;
+            }
+        }
+
+        // heap of programs ordered by their current peak
+        int[] heap = new int[programs];
+        int[] positions = new int[programs];
+        int heapSize = 0;
+        for (int program = 0; program < programs; program++) {
+            if (peakLists[program] != null && peakLists[program].length > 0) {
+                heap[heapSize++] = program;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, peakLists, positions, i);
+        }
+
+        double[] masses = new double[size];
+        int[] supports = new int[size];
+        int[] lastCluster = new int[programs];
+        Arrays.fill(lastCluster, -1);
+        int clusters = 0;
+        int cluster = -1;
+        double anchor = 0;
+        double sum = 0;
+        int count = 0;
+        int support = 0;
+        while (heapSize > 0) {
+            int program = heap[0];
+            double peak = peakLists[program][positions[program]];
+            if (++positions[program] == peakLists[program].length) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, peakLists, positions, 0);
+
+            if (count > 0 && peak - anchor >= tolerance.getError(anchor)) {
+                if (support >= minSupport) {
+                    masses[clusters] = sum / count;
+                    supports[clusters] = support;
+                    clusters++;
+                }
+                count = 0;
+                support = 0;
+                sum = 0;
+            }
+            if (count == 0) {
+                anchor = peak;
+                cluster++;
+            }
+            sum += peak;
+            count++;
+            if (lastCluster[program] != cluster) {
+                lastCluster[program] = cluster;
+                support++;
+            }
+        }
+        if (count > 0 && support >= minSupport) {
+            masses[clusters] = sum / count;
+            supports[clusters] = support;
+            clusters++;
+        }
+        return new Consensus(Arrays.copyOf(masses, clusters),
+                Arrays.copyOf(supports, clusters));
+    }
+
+    /**
+     * Builds the consensus of the outputs of several programs and writes
+     * it in the MSDeconv format. The streams are read together one scan
+     * at a time, so they must be sorted by scan id. The intensity column
+     * of the output holds the support of a peak. The precursor of a scan
+     * is taken from the first program that has found it.
+     * @param outputPath the path to write the consensus to.
+     * @param streams the outputs of the programs.
+     * @return the number of the scans written.
+     * @throws IOException in case of a read/write error.
+     * @throws IllegalStateException if a stream is not sorted by id.
+     */
+    public int build(Path outputPath, Analyzer.ScanStream... streams)
+            throws IOException {
+        int programs = streams.length;
+        ExperimentalScan[] heads = new ExperimentalScan[programs];
+        int[] lastIds = new int[programs];
+        Arrays.fill(lastIds, Integer.MIN_VALUE);
+        int written = 0;
+        double[][] peakLists = new double[programs][];
+        try (BufferedWriter writer = Files.newBufferedWriter(outputPath)) {
+            for (int program = 0; program < programs; program++) {
+                heads[program] = next(streams[program], lastIds, program);
+            }
+            while (true) {
+                int id = Integer.MAX_VALUE;
+                boolean found = false;
+                for (ExperimentalScan head: heads) {
+                    if (head != null && (!found || head.getId() < id)) {
+                        id = head.getId();
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    break;
+                }
+
+                ExperimentalScan precursorScan = null;
+                for (int program = 0; program < programs; program++) {
+                    peakLists[program] = null;
+                    if (heads[program] != null && heads[program].getId() == id) {
+                        if (precursorScan == null) {
+                            precursorScan = heads[program];
+                        }
+                        peakLists[program] = heads[program].getSortedPeaks();
+                        heads[program] = next(streams[program], lastIds,
+                                program);
+                    }
+                }
+
+                Consensus consensus = merge(peakLists);
+                writer.write(String.format(SCAN_FORMAT, id, id,
+                        precursorScan.getCharge(),
+                        precursorScan.getPrecursorMass()));
+                for (int i = 0; i < consensus.size(); i++) {
+                    writer.write(String.format(PEAK_FORMAT,
+                            consensus.getMass(i), consensus.getSupport(i)));
+                }
+                writer.write(SCAN_END);
+                written++;
+            }
+        } catch (DeconvolutionProgram.ScanReadError e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        return written;
+    }
+
+    private static ExperimentalScan next(Analyzer.ScanStream stream,
+                                         int[] lastIds, int program) {
+        Iterator<ExperimentalScan> scans = stream.getScans();
+        if (!scans.hasNext()) {
+            return null;
+        }
+        ExperimentalScan scan = scans.next();
+        if (scan.getId() <= lastIds[program]) {
+            throw new IllegalStateException(stream.getProgram() +
+                    " scans are not sorted by id: " + scan.getId());
+        }
+        lastIds[program] = scan.getId();
+        return scan;
+    }
+
+    private static void siftDown(int[] heap, int heapSize,
+                                 double[][] peakLists, int[] positions,
+                                 int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && head(heap[left], peakLists, positions) <
+                    head(heap[smallest], peakLists, positions)) {
+                smallest = left;
+            }
+            if (right < heapSize && head(heap[right], peakLists, positions) <
+                    head(heap[smallest], peakLists, positions)) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            int tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    private static double head(int program, double[][] peakLists,
+                               int[] positions) {
+        return peakLists[program][positions[program]];
+    }
+
+    /**
+     * The consensus peaks of a scan in ascending order of the mass.
+     */
+    public static class Consensus {
+        private final double[] masses;
+        private final int[] supports;
+
+        private Consensus(double[] masses, int[] supports) {
+            this.masses = masses;
+            this.supports = supports;
+        }
+
+        public int size() {
+            return masses.length;
+        }
+
+        public double getMass(int i) {
+            return masses[i];
+        }
+
+        /**
+         * Gets the number of the programs that have found the i-th peak.
+         */
+        public int getSupport(int i) {
+            return supports[i];
+        }
+
+        /**
+         * Gets the masses of all the consensus peaks.
+         */
+        public double[] getMasses() {
+            return Arrays.copyOf(masses, masses.length);
+        }
+    }
+}
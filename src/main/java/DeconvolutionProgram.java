@@ -3,6 +3,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A enumeration of supported deconvolution programs.
@@ -16,13 +19,19 @@ public enum DeconvolutionProgram {
         private final String PRECURSOR_CHARGE_PREF = "PRECURSOR_CHARGE=";
 
         @Override
-        public Iterator<ExperimentalScan> getOutputIterator(final Path filePath) throws IOException {
+        protected String getScanMarker() {
+            return SCAN_BEGINNING;
+        }
+
+        @Override
+        public Iterator<ExperimentalScan> getOutputIterator(
+                final BufferedReader reader, final PeakFilter filter) {
             return new Iterator<ExperimentalScan>() {
                 private ExperimentalScan nextScan;
                 private BufferedReader resultsReader;
 
                 {
-                    resultsReader = Files.newBufferedReader(filePath);
+                    resultsReader = reader;
                     nextScan = readScan();
                 }
 
@@ -49,11 +58,11 @@ public enum DeconvolutionProgram {
                     int prsmId = 0;
                     int charge = 0;
                     double precursorMass = 0;
-                    double[] peaks;
-                    List<Double> peaksList = new ArrayList<>();
+                    PeakList peakList = new PeakList();
 
                     try {
                         while (scan == null && (line = resultsReader.readLine()) != null) {
+                            peakList.addSource(line);
                             if (line.startsWith(ID_PREF)) {
                                 id = Integer.valueOf(line.substring(ID_PREF.length()));
                                 continue;
@@ -69,18 +78,19 @@ public enum DeconvolutionProgram {
                                 continue;
                             }
                             if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
-                                String peak = line.substring(0, line.indexOf('\t'));
-                                peaksList.add(Double.valueOf(peak));
+                                String[] tokens = line.split("\t");
+                                peakList.add(Double.valueOf(tokens[0]),
+                                        tokens.length > 1 ?
+                                                Double.valueOf(tokens[1]) : 0,
+                                        tokens.length > 2 ?
+                                                parseCharge(tokens[2]) : 0,
+                                        Double.NaN);
                                 continue;
                             }
 
                             if (line.equals(SCAN_END)) {
-                                peaks = new double[peaksList.size()];
-                                for (int i = 0; i < peaks.length; i++) {
-                                    peaks[i] = peaksList.get(i);
-                                }
-                                scan = new ExperimentalScan(id, prsmId, charge, precursorMass,
-                                        peaks);
+                                scan = peakList.toScan(filter, id, prsmId,
+                                        charge, precursorMass, false);
                             }
                         }
                     } catch (IOException e) {
@@ -110,15 +120,20 @@ public enum DeconvolutionProgram {
         private final String TITLE_PREF = "TITLE=";
         private final String PEPMASS_PREF = "PEPMASS=";
 
+        @Override
+        protected String getScanMarker() {
+            return SCAN_BEGINNING;
+        }
+
         @Override
         public Iterator<ExperimentalScan> getOutputIterator(
-                final Path filePath) throws IOException {
+                final BufferedReader reader, final PeakFilter filter) {
             return new Iterator<ExperimentalScan>() {
                 private ExperimentalScan nextScan;
                 private BufferedReader resultsReader;
 
                 {
-                    resultsReader = Files.newBufferedReader(filePath);
+                    resultsReader = reader;
                     nextScan = readScan();
                 }
 
@@ -145,13 +160,13 @@ public enum DeconvolutionProgram {
                     int prsmId = 0;
                     int charge = 0;
                     double precursorMass = 0;
-                    double[] peaks;
-                    List<Double> peaksList = new ArrayList<>();
+                    PeakList peakList = new PeakList();
 
                     try {
                         while (scan == null && (line = resultsReader.readLine()) != null) {
+                            peakList.addSource(line);
                             if (line.startsWith(TITLE_PREF)) {
-                                String[] tokens = line.split(" ");
+                                String[] tokens = line.split("\\s+");
                                 String idToken = tokens[tokens.length - 1];
                                 id = Integer.valueOf(idToken.substring(5,
                                         idToken.length() - 1));
@@ -165,18 +180,19 @@ public enum DeconvolutionProgram {
                                 continue;
                             }
                             if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
-                                String peak = line.substring(0, line.indexOf(' '));
-                                peaksList.add(Double.valueOf(peak));
+                                String[] tokens = line.split("\\s+");
+                                peakList.add(Double.valueOf(tokens[0]),
+                                        tokens.length > 1 ?
+                                                Double.valueOf(tokens[1]) : 0,
+                                        tokens.length > 2 ?
+                                                parseCharge(tokens[2]) : 0,
+                                        Double.NaN);
                                 continue;
                             }
 
                             if (line.equals(SCAN_END)) {
-                                peaks = new double[peaksList.size()];
-                                for (int i = 0; i < peaks.length; i++) {
-                                    peaks[i] = peaksList.get(i);
-                                }
-                                scan = new ExperimentalScan(id, prsmId, charge,
-                                        precursorMass, peaks);
+                                scan = peakList.toScan(filter, id, prsmId,
+                                        charge, precursorMass, false);
                             }
                         }
                     } catch (IOException e) {
@@ -201,14 +217,23 @@ public enum DeconvolutionProgram {
     },
 
     Hardklor {
+        private final String SCAN_BEGINNING = "S\t";
+
         @Override
-        public Iterator<ExperimentalScan> getOutputIterator(Path filePath) throws IOException {
+        protected String getScanMarker() {
+            return SCAN_BEGINNING;
+        }
+
+        @Override
+        public Iterator<ExperimentalScan> getOutputIterator(
+                final BufferedReader reader, final PeakFilter filter)
+                throws IOException {
             return new Iterator<ExperimentalScan>() {
                 private String nextLine;
                 private BufferedReader scansReader;
 
                 {
-                    scansReader = Files.newBufferedReader(filePath);
+                    scansReader = reader;
                     nextLine = scansReader.readLine();
                 }
 
@@ -223,52 +248,199 @@ public enum DeconvolutionProgram {
                     int scanNumber = Integer.valueOf(tokens[1]);
                     double mass = Double.valueOf(tokens[4]);
                     int charge = Integer.valueOf(tokens[5]);
-                    List<Double> peaksList = new ArrayList<>();
+                    PeakList peakList = new PeakList();
+                    peakList.addSource(nextLine);
 
                     try {
                         nextLine = scansReader.readLine();
                         while (nextLine != null && nextLine.charAt(0) == 'P') {
+                            peakList.addSource(nextLine);
+                            // P, mass, charge, intensity, base isotope
+                            // peak, analysis window, deprecated,
+                            // modifications, correlation score
                             tokens = nextLine.split("\t");
-                            peaksList.add(Double.valueOf(tokens[1]));
+                            peakList.add(Double.valueOf(tokens[1]),
+                                    Double.valueOf(tokens[3]),
+                                    Integer.valueOf(tokens[2]),
+                                    tokens.length > 7 ? Double.valueOf(
+                                            tokens[tokens.length - 1]) :
+                                            Double.NaN);
                             nextLine = scansReader.readLine();
                         }
                     } catch (IOException e) {
                         throw new ScanReadError(e);
                     }
 
-                    double[] peaks = new double[peaksList.size()];
-                    for (int i = 0; i < peaks.length; i++) {
-                        peaks[i] = peaksList.get(i);
-                    }
-                    return new ExperimentalScan(scanNumber, 0, charge, mass, peaks);
+                    return peakList.toScan(filter, scanNumber, 0, charge,
+                            mass, true);
                 }
             };
         }
     };
 
+    /**
+     * Makes an iterator over the output of the program. The peaks pass
+     * the default PeakFilter.
+     * @param filePath the output file to read or a directory of output
+     *                 files read by the default ReadScheduler.
+     * @return an Iterator<ExperimentalScan> containing all the scans
+     * described in the file.
+     * @throws IOException if an error during reading the file occurs.
+     */
+    public Iterator<ExperimentalScan> getOutputIterator(Path filePath)
+            throws IOException {
+        return getOutputIterator(filePath, PeakFilter.getDefault(),
+                ReadScheduler.getDefault());
+    }
+
     /**
      * Makes an iterator over the output of the program.
-     * @param filePath the output file to read.
+     * @param filePath the output file to read or a directory of output
+     *                 files.
+     * @param filter the filter of the peaks of every scan.
+     * @param scheduler the scheduler reading the files of a directory.
      * @return an Iterator<ExperimentalScan> containing all the scans
      * described in the file.
      * @throws IOException if an error during reading the file occurs.
      */
-    public abstract Iterator<ExperimentalScan> getOutputIterator(Path filePath)
-            throws IOException;
+    public Iterator<ExperimentalScan> getOutputIterator(
+            Path filePath, PeakFilter filter, ReadScheduler scheduler)
+            throws IOException {
+        if (Files.isDirectory(filePath)) {
+            return readDirectory(filePath, filter, scheduler);
+        }
+        return getOutputIterator(Files.newBufferedReader(filePath), filter);
+    }
+
+    /**
+     * Makes an iterator over output of the program. The reader is
+     * closed when the iterator reaches its end. The peaks pass the
+     * default PeakFilter.
+     * @param reader the reader of the output.
+     * @return an Iterator<ExperimentalScan> containing all the scans
+     * read from the reader.
+     * @throws IOException if an error during reading occurs.
+     */
+    public Iterator<ExperimentalScan> getOutputIterator(
+            BufferedReader reader) throws IOException {
+        return getOutputIterator(reader, PeakFilter.getDefault());
+    }
+
+    /**
+     * Makes an iterator over output of the program. The reader is
+     * closed when the iterator reaches its end.
+     * @param reader the reader of the output.
+     * @param filter the filter of the peaks of every scan.
+     * @return an Iterator<ExperimentalScan> containing all the scans
+     * read from the reader.
+     * @throws IOException if an error during reading occurs.
+     */
+    public abstract Iterator<ExperimentalScan> getOutputIterator(
+            BufferedReader reader, PeakFilter filter) throws IOException;
+
+    /**
+     * Makes a stream over the output of the program. The file is
+     * memory-mapped and the stream splits it at the beginnings of
+     * scans, so it may be processed in parallel. The files of a
+     * directory are read at once by the default ReadScheduler and
+     * their scans come in the order of the file names. The peaks pass
+     * the default PeakFilter.
+     * @param filePath the output file or the directory of files to read.
+     * @return a Stream<ExperimentalScan> containing all the scans
+     * described in the file. The stream should be closed after use.
+     * @throws IOException if an error during opening the file occurs.
+     */
+    public Stream<ExperimentalScan> getOutputStream(Path filePath)
+            throws IOException {
+        return getOutputStream(filePath, PeakFilter.getDefault(),
+                ReadScheduler.getDefault());
+    }
+
+    /**
+     * Makes a stream over the output of the program like
+     * getOutputStream(Path) does.
+     * @param filePath the output file or the directory of files to read.
+     * @param filter the filter of the peaks of every scan.
+     * @param scheduler the scheduler reading the files of a directory.
+     * @return a Stream<ExperimentalScan> containing all the scans
+     * described in the file. The stream should be closed after use.
+     * @throws IOException if an error during opening the file occurs.
+     */
+    public Stream<ExperimentalScan> getOutputStream(
+            Path filePath, PeakFilter filter, ReadScheduler scheduler)
+            throws IOException {
+        if (Files.isDirectory(filePath)) {
+            ReadScheduler.Reading<ExperimentalScan> scans =
+                    readDirectory(filePath, filter, scheduler);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                    scans, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(scans::close);
+        }
+        ScanFileSpliterator spliterator = new ScanFileSpliterator(this,
+                filePath, filter);
+        return StreamSupport.stream(spliterator, false)
+                .onClose(spliterator::close);
+    }
+
+    /**
+     * Gets the beginning of the first line of a scan description in
+     * the output of the program.
+     */
+    protected abstract String getScanMarker();
+
+    private ReadScheduler.Reading<ExperimentalScan> readDirectory(
+            Path directory, PeakFilter filter, ReadScheduler scheduler)
+            throws IOException {
+        return scheduler.read(ReadScheduler.listFiles(directory),
+                file -> getOutputStream(file, filter, scheduler));
+    }
 
     /**
      * Reads a file with output of the program and collects all the scans
      * in a map from the number of the scan to tis ExperimentalScan
-     * representation.
+     * representation. The file is parsed in parallel.
      */
     public Map<Integer, ExperimentalScan> getOutputMap(Path path)
             throws IOException {
-        Map<Integer, ExperimentalScan> outputMap = new HashMap<>();
-        Iterator<ExperimentalScan> outputIterator = getOutputIterator(path);
-        outputIterator.forEachRemaining(scan ->
-            outputMap.put(scan.getId(), scan)
-        );
-        return outputMap;
+        return getOutputMap(path, PeakFilter.getDefault(),
+                ReadScheduler.getDefault());
+    }
+
+    /**
+     * Reads a file with output of the program into a map like
+     * getOutputMap(Path) does.
+     * @param filter the filter of the peaks of every scan.
+     * @param scheduler the scheduler reading the files of a directory.
+     */
+    public Map<Integer, ExperimentalScan> getOutputMap(
+            Path path, PeakFilter filter, ReadScheduler scheduler)
+            throws IOException {
+        try (Stream<ExperimentalScan> scans =
+                     getOutputStream(path, filter, scheduler)) {
+            return scans.parallel().collect(Collectors.toMap(Scan::getId,
+                    scan -> scan, (scan1, scan2) -> scan2, HashMap::new));
+        } catch (ScanReadError e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Parses the charge of a peak written as a number, possibly with a
+     * sign after it like 2+ in MGF files.
+     * @return the charge or 0 if the token is not a charge.
+     */
+    private static int parseCharge(String token) {
+        if (token.endsWith("+") || token.endsWith("-")) {
+            token = token.substring(0, token.length() - 1);
+        }
+        try {
+            return Integer.valueOf(token);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     /**
@@ -279,8 +451,76 @@ public enum DeconvolutionProgram {
             super();
         }
 
-        private ScanReadError(Throwable cause) {
+        ScanReadError(Throwable cause) {
             super(cause);
         }
     }
+
+    /**
+     * The peaks of a scan being read, kept in parallel primitive arrays.
+     */
+    private static class PeakList {
+        private double[] masses = new double[64];
+        private double[] intensities = new double[64];
+        private int[] charges = new int[64];
+        private double[] fitScores = new double[64];
+        private int size = 0;
+        private final ResultCache.Fingerprint source =
+                new ResultCache.Fingerprint();
+
+        /**
+         * Adds a line of the scan description to the fingerprint of the
+         * scan.
+         */
+        private void addSource(String line) {
+            source.add(line);
+        }
+
+        private void add(double mass, double intensity, int charge,
+                         double fitScore) {
+            if (size == masses.length) {
+                masses = Arrays.copyOf(masses, 2 * size);
+                intensities = Arrays.copyOf(intensities, 2 * size);
+                charges = Arrays.copyOf(charges, 2 * size);
+                fitScores = Arrays.copyOf(fitScores, 2 * size);
+            }
+            masses[size] = mass;
+            intensities[size] = intensity;
+            charges[size] = charge;
+            fitScores[size] = fitScore;
+            size++;
+        }
+
+        /**
+         * Makes a scan of the peaks passing a filter.
+         * @param hasFitScores whether the program reports fit scores.
+         */
+        private ExperimentalScan toScan(PeakFilter filter, int id,
+                                        int prsmId, int charge,
+                                        double precursorMass,
+                                        boolean hasFitScores) {
+            int[] kept = filter.select(intensities, size);
+            int count = kept == null ? size : kept.length;
+            double[] keptMasses = new double[count];
+            double[] keptIntensities = new double[count];
+            int[] keptCharges = new int[count];
+            double[] keptFitScores = hasFitScores ? new double[count] : null;
+            for (int i = 0; i < count; i++) {
+                int peak = kept == null ? i : kept[i];
+                keptMasses[i] = masses[peak];
+                keptIntensities[i] = intensities[peak];
+                keptCharges[i] = charges[peak];
+                if (hasFitScores) {
+                    keptFitScores[i] = fitScores[peak];
+                }
+            }
+            ResultCache.Key sourceKey = source
+                    .add(filter.getMaxPeaks())
+                    .add(filter.getMinRelativeIntensity())
+                    .getKey();
+            return new ExperimentalScan(id, prsmId, charge, precursorMass,
+                    keptMasses, keptIntensities, keptCharges, keptFitScores,
+                    sourceKey);
+        }
+    }
 }
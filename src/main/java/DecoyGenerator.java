@@ -0,0 +1,229 @@
+import java.util.Arrays;
+
+/**
+ * A class making decoy ion ladders for estimating the rate of random
+ * matches. The ladders are written into buffers owned by the calling
+ * thread, so generating a decoy allocates nothing.
+ */
+public class DecoyGenerator {
+    private static final double MIN_SHIFT = 10;
+    private static final double MAX_SHIFT = 50;
+
+    private static final ThreadLocal<Workspace> WORKSPACES =
+            ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * A kind of decoys.
+     */
+    public enum Type {
+        /**
+         * The target ladder moved by a random mass.
+         */
+        SHIFTED,
+        /**
+         * The ladder of the reversed sequence.
+         */
+        REVERSED,
+        /**
+         * The ladder of a randomly shuffled sequence.
+         */
+        SHUFFLED
+    }
+
+    private final Type type;
+    private final MatchKernel kernel;
+
+    public DecoyGenerator(Type type) {
+        this(type, MatchKernel.getDefault());
+    }
+
+    /**
+     * Makes a generator counting the matches with the given kernel.
+     */
+    public DecoyGenerator(Type type, MatchKernel kernel) {
+        this.type = type;
+        this.kernel = kernel;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the residue masses of a scan with every mass shift added to
+     * the first residue of its range.
+     * @param scan the scan to get the residues of.
+     * @return a new array with the residue masses.
+     */
+    public static double[] getShiftedResidues(TheoreticScan scan) {
+        double[] residues = scan.getResidueMasses();
+        for (TheoreticScan.MassShift shift: scan.getModifications()) {
+            if (shift.getStart() < residues.length) {
+                residues[shift.getStart()] += shift.getMass();
+            }
+        }
+        return residues;
+    }
+
+    /**
+     * Counts the target ions matched by the peaks. The target ladder
+     * contains the b- and y-ions of every cleavage of the residues, as
+     * the decoy ladders do.
+     * @param residues the residue masses of the sequence.
+     * @param waterMass the y-ion water mass.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @return the number of matched target ions.
+     */
+    public int countTargetMatches(double[] residues, double waterMass,
+                                  double[] peaks, Tolerance tolerance) {
+        Workspace workspace = WORKSPACES.get();
+        workspace.ensureCapacity(residues.length);
+        System.arraycopy(residues, 0, workspace.residues, 0, residues.length);
+        int length = makeLadder(workspace, residues.length, waterMass);
+        return kernel.countMatched(workspace.ladder, length, peaks,
+                tolerance);
+    }
+
+    /**
+     * Makes a decoy ladder and counts its ions matched by the peaks.
+     * @param residues the residue masses of the sequence.
+     * @param waterMass the y-ion water mass.
+     * @param seed the seed of the decoy; equal seeds give equal decoys.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @return the number of matched decoy ions.
+     */
+    public int countDecoyMatches(double[] residues, double waterMass,
+                                 long seed, double[] peaks,
+                                 Tolerance tolerance) {
+        Workspace workspace = WORKSPACES.get();
+        int n = residues.length;
+        workspace.ensureCapacity(n);
+        double[] work = workspace.residues;
+        long state = seed;
+        int length;
+        switch (type) {
+            case SHIFTED: {
+                System.arraycopy(residues, 0, work, 0, n);
+                length = makeLadder(workspace, n, waterMass);
+                state = nextRandom(state);
+                double shift = MIN_SHIFT + (MAX_SHIFT - MIN_SHIFT) *
+                        toUnit(state);
+                if ((nextRandom(state) & 1) == 0) {
+                    shift = -shift;
+                }
+                for (int i = 0; i < length; i++) {
+                    workspace.ladder[i] += shift;
+                }
+                break;
+            }
+            case REVERSED: {
+                for (int i = 0; i < n; i++) {
+                    work[i] = residues[n - 1 - i];
+                }
+                length = makeLadder(workspace, n, waterMass);
+                break;
+            }
+            default: {
+                System.arraycopy(residues, 0, work, 0, n);
+                for (int i = n - 1; i > 0; i--) {
+                    state = nextRandom(state);
+                    int j = (int) ((state >>> 1) % (i + 1));
+                    double tmp = work[i];
+                    work[i] = work[j];
+                    work[j] = tmp;
+                }
+                length = makeLadder(workspace, n, waterMass);
+                break;
+            }
+        }
+        return kernel.countMatched(workspace.ladder, length, peaks,
+                tolerance);
+    }
+
+    /**
+     * Makes a seed for a decoy of a scan.
+     */
+    public static long seed(int scanId, int decoy) {
+        return nextRandom(((long) scanId << 32) ^ decoy);
+    }
+
+    /**
+     * Builds the sorted b- and y-ion ladder of the residues stored in
+     * the workspace. The b-ions grow and the y-ions fall with the
+     * cleavage number, so they are merged linearly unless a negative
+     * mass shift breaks the order.
+     * @return the length of the ladder.
+     */
+    private static int makeLadder(Workspace workspace, int n,
+                                  double waterMass) {
+        double[] residues = workspace.residues;
+        double[] prefixes = workspace.prefixes;
+        double total = 0;
+        boolean ascending = true;
+        for (int i = 0; i < n; i++) {
+            total += residues[i];
+            prefixes[i] = total;
+            if (residues[i] < 0) {
+                ascending = false;
+            }
+        }
+
+        int cleavages = Math.max(n - 1, 0);
+        double[] ladder = workspace.ladder;
+        if (!ascending) {
+            for (int i = 0; i < cleavages; i++) {
+                ladder[2 * i] = prefixes[i];
+                ladder[2 * i + 1] = total - prefixes[i] + waterMass;
+            }
+            Arrays.sort(ladder, 0, 2 * cleavages);
+            return 2 * cleavages;
+        }
+
+        int b = 0;
+        int y = cleavages - 1;
+        int pos = 0;
+        while (b < cleavages || y >= 0) {
+            double yMass = y >= 0 ? total - prefixes[y] + waterMass : 0;
+            if (y < 0 || b < cleavages && prefixes[b] <= yMass) {
+                ladder[pos++] = prefixes[b++];
+            } else {
+                ladder[pos++] = yMass;
+                y--;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * A step of the splitmix64 generator.
+     */
+    private static long nextRandom(long state) {
+        long z = state + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double toUnit(long random) {
+        return (random >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Buffers of a thread reused for all the decoys it makes.
+     */
+    private static class Workspace {
+        private double[] residues = new double[0];
+        private double[] prefixes = new double[0];
+        private double[] ladder = new double[0];
+
+        private void ensureCapacity(int n) {
+            if (residues.length < n) {
+                residues = new double[n];
+                prefixes = new double[n];
+                ladder = new double[2 * n];
+            }
+        }
+    }
+}
@@ -1,16 +1,107 @@
+import java.util.Arrays;
+
 /**
  * A class representing a scan received from an experiment.
  */
 public class ExperimentalScan extends Scan {
     private double[] peaks;
+    private double[] intensities;
+    private int[] peakCharges;
+    private double[] fitScores;
+    private boolean sorted;
+    private final ResultCache.Key sourceKey;
 
     public ExperimentalScan(int id, int prsmId, int charge,
                             double precursorMass, double[] peaks) {
+        this(id, prsmId, charge, precursorMass, peaks, null, null, null);
+    }
+
+    /**
+     * Makes a scan with additional data about its peaks. The arrays are
+     * parallel to the array of peak masses; any of them may be null if
+     * the deconvolution program doesn't report the data.
+     */
+    public ExperimentalScan(int id, int prsmId, int charge,
+                            double precursorMass, double[] peaks,
+                            double[] intensities, int[] peakCharges,
+                            double[] fitScores) {
+        this(id, prsmId, charge, precursorMass, peaks, intensities,
+                peakCharges, fitScores, null);
+    }
+
+    /**
+     * Makes a scan read from a text.
+     * @param sourceKey the fingerprint of the text describing the scan
+     *                  and of the processing its peaks have passed.
+     */
+    public ExperimentalScan(int id, int prsmId, int charge,
+                            double precursorMass, double[] peaks,
+                            double[] intensities, int[] peakCharges,
+                            double[] fitScores, ResultCache.Key sourceKey) {
         super(id, prsmId, charge, precursorMass);
         this.peaks = peaks;
+        this.intensities = intensities;
+        this.peakCharges = peakCharges;
+        this.fitScores = fitScores;
+        this.sourceKey = sourceKey;
     }
 
     public double[] getPeaks() {
         return peaks;
     }
+
+    /**
+     * Gets the peak masses in ascending order. The peaks of a scan that
+     * has passed a PeakPreprocessor are sorted already, so they are
+     * returned as they are; otherwise a sorted copy is made.
+     * @return the sorted masses; the array must not be modified.
+     */
+    public double[] getSortedPeaks() {
+        if (!sorted) {
+            for (int i = 1; i < peaks.length; i++) {
+                if (peaks[i - 1] > peaks[i]) {
+                    double[] copy = Arrays.copyOf(peaks, peaks.length);
+                    Arrays.sort(copy);
+                    return copy;
+                }
+            }
+            sorted = true;
+        }
+        return peaks;
+    }
+
+    /**
+     * Gets the intensities of the peaks.
+     * @return an array parallel to getPeaks() or null if unknown.
+     */
+    public double[] getIntensities() {
+        return intensities;
+    }
+
+    /**
+     * Gets the charges the peaks were deconvolved from.
+     * @return an array parallel to getPeaks() with 0 for the peaks of
+     * unknown charge or null if no charges are known.
+     */
+    public int[] getPeakCharges() {
+        return peakCharges;
+    }
+
+    /**
+     * Gets the scores of the isotope envelope fits of the peaks.
+     * @return an array parallel to getPeaks() or null if unknown.
+     */
+    public double[] getFitScores() {
+        return fitScores;
+    }
+
+    /**
+     * Gets the fingerprint of the text the scan was read from and of the
+     * processing its peaks have passed. Results computed from the scan
+     * may be cached under it.
+     * @return the fingerprint or null if the scan wasn't read from text.
+     */
+    public ResultCache.Key getSourceKey() {
+        return sourceKey;
+    }
 }
@@ -0,0 +1,240 @@
+import java.util.Arrays;
+
+/**
+ * The b- and y-ions of a sequence in ascending order of masses, built in
+ * one pass over the characters of the sequence. The masses of the
+ * modifications are parsed in place, the y-ions are made from the
+ * prefix masses of the b-ions, and as the b-ions come in ascending order
+ * and the y-ions in descending one, the two are merged rather than
+ * sorted. The ladder is the one the sorting built: among the ions of
+ * equal masses the b-ions come first, then the ions go in the order
+ * they were made. A modification with a negative mass may break the
+ * order of the b-ions, then they are sorted as before.
+ */
+public class IonLadder {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15
+    };
+    // longer mantissas are not exact in a double
+    private static final int MAX_DIGITS = 15;
+
+    private final TheoreticScan.Ion[] ions;
+    private final double[] masses;
+
+    private IonLadder(TheoreticScan.Ion[] ions, double[] masses) {
+        this.ions = ions;
+        this.masses = masses;
+    }
+
+    /**
+     * Builds the ladder of a sequence. A letter is a residue, a group of
+     * residues in parentheses followed by a mass in square brackets is
+     * modified by the mass and gets no b-ions inside it. The last
+     * residue has no b-ion.
+     * @param sequence the sequence like in a PrSM table, A(BC)[15.99]D.
+     * @param residueTable the masses of the residues.
+     * @return the ions and their masses.
+     */
+    public static IonLadder build(String sequence,
+                                  ResidueMassTable residueTable) {
+        char[] chars = sequence.toCharArray();
+        double[] residueMasses = residueTable.getMasses();
+        int last = chars.length - 1;
+        double[] prefixMasses = new double[chars.length];
+        int[] prefixLengths = new int[chars.length];
+        int count = 0;
+        int acids = 0;
+        double prefixMass = 0.0;
+        boolean modified = false;
+        for (int pos = 0; pos < last; pos++) {
+            char c = chars[pos];
+            if (isLetter(c)) {
+                acids++;
+                // upper-case residues skip the case conversion of getMass(),
+                // the others and the ones with no mass go through it
+                double mass = c >= 'A' && c - 'A' < residueMasses.length ?
+                        residueMasses[c - 'A'] : Double.NaN;
+                prefixMass += Double.isNaN(mass) ?
+                        residueTable.getMass(c) : mass;
+                if (!modified) {
+                    prefixMasses[count] = prefixMass;
+                    prefixLengths[count++] = acids;
+                }
+            } else if (c == '(') {
+                modified = true;
+            } else if (c == ')') {
+                pos += 2;
+                int closing = indexOf(chars, ']', pos);
+                double shift = parseMass(chars, pos, closing);
+                if (Double.isNaN(shift)) {
+                    shift = Double.valueOf(sequence.substring(pos, closing));
+                }
+                prefixMass += shift;
+                pos = closing;
+                modified = false;
+                prefixMasses[count] = prefixMass;
+                prefixLengths[count++] = acids;
+            }
+        }
+        double totalMass = prefixMass;
+        if (isLetter(sequence.charAt(last))) {
+            acids++;
+            totalMass += residueTable.getMass(chars[last]);
+        }
+
+        double waterMass = residueTable.getWaterMass();
+        double[] suffixMasses = new double[count];
+        for (int i = 0; i < count; i++) {
+            suffixMasses[i] = totalMass - prefixMasses[i] + waterMass;
+        }
+        if (!isAscending(prefixMasses, count) ||
+                !isDescending(suffixMasses, count)) {
+            return sort(prefixMasses, prefixLengths, suffixMasses, count,
+                    acids);
+        }
+
+        TheoreticScan.Ion[] ions = new TheoreticScan.Ion[count * 2];
+        double[] masses = new double[count * 2];
+        int b = 0;
+        int y = count - 1;
+        int made = 0;
+        while (b < count || y >= 0) {
+            if (y < 0 || b < count && prefixMasses[b] <= suffixMasses[y]) {
+                masses[made] = prefixMasses[b];
+                ions[made++] = new TheoreticScan.Ion('B', prefixLengths[b],
+                        prefixMasses[b]);
+                b++;
+            } else {
+                // y-ions of equal masses keep the order they were made in
+                int first = y;
+                while (first > 0 &&
+                        suffixMasses[first - 1] == suffixMasses[y]) {
+                    first--;
+                }
+                for (int i = first; i <= y; i++) {
+                    masses[made] = suffixMasses[i];
+                    ions[made++] = new TheoreticScan.Ion('Y',
+                            acids - prefixLengths[i], suffixMasses[i]);
+                }
+                y = first - 1;
+            }
+        }
+        return new IonLadder(ions, masses);
+    }
+
+    /**
+     * Gets the ions in ascending order of masses.
+     */
+    public TheoreticScan.Ion[] getIons() {
+        return ions;
+    }
+
+    /**
+     * Gets the masses of the ions returned by getIons().
+     */
+    public double[] getMasses() {
+        return masses;
+    }
+
+    private static IonLadder sort(double[] prefixMasses, int[] prefixLengths,
+                                  double[] suffixMasses, int count,
+                                  int acids) {
+        TheoreticScan.Ion[] ions = new TheoreticScan.Ion[count * 2];
+        for (int i = 0; i < count; i++) {
+            ions[i] = new TheoreticScan.Ion('B', prefixLengths[i],
+                    prefixMasses[i]);
+            ions[i + count] = new TheoreticScan.Ion('Y',
+                    acids - prefixLengths[i], suffixMasses[i]);
+        }
+        Arrays.sort(ions, TheoreticScan.Ion.MASS_ASCENDING_ORDER);
+        double[] masses = new double[ions.length];
+        for (int i = 0; i < ions.length; i++) {
+            masses[i] = ions[i].getMass();
+        }
+        return new IonLadder(ions, masses);
+    }
+
+    private static boolean isAscending(double[] values, int length) {
+        for (int i = 1; i < length; i++) {
+            if (!(values[i - 1] <= values[i])) {
+                return false;
+            }
+        }
+        return length == 0 || !Double.isNaN(values[0]);
+    }
+
+    private static boolean isDescending(double[] values, int length) {
+        for (int i = 1; i < length; i++) {
+            if (!(values[i - 1] >= values[i])) {
+                return false;
+            }
+        }
+        return length == 0 || !Double.isNaN(values[0]);
+    }
+
+    /**
+     * Checks if a character is a letter as Character.isLetter() does,
+     * without the lookup for ASCII characters.
+     */
+    private static boolean isLetter(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z';
+        }
+        return Character.isLetter(c);
+    }
+
+    private static int indexOf(char[] chars, char c, int from) {
+        for (int i = Math.max(from, 0); i < chars.length; i++) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a mass like -18.0106 written with at most 15 digits. Such a
+     * mass is a quotient of two doubles holding integers exactly, so the
+     * division rounds it as Double.valueOf() does.
+     * @param from the position of the first character of the mass.
+     * @param to the position after the last character.
+     * @return the mass or NaN if it isn't written this way and has to
+     * be parsed by Double.valueOf().
+     */
+    private static double parseMass(char[] chars, int from, int to) {
+        if (from < 0 || to > chars.length || from >= to) {
+            return Double.NaN;
+        }
+        int pos = from;
+        boolean negative = chars[pos] == '-';
+        if (negative || chars[pos] == '+') {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        for (; pos < to; pos++) {
+            char c = chars[pos];
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_DIGITS) {
+                    return Double.NaN;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        double mass = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -mass : mass;
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The environment a command runs in: the sink to print results to, the
+ * settings of the job and the source of the input files. The
+ * experimental scans it gives have passed the PeakFilter and the
+ * PeakPreprocessor of the settings. A standalone context reads every
+ * file anew and streams it where possible. A sharing context parses
+ * every file once and hands the parsed scans to all the jobs asking for
+ * it with the same settings, so it suits running many commands over the
+ * same inputs. A context also records whether its job has failed.
+ *
+ * The peak store files a context opens are closed when the context is
+ * closed; a sharing context also closes them when they are released.
+ */
+public class JobContext implements Closeable {
+    private final OutputSink out;
+    private final Settings settings;
+    private final Map<List<Object>, Input> inputs;
+    private final List<Closeable> openedFiles;
+    private final Status status;
+
+    private JobContext(OutputSink out, Settings settings,
+                       Map<List<Object>, Input> inputs,
+                       List<Closeable> openedFiles, Status status) {
+        this.out = out;
+        this.settings = settings;
+        this.inputs = inputs;
+        this.openedFiles = openedFiles;
+        this.status = status;
+    }
+
+    /**
+     * Makes a context reading every file anew with the default settings.
+     * @param out the sink to print results to.
+     */
+    public static JobContext standalone(OutputSink out) {
+        return new JobContext(out, Settings.defaults(), null,
+                Collections.synchronizedList(new ArrayList<>()),
+                new Status());
+    }
+
+    /**
+     * Makes a context keeping all the files it has parsed until they
+     * are released.
+     * @param out the sink to print results to.
+     * @param settings the settings of the jobs.
+     */
+    public static JobContext sharing(OutputSink out, Settings settings) {
+        return new JobContext(out, settings, new ConcurrentHashMap<>(),
+                null, new Status());
+    }
+
+    /**
+     * Makes a context of another job: it prints to another sink, has a
+     * status of its own and shares the settings and the parsed inputs
+     * with this one.
+     * @param jobOut the sink to print results to.
+     */
+    public JobContext withOut(OutputSink jobOut) {
+        return new JobContext(jobOut, settings, inputs, openedFiles,
+                new Status());
+    }
+
+    /**
+     * Makes a context of the same job running with other settings.
+     * @param jobSettings the settings to use.
+     */
+    public JobContext withSettings(Settings jobSettings) {
+        return new JobContext(out, jobSettings, inputs, openedFiles, status);
+    }
+
+    public OutputSink getOut() {
+        return out;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Tells whether the context keeps the parsed inputs for other jobs.
+     */
+    public boolean isSharing() {
+        return inputs != null;
+    }
+
+    /**
+     * Prints an error message and marks the job as failed.
+     * @param message the description of the error.
+     */
+    public void fail(String message) {
+        String text = String.valueOf(message);
+        out.println(text);
+        status.fail(text);
+    }
+
+    /**
+     * Gets the first error of the job.
+     * @return the error message or null if the job hasn't failed.
+     */
+    public String getFailure() {
+        return status.failure;
+    }
+
+    public boolean hasFailed() {
+        return status.failure != null;
+    }
+
+    /**
+     * Drops all the parsed inputs read from a file, so the memory they
+     * take is freed once the jobs using them finish. A job asking for
+     * the file later parses it anew.
+     * @param filePath the file to release.
+     */
+    public void release(Path filePath) {
+        if (inputs != null) {
+            Path absolutePath = filePath.toAbsolutePath();
+            inputs.entrySet().removeIf(input -> {
+                if (!input.getKey().get(1).equals(absolutePath)) {
+                    return false;
+                }
+                input.getValue().close();
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Closes the peak store files opened by the context and by the
+     * contexts made from it. A sharing context drops all its inputs.
+     */
+    @Override
+    public void close() {
+        if (inputs != null) {
+            inputs.values().forEach(Input::close);
+            inputs.clear();
+        } else {
+            synchronized (openedFiles) {
+                openedFiles.forEach(JobContext::closeQuietly);
+                openedFiles.clear();
+            }
+        }
+    }
+
+    /**
+     * Makes an iterator over the output of a program.
+     * @see DeconvolutionProgram#getOutputIterator(Path)
+     */
+    public Iterator<ExperimentalScan> getOutputIterator(
+            DeconvolutionProgram program, Path filePath) throws IOException {
+        if (inputs == null) {
+            return settings.preprocessor.apply(program.getOutputIterator(
+                    filePath, settings.peakFilter, settings.scheduler));
+        }
+        return getScans(program, filePath).iterator();
+    }
+
+    /**
+     * Makes a stream over the output of a program.
+     * @see DeconvolutionProgram#getOutputStream(Path)
+     */
+    public Stream<ExperimentalScan> getOutputStream(
+            DeconvolutionProgram program, Path filePath) throws IOException {
+        if (inputs == null) {
+            return program.getOutputStream(filePath, settings.peakFilter,
+                    settings.scheduler).map(settings.preprocessor::process);
+        }
+        return getScans(program, filePath).stream();
+    }
+
+    /**
+     * Collects the output of a program into a map from scan ids.
+     * @see DeconvolutionProgram#getOutputMap(Path)
+     */
+    public Map<Integer, ExperimentalScan> getOutputMap(
+            DeconvolutionProgram program, Path filePath) throws IOException {
+        if (inputs == null) {
+            Map<Integer, ExperimentalScan> scans = program.getOutputMap(
+                    filePath, settings.peakFilter, settings.scheduler);
+            PeakPreprocessor preprocessor = settings.preprocessor;
+            scans.replaceAll((id, scan) -> preprocessor.process(scan));
+            return scans;
+        }
+        return get(scanKey("map", program, filePath), () ->
+                getScans(program, filePath).stream().collect(Collectors.toMap(
+                        Scan::getId, scan -> scan, (scan1, scan2) -> scan2)));
+    }
+
+    /**
+     * Puts the output of a program into a peak store.
+     * @see PeakStore#build(Iterator)
+     */
+    public PeakStore getPeakStore(DeconvolutionProgram program,
+                                  Path filePath) throws IOException {
+        if (inputs == null) {
+            return PeakStore.build(getOutputIterator(program, filePath));
+        }
+        return get(scanKey("store", program, filePath), () ->
+                PeakStore.build(getScans(program, filePath).iterator()));
+    }
+
+    /**
+     * Opens a peak store file. The store is closed with the context.
+     * @see PeakStore#open(Path)
+     */
+    public PeakStore openPeakStore(Path storePath) throws IOException {
+        if (inputs == null) {
+            PeakStore store = PeakStore.open(storePath);
+            openedFiles.add(store);
+            return store;
+        }
+        return get(Arrays.asList("storeFile", storePath.toAbsolutePath()),
+                () -> PeakStore.open(storePath));
+    }
+
+    /**
+     * Reads a table of theoretic scans.
+     * @see TheoreticScan#readTable(Path, ResidueMassTable, ReadScheduler)
+     */
+    public Stream<TheoreticScan> readTable(Path tablePath) throws IOException {
+        if (inputs == null) {
+            return TheoreticScan.readTable(tablePath, settings.residueTable,
+                    settings.scheduler);
+        }
+        return getTheoreticScans(tablePath).stream();
+    }
+
+    /**
+     * Reads a table of theoretic scans into a map from scan ids.
+     * @see TheoreticScan#mapFromTable(Path)
+     */
+    public Map<Integer, TheoreticScan> mapFromTable(Path tablePath)
+            throws IOException {
+        if (inputs == null) {
+            try (Stream<TheoreticScan> scans = readTable(tablePath)) {
+                return scans.collect(Collectors.toMap(Scan::getId,
+                        scan -> scan));
+            }
+        }
+        return get(tableKey("tableMap", tablePath), () ->
+                getTheoreticScans(tablePath).stream().collect(
+                        Collectors.toMap(Scan::getId, scan -> scan)));
+    }
+
+    private List<ExperimentalScan> getScans(DeconvolutionProgram program,
+                                            Path filePath) throws IOException {
+        return get(scanKey("scans", program, filePath), () -> {
+            List<ExperimentalScan> scans = new ArrayList<>();
+            settings.preprocessor.apply(program.getOutputIterator(filePath,
+                    settings.peakFilter, settings.scheduler))
+                    .forEachRemaining(scans::add);
+            return scans;
+        });
+    }
+
+    private List<TheoreticScan> getTheoreticScans(Path tablePath)
+            throws IOException {
+        return get(tableKey("table", tablePath), () -> {
+            try (Stream<TheoreticScan> scans = TheoreticScan.readTable(
+                    tablePath, settings.residueTable, settings.scheduler)) {
+                return scans.collect(Collectors.toList());
+            }
+        });
+    }
+
+    /**
+     * Makes the key of an input made of the scans of a file. The file
+     * goes second, as release() expects.
+     */
+    private List<Object> scanKey(String kind, DeconvolutionProgram program,
+                                 Path filePath) {
+        return Arrays.asList(kind, filePath.toAbsolutePath(), program,
+                settings.peakFilter, settings.preprocessor);
+    }
+
+    private List<Object> tableKey(String kind, Path tablePath) {
+        return Arrays.asList(kind, tablePath.toAbsolutePath(),
+                settings.residueTable);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(List<Object> key, Loader<T> loader)
+            throws IOException {
+        Input input = inputs.computeIfAbsent(key, k -> new Input());
+        return (T) input.get(loader);
+    }
+
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    /**
+     * A parsed input. It is loaded by the first job asking for it; the
+     * other jobs wait for the loading to finish.
+     */
+    private static class Input {
+        private Object value;
+
+        private synchronized Object get(Loader<?> loader) throws IOException {
+            if (value == null) {
+                try {
+                    value = loader.load();
+                } catch (DeconvolutionProgram.ScanReadError e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            return value;
+        }
+
+        private synchronized void close() {
+            if (value instanceof Closeable) {
+                closeQuietly((Closeable) value);
+            }
+            value = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // the stores are read-only, nothing is lost
+        }
+    }
+
+    /**
+     * The outcome of a job, shared by the contexts of the job.
+     */
+    private static class Status {
+        private volatile String failure;
+
+        private synchronized void fail(String message) {
+            if (failure == null) {
+                failure = message;
+            }
+        }
+    }
+
+    /**
+     * The options a job runs with. The defaults are the ones set by the
+     * setDefault() methods of the classes. The settings are immutable;
+     * the with-methods make changed copies.
+     */
+    public static final class Settings {
+        private final ResidueMassTable residueTable;
+        private final PeakFilter peakFilter;
+        private final PeakPreprocessor preprocessor;
+        private final ReadScheduler scheduler;
+        private final OutputFormat format;
+        private final MatchKernel decoyKernel;
+        private final ResultCache cache;
+
+        private Settings(ResidueMassTable residueTable, PeakFilter peakFilter,
+                         PeakPreprocessor preprocessor,
+                         ReadScheduler scheduler, OutputFormat format,
+                         MatchKernel decoyKernel, ResultCache cache) {
+            this.residueTable = residueTable;
+            this.peakFilter = peakFilter;
+            this.preprocessor = preprocessor;
+            this.scheduler = scheduler;
+            this.format = format;
+            this.decoyKernel = decoyKernel;
+            this.cache = cache;
+        }
+
+        /**
+         * Gets the default settings, without a result cache.
+         */
+        public static Settings defaults() {
+            return new Settings(ResidueMassTable.getDefault(),
+                    PeakFilter.getDefault(), PeakPreprocessor.getDefault(),
+                    ReadScheduler.getDefault(), OutputFormat.getDefault(),
+                    MatchKernel.getDefault(), null);
+        }
+
+        public ResidueMassTable getResidueTable() {
+            return residueTable;
+        }
+
+        public Settings withResidueTable(ResidueMassTable table) {
+            return new Settings(table, peakFilter, preprocessor, scheduler,
+                    format, decoyKernel, cache);
+        }
+
+        public PeakFilter getPeakFilter() {
+            return peakFilter;
+        }
+
+        public Settings withPeakFilter(PeakFilter filter) {
+            return new Settings(residueTable, filter, preprocessor,
+                    scheduler, format, decoyKernel, cache);
+        }
+
+        public PeakPreprocessor getPreprocessor() {
+            return preprocessor;
+        }
+
+        public Settings withPreprocessor(PeakPreprocessor newPreprocessor) {
+            return new Settings(residueTable, peakFilter, newPreprocessor,
+                    scheduler, format, decoyKernel, cache);
+        }
+
+        public ReadScheduler getScheduler() {
+            return scheduler;
+        }
+
+        public Settings withScheduler(ReadScheduler newScheduler) {
+            return new Settings(residueTable, peakFilter, preprocessor,
+                    newScheduler, format, decoyKernel, cache);
+        }
+
+        public OutputFormat getFormat() {
+            return format;
+        }
+
+        public Settings withFormat(OutputFormat newFormat) {
+            return new Settings(residueTable, peakFilter, preprocessor,
+                    scheduler, newFormat, decoyKernel, cache);
+        }
+
+        public MatchKernel getDecoyKernel() {
+            return decoyKernel;
+        }
+
+        public Settings withDecoyKernel(MatchKernel newDecoyKernel) {
+            return new Settings(residueTable, peakFilter, preprocessor,
+                    scheduler, format, newDecoyKernel, cache);
+        }
+
+        /**
+         * Gets the cache of annotations.
+         * @return the cache or null if the results aren't cached.
+         */
+        public ResultCache getCache() {
+            return cache;
+        }
+
+        public Settings withCache(ResultCache newCache) {
+            return new Settings(residueTable, peakFilter, preprocessor,
+                    scheduler, format, decoyKernel, newCache);
+        }
+    }
+}
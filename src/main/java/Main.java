@@ -1,30 +1,251 @@
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Main {
+    private static final long DEFAULT_CACHE_MEGABYTES = 1024;
+    private static final String DONE = "done";
+
     public static void main(String[] args) throws IOException {
+        OutputSink out = ChannelSink.stdout();
+        JobContext context = JobContext.standalone(out);
+        try {
+            run(args, context);
+        } finally {
+            context.close();
+            out.flush();
+        }
+        if (context.hasFailed()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a command line: the options and the command with its
+     * arguments. The options change the settings of the context for
+     * this command only; the settings not given keep their values.
+     */
+    private static void run(String[] args, JobContext context)
+            throws IOException {
+        int pos = 0;
+        JobContext.Settings settings = context.getSettings();
+        Path cachePath = null;
+        long cacheMegabytes = DEFAULT_CACHE_MEGABYTES;
+        PeakFilter filter = settings.getPeakFilter();
+        int maxPeaks = filter.getMaxPeaks();
+        double minRelativeIntensity = filter.getMinRelativeIntensity();
+        PeakPreprocessor preprocessor = settings.getPreprocessor();
+        String preprocessing = null;
+        Tolerance preprocessTolerance = preprocessor.getTolerance();
+        while (pos < args.length && args[pos].startsWith("-")) {
+            switch (args[pos++]) {
+                case "-residues": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    settings = settings.withResidueTable(
+                            ResidueMassTable.load(Paths.get(args[pos++])));
+                    break;
+                }
+                case "-cache": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    cachePath = Paths.get(args[pos++]);
+                    break;
+                }
+                case "-cacheSize": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    cacheMegabytes = Long.valueOf(args[pos++]);
+                    break;
+                }
+                case "-topPeaks": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    maxPeaks = Integer.valueOf(args[pos++]);
+                    break;
+                }
+                case "-minIntensity": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    minRelativeIntensity = Double.valueOf(args[pos++]);
+                    break;
+                }
+                case "-preprocess": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    preprocessing = args[pos++];
+                    break;
+                }
+                case "-preprocessTolerance": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    preprocessTolerance = Tolerance.parse(args[pos++]);
+                    break;
+                }
+                case "-readers": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    settings = settings.withScheduler(
+                            new ReadScheduler(Integer.valueOf(args[pos++])));
+                    break;
+                }
+                case "-decoyKernel": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    String kernelName = args[pos++];
+                    MatchKernel kernel = null;
+                    if (kernelName.equals("scalar")) {
+                        kernel = MatchKernel.scalar();
+                    } else if (kernelName.equals("vector")) {
+                        kernel = MatchKernel.vector();
+                    }
+                    if (kernel == null) {
+                        context.fail("Kernel " + kernelName +
+                                " is not available.");
+                        return;
+                    }
+                    settings = settings.withDecoyKernel(kernel);
+                    break;
+                }
+                case "-format": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    settings = settings.withFormat(
+                            OutputFormat.valueOf(args[pos++]));
+                    break;
+                }
+                case "-threads": {
+                    if (pos == args.length) {
+                        usage(args, context);
+                        return;
+                    }
+                    if (context.isSharing()) {
+                        // the stage pools are shared by all the jobs
+                        context.fail("-threads can only be set for the " +
+                                "whole batch.");
+                        return;
+                    }
+                    for (String stage: args[pos++].split(",")) {
+                        String[] parts = stage.split("=");
+                        if (parts.length != 2) {
+                            usage(args, context);
+                            return;
+                        }
+                        Pipeline.setThreads(parts[0],
+                                Integer.valueOf(parts[1]));
+                    }
+                    break;
+                }
+                default: {
+                    usage(args, context);
+                    return;
+                }
+            }
+        }
+        if (maxPeaks != filter.getMaxPeaks() ||
+                minRelativeIntensity != filter.getMinRelativeIntensity()) {
+            settings = settings.withPeakFilter(
+                    new PeakFilter(maxPeaks, minRelativeIntensity));
+        }
+        if (preprocessing != null ||
+                preprocessTolerance != preprocessor.getTolerance()) {
+            List<String> steps = preprocessing == null ? null :
+                    Arrays.asList(preprocessing.split(","));
+            settings = settings.withPreprocessor(new PeakPreprocessor(
+                    preprocessTolerance,
+                    steps == null ? preprocessor.isMerging() :
+                            steps.contains("merge"),
+                    steps == null ? preprocessor.isDroppingAbovePrecursor() :
+                            steps.contains("precursor"),
+                    steps == null ? preprocessor.isDeisotoping() :
+                            steps.contains("deisotope")));
+        }
+        context = context.withSettings(settings);
+        args = Arrays.copyOfRange(args, pos, args.length);
         if (args.length == 0) {
-            Command.help.exec(args);
+            Command.help.exec(args, context);
             return;
         }
+        Command requestedCommand;
         try {
-            Command requestedCommand = Command.valueOf(args[0]);
-            requestedCommand.exec(args);
-        } catch (EnumConstantNotPresentException e) {
-            Command.help.exec(args);
+            requestedCommand = Command.valueOf(args[0]);
+        } catch (IllegalArgumentException e) {
+            usage(args, context);
+            return;
         }
+        if (requestedCommand == Command.batch && context.isSharing()) {
+            context.fail("A batch can't run another batch.");
+            return;
+        }
+        if (cachePath == null) {
+            requestedCommand.exec(args, context);
+            return;
+        }
+        try (ResultCache cache =
+                     new ResultCache(cachePath, cacheMegabytes << 20)) {
+            requestedCommand.exec(args,
+                    context.withSettings(settings.withCache(cache)));
+        }
+    }
+
+    /**
+     * Gets the peaks of a program description: a program name and its
+     * output or the word store and a file written by the store command.
+     */
+    private static PeakStore getPeakStore(String program, Path path,
+                                          JobContext context)
+            throws IOException {
+        if (program.equals(Command.store.name())) {
+            return context.openPeakStore(path);
+        }
+        return context.getPeakStore(DeconvolutionProgram.valueOf(program),
+                path);
+    }
+
+    /**
+     * Prints the help for a wrong command line and marks the job as
+     * failed.
+     */
+    private static void usage(String[] args, JobContext context) {
+        Command.help.exec(args, context);
+        context.fail("Wrong arguments: " + String.join(" ", args));
     }
 
     private enum Command {
         annotate {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length < 7) {
-                    Command.help.exec(args);
+                    usage(args, context);
                     return;
                 }
                 DeconvolutionProgram format =
@@ -33,17 +254,197 @@ public class Main {
                 Path theoreticScansTablePath = Paths.get(args[3]);
                 Path outputPath = Paths.get(args[4]);
                 double maxEValue = Double.valueOf(args[5]);
-                double accuracy = Double.valueOf(args[6]);
+                Tolerance tolerance = Tolerance.parse(args[6]);
+                int isotopeErrors = args.length > 7 ?
+                        Integer.valueOf(args[7]) : 0;
 
                 try {
                     Iterator<ExperimentalScan> outputIterator =
-                            format.getOutputIterator(deconvolutionResultsPath);
+                            context.getOutputIterator(format,
+                                    deconvolutionResultsPath);
                     Map<Integer, TheoreticScan> theoreticScans =
-                            TheoreticScan.mapFromTable(theoreticScansTablePath);
+                            context.mapFromTable(theoreticScansTablePath);
                     Analyzer.annotate(outputIterator, theoreticScans,
-                            outputPath, maxEValue, accuracy);
+                            outputPath, maxEValue, tolerance, isotopeErrors,
+                            context.getSettings().getFormat(),
+                            context.getSettings().getCache());
+                } catch (IOException e) {
+                    context.fail("File read/write error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <program name> <deconvolution file>" +
+                        " <table path> <output path> <max eValue> " +
+                        "<tolerance> [isotope errors] - annotate " +
+                        "deconvolution results using the given theoretic " +
+                        "scans table. Scans with eValue above the given " +
+                        "maximum are ignored. The supplied tolerance is " +
+                        "used for mass comparision. Peaks off by up to " +
+                        "the given number of isotope shifts are matched " +
+                        "and tagged with the offset.";
+            }
+        },
+
+        annotateCharged {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 7) {
+                    usage(args, context);
+                    return;
+                }
+                DeconvolutionProgram format =
+                        DeconvolutionProgram.valueOf(args[1]);
+                Path deconvolutionResultsPath = Paths.get(args[2]);
+                Path theoreticScansTablePath = Paths.get(args[3]);
+                Path outputPath = Paths.get(args[4]);
+                double maxEValue = Double.valueOf(args[5]);
+                Tolerance tolerance = Tolerance.parse(args[6]);
+
+                try {
+                    Iterator<ExperimentalScan> outputIterator =
+                            context.getOutputIterator(format,
+                                    deconvolutionResultsPath);
+                    Map<Integer, TheoreticScan> theoreticScans =
+                            context.mapFromTable(theoreticScansTablePath);
+                    Analyzer.annotateCharged(outputIterator, theoreticScans,
+                            outputPath, maxEValue, tolerance);
+                } catch (IOException e) {
+                    context.fail("File read/write error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <program name> <deconvolution file>" +
+                        " <table path> <output path> <max eValue> " +
+                        "<tolerance> - annotate m/z peaks with theoretic " +
+                        "ions in all the charge states up to the " +
+                        "precursor charge.";
+            }
+        },
+
+        annotateOpen {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 8) {
+                    usage(args, context);
+                    return;
+                }
+                DeconvolutionProgram format =
+                        DeconvolutionProgram.valueOf(args[1]);
+                Path deconvolutionResultsPath = Paths.get(args[2]);
+                Path theoreticScansTablePath = Paths.get(args[3]);
+                Path outputPath = Paths.get(args[4]);
+                double maxEValue = Double.valueOf(args[5]);
+                Tolerance precursorTolerance = Tolerance.parse(args[6]);
+                Tolerance tolerance = Tolerance.parse(args[7]);
+
+                try (Stream<ExperimentalScan> scans =
+                             context.getOutputStream(format,
+                                     deconvolutionResultsPath)) {
+                    PrecursorIndex theoreticScans = new PrecursorIndex(
+                            context.readTable(theoreticScansTablePath)
+                                    .collect(Collectors.toList()));
+                    Analyzer.annotateOpen(scans, theoreticScans, outputPath,
+                            maxEValue, precursorTolerance, tolerance);
+                } catch (IOException e) {
+                    context.fail("File read/write error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <program name> <deconvolution file>" +
+                        " <table path> <output path> <max eValue> " +
+                        "<precursor tolerance> <tolerance> - annotate " +
+                        "every scan with all the theoretic scans whose " +
+                        "precursor masses lie within the precursor " +
+                        "tolerance, regardless of the scan ids.";
+            }
+        },
+
+        isotopeShifts {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 7 || (args.length - 5) % 2 != 0) {
+                    usage(args, context);
+                    return;
+                }
+
+                Path tablePath = Paths.get(args[1]);
+                Tolerance tolerance = Tolerance.parse(args[2]);
+                int isotopeErrors = Integer.valueOf(args[3]);
+                double maxEValue = Double.valueOf(args[4]);
+                try {
+                    Map<Integer, TheoreticScan> theoreticScans =
+                            context.mapFromTable(tablePath);
+                    context.getOut().print("program\tmatched");
+                    for (int offset = -isotopeErrors; offset <= isotopeErrors; offset++) {
+                        context.getOut().printf("\t%+d", offset);
+                    }
+                    context.getOut().println("\tshifted share");
+                    for (int pos = 5; pos < args.length; pos += 2) {
+                        DeconvolutionProgram program =
+                                DeconvolutionProgram.valueOf(args[pos]);
+                        long[] counts = Analyzer.countIsotopeOffsets(
+                                theoreticScans,
+                                context.getOutputIterator(program,
+                                        Paths.get(args[pos + 1])),
+                                tolerance, isotopeErrors, maxEValue);
+                        long matched = 0;
+                        for (long count: counts) {
+                            matched += count;
+                        }
+                        context.getOut().print(program + "\t" + matched);
+                        for (long count: counts) {
+                            context.getOut().print("\t" + count);
+                        }
+                        long shifted = matched - counts[isotopeErrors];
+                        context.getOut().printf("\t%f\n", matched == 0 ? 0.0 :
+                                (double) shifted / matched);
+                    }
+                } catch (IOException e) {
+                    context.fail("File read error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <table path> <tolerance> <isotope errors> " +
+                        "<max eValue> <program outputs> - for every " +
+                        "program count theoretic ions matched exactly " +
+                        "and with every isotope offset. Program " +
+                        "description format: <name> <output filepath>.";
+            }
+        },
+
+        localize {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 7) {
+                    usage(args, context);
+                    return;
+                }
+                DeconvolutionProgram format =
+                        DeconvolutionProgram.valueOf(args[1]);
+                Path deconvolutionResultsPath = Paths.get(args[2]);
+                Path theoreticScansTablePath = Paths.get(args[3]);
+                Path outputPath = Paths.get(args[4]);
+                double maxEValue = Double.valueOf(args[5]);
+                Tolerance tolerance = Tolerance.parse(args[6]);
+
+                try {
+                    Iterator<ExperimentalScan> outputIterator =
+                            context.getOutputIterator(format,
+                                    deconvolutionResultsPath);
+                    Map<Integer, TheoreticScan> theoreticScans =
+                            context.mapFromTable(theoreticScansTablePath);
+                    Analyzer.localizeShifts(outputIterator, theoreticScans,
+                            outputPath, maxEValue, tolerance);
                 } catch (IOException e) {
-                    System.out.println("File read/write error.");
+                    context.fail("File read/write error.");
                 }
             }
 
@@ -51,19 +452,107 @@ public class Main {
             protected String getDescription() {
                 return name() + " <program name> <deconvolution file>" +
                         " <table path> <output path> <max eValue> " +
-                        "<accuracy> - annotate deconvolution results" +
-                        "using the given theoretic scans table. Scans" +
-                        "with eValue above the given maximum are " +
-                        "ignored. The supplied accuracy is used for " +
-                        "mass comparision.";
+                        "<tolerance> - find the best position of every " +
+                        "mass shift of the theoretic scans.";
+            }
+        },
+
+        score {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 7) {
+                    usage(args, context);
+                    return;
+                }
+                DeconvolutionProgram format =
+                        DeconvolutionProgram.valueOf(args[1]);
+                Path deconvolutionResultsPath = Paths.get(args[2]);
+                Path theoreticScansTablePath = Paths.get(args[3]);
+                Path outputPath = Paths.get(args[4]);
+                double maxEValue = Double.valueOf(args[5]);
+                Tolerance tolerance = Tolerance.parse(args[6]);
+
+                try {
+                    Iterator<ExperimentalScan> outputIterator =
+                            context.getOutputIterator(format,
+                                    deconvolutionResultsPath);
+                    Map<Integer, TheoreticScan> theoreticScans =
+                            context.mapFromTable(theoreticScansTablePath);
+                    Analyzer.score(outputIterator, theoreticScans,
+                            outputPath, maxEValue, tolerance);
+                } catch (IOException e) {
+                    context.fail("File read/write error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <program name> <deconvolution file>" +
+                        " <table path> <output path> <max eValue> " +
+                        "<tolerance> - write a table with matched ions, " +
+                        "sequence coverage, the longest run of confirmed " +
+                        "cleavages and a random match score of every scan.";
+            }
+        },
+
+        decoys {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 8 || args.length % 2 != 0) {
+                    usage(args, context);
+                    return;
+                }
+
+                Path tablePath = Paths.get(args[1]);
+                double maxEValue = Double.valueOf(args[2]);
+                DecoyGenerator generator = new DecoyGenerator(
+                        DecoyGenerator.Type.valueOf(args[3]),
+                        context.getSettings().getDecoyKernel());
+                int decoys = Integer.valueOf(args[4]);
+                Tolerance[] tolerances = Tolerance.parseList(args[5]);
+                try {
+                    Map<Integer, TheoreticScan> theoreticScans =
+                            context.mapFromTable(tablePath);
+                    context.getOut().println("program\ttolerance\ttarget\t" +
+                            "decoy mean\tfalse match rate");
+                    for (int pos = 6; pos < args.length; pos += 2) {
+                        DeconvolutionProgram program =
+                                DeconvolutionProgram.valueOf(args[pos]);
+                        long[][] counts = Analyzer.countDecoyMatches(
+                                context.getOutputIterator(program,
+                                        Paths.get(args[pos + 1])),
+                                theoreticScans, tolerances, generator,
+                                decoys, maxEValue);
+                        for (int i = 0; i < tolerances.length; i++) {
+                            double decoyMean = (double) counts[i][1] / decoys;
+                            context.getOut().printf("%s\t%s\t%d\t%f\t%f\n",
+                                    program, tolerances[i], counts[i][0],
+                                    decoyMean, counts[i][0] == 0 ? 0.0 :
+                                            decoyMean / counts[i][0]);
+                        }
+                    }
+                } catch (IOException e) {
+                    context.fail("File read error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <table path> <max eValue> <SHIFTED|" +
+                        "REVERSED|SHUFFLED> <decoys per scan> <tolerances> " +
+                        "<program outputs> - estimate the false match " +
+                        "rate of every program and tolerance with decoy " +
+                        "ion ladders. Tolerances are separated with ';'. " +
+                        "Program description format: <name> <output " +
+                        "filepath>.";
             }
         },
 
         count {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length < 2) {
-                    Command.help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
@@ -95,13 +584,13 @@ public class Main {
                 for (; pos < args.length; pos++) {
                     Path file = Paths.get(args[pos]);
                     try {
-                        Stream<TheoreticScan> scans = TheoreticScan.readTable(file);
+                        Stream<TheoreticScan> scans = context.readTable(file);
                         for (Predicate<TheoreticScan> filter : filters) {
                             scans = scans.filter(filter);
                         }
-                        System.out.println(scans.count());
+                        context.getOut().println(scans.count());
                     } catch (IOException e) {
-                        System.out.println("File reading error.");
+                        context.fail("File reading error.");
                     }
                 }
             }
@@ -115,167 +604,421 @@ public class Main {
             }
         },
 
+        summarize {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 2) {
+                    usage(args, context);
+                    return;
+                }
+                Path tablePath = Paths.get(args[1]);
+                double massStep = args.length > 2 ?
+                        Double.valueOf(args[2]) : 1000;
+                int lengthStep = args.length > 3 ?
+                        Integer.valueOf(args[3]) : 10;
+                TableSummary summary;
+                try (Stream<TheoreticScan> scans = context.readTable(tablePath)) {
+                    summary = TableSummary.of(scans, massStep, lengthStep);
+                } catch (IOException e) {
+                    context.fail("Error reading table.");
+                    return;
+                }
+
+                OutputSink out = context.getOut();
+                out.println("scans\t" + summary.getScans());
+                out.printf("modified\t%d\t%f\n", summary.getModifiedScans(),
+                        summary.getScans() == 0 ? 0.0 :
+                                (double) summary.getModifiedScans() /
+                                        summary.getScans());
+                out.println("mass shifts\t" + summary.getShifts());
+
+                out.println();
+                out.println("eValue\tscans\tcumulative");
+                long cumulative = summary.getNonPositiveEValues();
+                if (cumulative != 0) {
+                    out.println("0\t" + cumulative + "\t" + cumulative);
+                }
+                for (Map.Entry<Long, Long> decade:
+                        summary.getEValueDecades().entrySet()) {
+                    cumulative += decade.getValue();
+                    out.println("1e" + decade.getKey() + "\t" +
+                            decade.getValue() + "\t" + cumulative);
+                }
+
+                out.println();
+                out.println("charge\tscans");
+                summary.getCharges().forEach((charge, count) ->
+                        out.println(charge + "\t" + count));
+
+                out.println();
+                out.println("precursor mass\tscans");
+                summary.getPrecursorMasses().forEach((mass, count) ->
+                        out.printf("%f\t%d\n", mass, count));
+
+                out.println();
+                out.println("length\tscans");
+                summary.getLengths().forEach((length, count) ->
+                        out.println(length + "\t" + count));
+
+                out.println();
+                out.println("mass shift\tcount");
+                summary.getMassShifts().entrySet().stream()
+                        .sorted(Map.Entry.<Double, Long>comparingByValue()
+                                .reversed())
+                        .forEach(shift -> out.printf("%.2f\t%d\n",
+                                shift.getKey(), shift.getValue()));
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <table path> [precursor mass step] " +
+                        "[length step] - summarize a table in one pass: " +
+                        "the distributions of eValues by decades, of " +
+                        "charges, of precursor masses and of sequence " +
+                        "lengths in bins of the given widths (1000 Da and " +
+                        "10 residues by default), the share of modified " +
+                        "scans and the frequencies of mass shifts " +
+                        "rounded to 0.01 Da.";
+            }
+        },
+
         searchPeaks {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 try {
                     if (args.length < 4) {
-                        Command.help.exec(args);
+                        usage(args, context);
                         return;
                     }
-                    Path theoreticScansPath = Paths.get(args[1]);
-                    Path outputPath = Paths.get(args[2]);
-                    int pos = 3;
+                    int pos = 1;
+                    Tolerance tolerance = Tolerance.relative(1e-5);
+                    if (args[pos].equals("-tolerance")) {
+                        tolerance = Tolerance.parse(args[pos + 1]);
+                        pos += 2;
+                    }
+                    if (args.length < pos + 3) {
+                        usage(args, context);
+                        return;
+                    }
+                    Path theoreticScansPath = Paths.get(args[pos++]);
+                    Path outputPath = Paths.get(args[pos++]);
                     List<Analyzer.ScanStream> programRes = new ArrayList<>();
                     while (pos < args.length) {
                         DeconvolutionProgram program =
                                 DeconvolutionProgram.valueOf(args[pos++]);
                         Path file = Paths.get(args[pos++]);
-                        programRes.add(new Analyzer.ScanStream(program, file));
+                        programRes.add(new Analyzer.ScanStream(program,
+                                context.getOutputIterator(program, file)));
                     }
                     Analyzer.ScanStream[] scanStreams =
                             new Analyzer.ScanStream[programRes.size()];
                     for (int i = 0; i < programRes.size(); i++) {
                         scanStreams[i] = programRes.get(i);
                     }
-                    Analyzer.searchPeaks(theoreticScansPath, outputPath,
-                            scanStreams);
+                    try (Stream<TheoreticScan> theoreticScans =
+                                 context.readTable(theoreticScansPath)) {
+                        Analyzer.searchPeaks(theoreticScans, outputPath,
+                                tolerance, context.getSettings().getFormat(),
+                                scanStreams);
+                    }
                 } catch (IOException e) {
-                    System.out.println(e.getMessage());
+                    context.fail(e.getMessage());
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " [-tolerance <tolerance>] <theoretic " +
+                        "table path> <output path> <program outputs> - " +
+                        "for each peak list programs that have found it. " +
+                        "The default tolerance is 10ppm. Program " +
+                        "description format: <name> <output filepath>.";
+            }
+        },
+
+        consensus {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                try {
+                    int pos = 1;
+                    Tolerance tolerance = Tolerance.ppm(10);
+                    int minSupport = 1;
+                    while (pos + 1 < args.length && args[pos].startsWith("-")) {
+                        if (args[pos].equals("-tolerance")) {
+                            tolerance = Tolerance.parse(args[pos + 1]);
+                        } else if (args[pos].equals("-support")) {
+                            minSupport = Integer.valueOf(args[pos + 1]);
+                        } else {
+                            break;
+                        }
+                        pos += 2;
+                    }
+                    if (args.length < pos + 3 || (args.length - pos) % 2 != 1) {
+                        usage(args, context);
+                        return;
+                    }
+                    Path outputPath = Paths.get(args[pos++]);
+                    List<Analyzer.ScanStream> programRes = new ArrayList<>();
+                    while (pos < args.length) {
+                        DeconvolutionProgram program =
+                                DeconvolutionProgram.valueOf(args[pos++]);
+                        Path file = Paths.get(args[pos++]);
+                        programRes.add(new Analyzer.ScanStream(program,
+                                context.getOutputIterator(program, file)));
+                    }
+                    int written = new ConsensusBuilder(tolerance, minSupport)
+                            .build(outputPath, programRes.toArray(
+                                    new Analyzer.ScanStream[programRes.size()]));
+                    context.getOut().println(written);
+                } catch (IOException | IllegalStateException e) {
+                    context.fail(e.getMessage());
                 }
             }
 
             @Override
             protected String getDescription() {
-                return name() + " <theoretic table path> <output path>" +
-                        "<program outputs> - for each peak list " +
-                        "programs that have found it. Program description" +
-                        "format: <name> <output filepath>.";
+                return name() + " [-tolerance <tolerance>] [-support <n>] " +
+                        "<output path> <program outputs> - merge the peaks " +
+                        "found by the programs into consensus spectra in " +
+                        "the MSDeconv format, keeping peaks found by at " +
+                        "least n programs. The intensity column holds the " +
+                        "number of the supporting programs. The outputs " +
+                        "must be sorted by scan id. The default tolerance " +
+                        "is 10ppm. Program description format: <name> " +
+                        "<output filepath>.";
+            }
+        },
+
+        store {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 4) {
+                    usage(args, context);
+                    return;
+                }
+                DeconvolutionProgram program =
+                        DeconvolutionProgram.valueOf(args[1]);
+                Path deconvolutionResultsPath = Paths.get(args[2]);
+                Path storePath = Paths.get(args[3]);
+                try (PeakStore store = PeakStore.write(
+                        context.getOutputIterator(program,
+                                deconvolutionResultsPath), storePath)) {
+                    context.getOut().println(store.size());
+                } catch (IOException e) {
+                    context.fail("File read/write error.");
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <program name> <deconvolution file> " +
+                        "<store path> - write the sorted peaks of the " +
+                        "scans to a peak store file and print the number " +
+                        "of the scans. countFound, sweep and searchFound " +
+                        "map the file instead of parsing the output when " +
+                        "it is given as store <store path>. The peaks " +
+                        "pass the filter and the preprocessing set by the " +
+                        "options.";
             }
         },
 
         countFound {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length < 2) {
-                    Command.help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
                 int pos = 1;
                 boolean excluding = false;
-                double accuracy = Double.valueOf(args[pos++]);
+                Tolerance tolerance = Tolerance.parse(args[pos++]);
                 Path theoreticTable = Paths.get(args[pos++]);
-                List <Map<Integer, ExperimentalScan>> foundBy =
-                        new ArrayList<>();
-                List <Map<Integer, ExperimentalScan>> notFoundBy =
-                        new ArrayList<>();
+                List<PeakStore> foundBy = new ArrayList<>();
+                List<PeakStore> notFoundBy = new ArrayList<>();
                 while (pos < args.length) {
                     if (args[pos].equals("-exclude")) {
                         excluding= true;
                         pos++;
                     } else {
                         try {
-                            DeconvolutionProgram program =
-                                    DeconvolutionProgram.valueOf(args[pos++]);
-                            Map<Integer, ExperimentalScan> map =
-                                    program.getOutputMap(Paths.get(args[pos++]));
+                            String program = args[pos++];
+                            PeakStore store = getPeakStore(program,
+                                    Paths.get(args[pos++]), context);
                             if (excluding) {
-                                notFoundBy.add(map);
+                                notFoundBy.add(store);
                             } else {
-                                foundBy.add(map);
+                                foundBy.add(store);
                             }
                         } catch (IOException e) {
-                            System.out.println(e.getMessage());
+                            context.fail(e.getMessage());
                         }
                     }
                 }
-                try {
-                    System.out.println(Analyzer.countExclusivelyFound(
-                            theoreticTable, foundBy, notFoundBy, accuracy));
+                try (Stream<TheoreticScan> theoreticScans =
+                             context.readTable(theoreticTable)) {
+                    context.getOut().println(Analyzer.countExclusivelyFound(
+                            theoreticScans, foundBy, notFoundBy, tolerance));
                 } catch (IOException e) {
-                    System.out.println(e.getMessage());
+                    context.fail(e.getMessage());
                 }
             }
 
             @Override
             protected String getDescription() {
-                return name() + " <accuracy> <table path> " +
+                return name() + " <tolerance> <table path> " +
                         "<deconvolution output paths> - to list " +
                         "peaks that are present in the listed output" +
-                        "files. Output file format: <program> <path>. " +
-                        "Use -exclude option to exclude peaks in some " +
-                        "files.";
+                        "files. Output file format: <program> <path> " +
+                        "or store <store path>. Use -exclude option to " +
+                        "exclude peaks in some files.";
+            }
+        },
+
+        sweep {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 3) {
+                    usage(args, context);
+                    return;
+                }
+
+                int pos = 1;
+                boolean excluding = false;
+                Tolerance[] tolerances = Tolerance.parseList(args[pos++]);
+                Path theoreticTable = Paths.get(args[pos++]);
+                List<PeakStore> foundBy = new ArrayList<>();
+                List<PeakStore> notFoundBy = new ArrayList<>();
+                List<String> foundByNames = new ArrayList<>();
+                List<String> notFoundByNames = new ArrayList<>();
+                while (pos < args.length) {
+                    if (args[pos].equals("-exclude")) {
+                        excluding= true;
+                        pos++;
+                    } else {
+                        try {
+                            String program = args[pos++];
+                            Path file = Paths.get(args[pos++]);
+                            PeakStore store = getPeakStore(program, file,
+                                    context);
+                            // a store is named after its file
+                            String name =
+                                    program.equals(Command.store.name()) ?
+                                    file.getFileName().toString() : program;
+                            if (excluding) {
+                                notFoundBy.add(store);
+                                notFoundByNames.add(name);
+                            } else {
+                                foundBy.add(store);
+                                foundByNames.add(name);
+                            }
+                        } catch (IOException e) {
+                            context.fail(e.getMessage());
+                        }
+                    }
+                }
+                try (Stream<TheoreticScan> theoreticScans =
+                             context.readTable(theoreticTable)) {
+                    long[][] counts = Analyzer.sweepTolerances(theoreticScans,
+                            foundBy, notFoundBy, tolerances);
+                    context.getOut().print("tolerance\texclusive");
+                    for (String name: foundByNames) {
+                        context.getOut().print("\t" + name);
+                    }
+                    for (String name: notFoundByNames) {
+                        context.getOut().print("\t-" + name);
+                    }
+                    context.getOut().println();
+                    for (int i = 0; i < tolerances.length; i++) {
+                        context.getOut().print(tolerances[i]);
+                        for (long count: counts[i]) {
+                            context.getOut().print("\t" + count);
+                        }
+                        context.getOut().println();
+                    }
+                } catch (IOException e) {
+                    context.fail(e.getMessage());
+                }
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <tolerances> <table path> " +
+                        "<deconvolution output paths> - to count peaks " +
+                        "that are present in the listed output files " +
+                        "for every tolerance in one pass. Tolerances are " +
+                        "separated with ';'. Output file format: " +
+                        "<program> <path> or store <store path>. Use " +
+                        "-exclude option to exclude peaks in some files.";
             }
         },
 
         searchFound {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length < 2) {
-                    Command.help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
                 int pos = 1;
                 boolean excluding = false;
-                double accuracy = Double.valueOf(args[pos++]);
+                Tolerance tolerance = Tolerance.parse(args[pos++]);
                 Path theoreticTable = Paths.get(args[pos++]);
-                List <Map<Integer, ExperimentalScan>> foundBy =
-                        new ArrayList<>();
-                List <Map<Integer, ExperimentalScan>> notFoundBy =
-                        new ArrayList<>();
+                List<PeakStore> foundBy = new ArrayList<>();
+                List<PeakStore> notFoundBy = new ArrayList<>();
                 while (pos < args.length) {
                     if (args[pos].equals("-exclude")) {
                         excluding= true;
                         pos++;
                     } else {
                         try {
-                            DeconvolutionProgram program =
-                                    DeconvolutionProgram.valueOf(args[pos++]);
-                            Map<Integer, ExperimentalScan> map =
-                                    program.getOutputMap(Paths.get(args[pos++]));
+                            String program = args[pos++];
+                            PeakStore store = getPeakStore(program,
+                                    Paths.get(args[pos++]), context);
                             if (excluding) {
-                                notFoundBy.add(map);
+                                notFoundBy.add(store);
                             } else {
-                                foundBy.add(map);
+                                foundBy.add(store);
                             }
                         } catch (IOException e) {
-                            System.out.println(e.getMessage());
+                            context.fail(e.getMessage());
                         }
                     }
                 }
-                try {
+                try (Stream<TheoreticScan> theoreticScans =
+                             context.readTable(theoreticTable)) {
                     List<Peak> exclusivelyFound =
-                            Analyzer.searchExclusivelyFound(theoreticTable,
-                                    foundBy, notFoundBy, accuracy);
+                            Analyzer.searchExclusivelyFound(theoreticScans,
+                                    foundBy, notFoundBy, tolerance);
                     exclusivelyFound.forEach(peak ->
-                        System.out.printf("%d %c%d\n",
-                                peak.getScan().getId(),
-                                peak.getIon().getType(),
-                                peak.getIon().getNumber())
+                        context.getOut().print(peak.getScan().getId())
+                                .print(' ')
+                                .printIon(peak.getIon().getType(),
+                                        peak.getIon().getNumber())
+                                .print('\n')
                     );
                 } catch (IOException e) {
-                    System.out.println(e.getMessage());
+                    context.fail(e.getMessage());
                 }
             }
 
             @Override
             protected String getDescription() {
-                return name() + " <accuracy> <table path> " +
+                return name() + " <tolerance> <table path> " +
                         "<deconvolution output paths> - to search for " +
                         "peaks that are present in the listed output" +
-                        "files. Output file format: <program> <path>. " +
-                        "Use -exclude option to exclude peaks in some " +
-                        "files.";
+                        "files. Output file format: <program> <path> " +
+                        "or store <store path>. Use -exclude option to " +
+                        "exclude peaks in some files.";
             }
         },
 
         spectrum {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length < 3) {
-                    Command.help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
@@ -283,21 +1026,23 @@ public class Main {
                 int id = Integer.valueOf(args[2]);
                 try {
                     Optional<TheoreticScan> requiredScan =
-                            TheoreticScan.readTable(path)
+                            context.readTable(path)
                             .filter(scan -> scan.getId() == id)
                             .findFirst();
                     if (requiredScan.isPresent()) {
-                        System.out.println(requiredScan.get().getStringSequence());
-                        System.out.println(requiredScan.get().getPrecursorMass());
+                        context.getOut().println(requiredScan.get().getStringSequence());
+                        context.getOut().println(requiredScan.get().getPrecursorMass());
                         for (TheoreticScan.Ion ion: requiredScan.get().getIons()) {
-                            System.out.printf("%c%d %f\n",  ion.getType(),
-                                    ion.getNumber(), ion.getMass());
+                            context.getOut()
+                                    .printIon(ion.getType(), ion.getNumber())
+                                    .print(' ').printMass(ion.getMass())
+                                    .print('\n');
                         }
                     } else {
-                        System.out.println("No such scan found.");
+                        context.getOut().println("No such scan found.");
                     }
                 } catch (IOException e) {
-                    System.out.println("Error reading table.");
+                    context.fail("Error reading table.");
                 }
             }
 
@@ -310,9 +1055,9 @@ public class Main {
 
         listCoincidences {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length != 6) {
-                    help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
@@ -320,27 +1065,25 @@ public class Main {
                 DeconvolutionProgram program =
                         DeconvolutionProgram.valueOf(args[2]);
                 Path outputPath = Paths.get(args[3]);
-                double accuracy = Double.valueOf(args[4]);
+                Tolerance tolerance = Tolerance.parse(args[4]);
                 double maxEValue = Double.valueOf(args[5]);
                 try {
-                    Analyzer.getPeakMatchesStream(
-                            TheoreticScan.readTable(tablePath),
-                            program.getOutputIterator(outputPath),
-                            accuracy,
-                            maxEValue)
-                            .forEach(match -> System.out.println(
-                                    match.getTheoreticMass() + " " +
-                                            match.getExperimentalMass() +
-                                            " " + match.getDiff()));
+                    Analyzer.listCoincidences(
+                            context.readTable(tablePath),
+                            context.getOutputIterator(program, outputPath),
+                            tolerance,
+                            maxEValue,
+                            context.getSettings().getFormat(),
+                            context.getOut());
                 } catch (IOException e) {
-                    System.out.println("Error reading table.");
+                    context.fail("Error reading table.");
                 }
             }
 
             @Override
             protected String getDescription() {
                 return name() + "<table path> <program name> " +
-                        "<output filepath> <accuracy> <maxEValue> " +
+                        "<output filepath> <tolerance> <maxEValue> " +
                         "- to list all the coincidences between " +
                         "theoretic and experimental ions.";
             }
@@ -348,9 +1091,9 @@ public class Main {
 
         matchDiffDistribution {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length != 7) {
-                    help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
@@ -358,27 +1101,27 @@ public class Main {
                 DeconvolutionProgram program =
                         DeconvolutionProgram.valueOf(args[2]);
                 Path outputPath = Paths.get(args[3]);
-                double accuracy = Double.valueOf(args[4]);
+                Tolerance tolerance = Tolerance.parse(args[4]);
                 double step = Double.valueOf(args[5]);
                 double maxEValue = Double.valueOf(args[6]);
                 try {
                     Analyzer.matchDiffsDistribution(
-                            TheoreticScan.readTable(tablePath),
-                            program.getOutputIterator(outputPath),
-                            accuracy,
+                            context.readTable(tablePath),
+                            context.getOutputIterator(program, outputPath),
+                            tolerance,
                             step,
                             maxEValue).forEach((diff, count) ->
-                            System.out.printf("%f %f\t%d\n",
+                            context.getOut().printf("%f %f\t%d\n",
                                     diff,  diff + step , count));
                 } catch (IOException e) {
-                    System.out.println("Error reading table.");
+                    context.fail("Error reading table.");
                 }
             }
 
             @Override
             protected String getDescription() {
                 return name() + "<table path> <program name> " +
-                        "<output filepath> <accuracy> <distribution" +
+                        "<output filepath> <tolerance> <distribution" +
                         " step> <max eValue> - to get a distribution " +
                         "of differences between theoretic and " +
                         "experimental peaks.";
@@ -387,9 +1130,9 @@ public class Main {
 
         matchDiffByMass {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length != 7) {
-                    help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
@@ -397,27 +1140,27 @@ public class Main {
                 DeconvolutionProgram program =
                         DeconvolutionProgram.valueOf(args[2]);
                 Path outputPath = Paths.get(args[3]);
-                double accuracy = Double.valueOf(args[4]);
+                Tolerance tolerance = Tolerance.parse(args[4]);
                 double step = Double.valueOf(args[5]);
                 double maxEValue = Double.valueOf(args[6]);
                 try {
                     Analyzer.matchDiffsByMass(
-                            TheoreticScan.readTable(tablePath),
-                            program.getOutputIterator(outputPath),
-                            accuracy,
+                            context.readTable(tablePath),
+                            context.getOutputIterator(program, outputPath),
+                            tolerance,
                             step,
                             maxEValue).forEach((mass, count) ->
-                            System.out.printf("%f %f\t%f\n",
+                            context.getOut().printf("%f %f\t%f\n",
                                     mass,  mass + step , count));
                 } catch (IOException e) {
-                    System.out.println("Error reading table.");
+                    context.fail("Error reading table.");
                 }
             }
 
             @Override
             protected String getDescription() {
                 return name() + "<table path> <program name> " +
-                        "<output filepath> <accuracy> <distribution " +
+                        "<output filepath> <tolerance> <distribution " +
                         "step> <max eValue> - to get average " +
                         "differences between theoretic and " +
                         "experimental peaks.";
@@ -426,9 +1169,9 @@ public class Main {
 
         matchRelativeDiffByMass {
             @Override
-            protected void exec(String[] args) {
+            protected void exec(String[] args, JobContext context) {
                 if (args.length != 7) {
-                    help.exec(args);
+                    usage(args, context);
                     return;
                 }
 
@@ -436,27 +1179,27 @@ public class Main {
                 DeconvolutionProgram program =
                         DeconvolutionProgram.valueOf(args[2]);
                 Path outputPath = Paths.get(args[3]);
-                double accuracy = Double.valueOf(args[4]);
+                Tolerance tolerance = Tolerance.parse(args[4]);
                 double step = Double.valueOf(args[5]);
                 double maxEValue = Double.valueOf(args[6]);
                 try {
                     Analyzer.matchRelDiffsByMass(
-                            TheoreticScan.readTable(tablePath),
-                            program.getOutputIterator(outputPath),
-                            accuracy,
+                            context.readTable(tablePath),
+                            context.getOutputIterator(program, outputPath),
+                            tolerance,
                             step,
                             maxEValue).forEach((mass, count) ->
-                            System.out.printf("%f %f\t%f\n",
+                            context.getOut().printf("%f %f\t%f\n",
                                     mass,  mass + step , count));
                 } catch (IOException e) {
-                    System.out.println("Error reading table.");
+                    context.fail("Error reading table.");
                 }
             }
 
             @Override
             protected String getDescription() {
                 return name() + "<table path> <program name> " +
-                        "<output filepath> <accuracy> <distribution " +
+                        "<output filepath> <tolerance> <distribution " +
                         "step> <max eValue> - to get average " +
                         "differences between theoretic and " +
                         "experimental peaks as theoretic mass " +
@@ -464,12 +1207,184 @@ public class Main {
             }
         },
 
+        batch {
+            @Override
+            protected void exec(String[] args, JobContext context) {
+                if (args.length < 2) {
+                    usage(args, context);
+                    return;
+                }
+                int threads = args.length > 2 ? Integer.valueOf(args[2]) :
+                        Runtime.getRuntime().availableProcessors();
+                List<String[]> jobs = new ArrayList<>();
+                try {
+                    for (String line: Files.readAllLines(Paths.get(args[1]))) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            jobs.add(line.split("\\s+"));
+                        }
+                    }
+                } catch (IOException e) {
+                    context.fail("Error reading manifest.");
+                    return;
+                }
+
+                JobContext sharedContext = JobContext.sharing(context.getOut(),
+                        context.getSettings());
+                List<Set<Path>> inputs = new ArrayList<>();
+                Map<Path, Integer> uses = new ConcurrentHashMap<>();
+                for (String[] job: jobs) {
+                    Set<Path> jobInputs = getInputs(job);
+                    inputs.add(jobInputs);
+                    for (Path input: jobInputs) {
+                        uses.merge(input, 1, Integer::sum);
+                    }
+                }
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                List<ForkJoinTask<String>> results = new ArrayList<>();
+                for (int i = 0; i < jobs.size(); i++) {
+                    String[] job = jobs.get(i);
+                    Set<Path> jobInputs = inputs.get(i);
+                    results.add(pool.submit(() -> {
+                        String status = runJob(job, sharedContext);
+                        for (Path input: jobInputs) {
+                            // the last job using the input releases it
+                            if (uses.compute(input, (path, left) ->
+                                    left == 1 ? null : left - 1) == null) {
+                                sharedContext.release(input);
+                            }
+                        }
+                        return status;
+                    }));
+                }
+                int failed = 0;
+                for (int i = 0; i < jobs.size(); i++) {
+                    String status = results.get(i).join();
+                    if (!status.equals(DONE)) {
+                        failed++;
+                    }
+                    context.getOut().println(i + "\t" + jobs.get(i)[0] + "\t" +
+                            status);
+                }
+                pool.shutdown();
+                sharedContext.close();
+                if (failed > 0) {
+                    context.fail(failed + " of " + jobs.size() +
+                            " jobs failed.");
+                }
+            }
+
+            /**
+             * Runs a job printing its results to the file given by the
+             * first word of the job. The rest of the job is a command
+             * line, so it may set options of its own.
+             * @return the status of the job.
+             */
+            private String runJob(String[] job, JobContext sharedContext) {
+                if (job.length < 2) {
+                    return "failed: no command";
+                }
+                String[] commandArgs = Arrays.copyOfRange(job, 1, job.length);
+                try (OutputSink out = ChannelSink.open(Paths.get(job[0]))) {
+                    JobContext jobContext = sharedContext.withOut(out);
+                    run(commandArgs, jobContext);
+                    if (jobContext.hasFailed()) {
+                        return "failed: " + jobContext.getFailure();
+                    }
+                    return out.checkError() ? "failed: write error" : DONE;
+                } catch (IOException | RuntimeException e) {
+                    return "failed: " + e;
+                }
+            }
+
+            /**
+             * Gets the existing files named by the arguments of a job,
+             * which may be its inputs.
+             */
+            private Set<Path> getInputs(String[] job) {
+                Set<Path> inputs = new HashSet<>();
+                for (int i = 1; i < job.length; i++) {
+                    try {
+                        Path path = Paths.get(job[i]);
+                        if (Files.exists(path)) {
+                            inputs.add(path.toAbsolutePath());
+                        }
+                    } catch (InvalidPathException e) {
+                        // not a path
+                    }
+                }
+                return inputs;
+            }
+
+            @Override
+            protected String getDescription() {
+                return name() + " <manifest path> [threads] - run all the " +
+                        "jobs listed in the manifest in one process. A job " +
+                        "is a line like <result path> [options] <command> " +
+                        "<arguments>; its printed results are written to " +
+                        "the result path. The options of a job apply to " +
+                        "it only and override the ones given before the " +
+                        "batch, except -threads, which may only be given " +
+                        "for the whole batch. Jobs run in parallel and " +
+                        "parse every input file once; the parsed input is " +
+                        "dropped after the last job naming the file. The " +
+                        "status of every job is printed, and the batch " +
+                        "fails if any job has failed.";
+            }
+        },
+
         help {
             @Override
-            protected void exec(String[] args) {
-                System.out.println("Commands:");
+            protected void exec(String[] args, JobContext context) {
+                context.getOut().println("Options (before the command):");
+                context.getOut().println("-residues <file> - read residue masses " +
+                        "from a file with lines like mode=average, " +
+                        "fixed=carbamidomethyl, U=150.95364 or C=+57.021464.");
+                context.getOut().println("-cache <directory> - reuse the " +
+                        "annotations of unchanged scans kept in the " +
+                        "directory.");
+                context.getOut().println("-cacheSize <megabytes> - the bound of " +
+                        "the cache size, " + DEFAULT_CACHE_MEGABYTES +
+                        " by default.");
+                context.getOut().println("-topPeaks <n> - keep only the n most " +
+                        "intense peaks of every scan.");
+                context.getOut().println("-minIntensity <share> - drop the peaks " +
+                        "less intense than the share of the most intense " +
+                        "peak of the scan.");
+                context.getOut().println("-preprocess <steps> - clean the " +
+                        "peaks of every scan with the comma-separated steps: " +
+                        "merge (near-duplicate peaks), precursor (drop peaks " +
+                        "above the precursor mass), deisotope.");
+                context.getOut().println("-preprocessTolerance <tolerance> " +
+                        "- the tolerance of merging and deisotoping, 10ppm " +
+                        "by default.");
+                context.getOut().println("-readers <n> - the number of " +
+                        "files read at once when a directory is given in " +
+                        "place of a deconvolution output or a table, " +
+                        ReadScheduler.getDefault().getMaxOpenFiles() +
+                        " by default. The files of a directory make one " +
+                        "input in the order of their names.");
+                context.getOut().println("-decoyKernel <scalar|vector> - " +
+                        "the routine counting the peaks matching the target " +
+                        "and decoy ladders in decoys; the other commands " +
+                        "do not use it. The vector one needs the " +
+                        "vector classes and the jdk.incubator.vector module.");
+                context.getOut().println("-format <text|tsv|binary> - the " +
+                        "format of the results of annotate, searchPeaks " +
+                        "and listCoincidences, text by default. The tsv " +
+                        "and binary formats are described in OutputFormat.");
+                context.getOut().println("-threads <stage>=<n>[,...] - the " +
+                        "number of threads of the match, format and " +
+                        "aggregate stages of annotate, searchPeaks, " +
+                        "listCoincidences and the histograms, the number " +
+                        "of processors by default.");
+                context.getOut().println("Tolerances are given as 10ppm, " +
+                        "0.02Da or a plain share of the mass like 1e-5. " +
+                        "Mass-dependent tolerances list the parts with " +
+                        "the masses they start at: 0.01Da,1000:10ppm.");
+                context.getOut().println("Commands:");
                 for (Command command: Command.values()) {
-                    System.out.println(command.getDescription());
+                    context.getOut().println(command.getDescription());
                 }
             }
 
@@ -479,7 +1394,7 @@ public class Main {
             }
         };
 
-        protected abstract void exec(String[] args);
+        protected abstract void exec(String[] args, JobContext context);
 
         protected abstract String getDescription();
     }
@@ -0,0 +1,239 @@
+/**
+ * A class for matching sorted theoretic masses against sorted
+ * experimental peaks in a single merge-like sweep.
+ */
+public class MassMatcher {
+    /**
+     * The average mass difference between neighbouring isotopic peaks.
+     */
+    public static final double ISOTOPE_SHIFT = 1.00235;
+
+    /**
+     * A callback receiving coincidences found during a sweep.
+     */
+    public interface MatchListener {
+        /**
+         * Is called for every pair of a theoretic mass and a peak that
+         * lie within the accuracy. Pairs come in ascending order of the
+         * theoretic index and then of the peak index.
+         * @param theoreticIndex the index of the theoretic mass.
+         * @param peakIndex the index of the experimental peak.
+         */
+        void onMatch(int theoreticIndex, int peakIndex);
+    }
+
+    /**
+     * A callback receiving coincidences found during an isotope-tolerant
+     * sweep.
+     */
+    public interface IsotopeMatchListener {
+        /**
+         * Is called for every pair of a theoretic mass shifted by a
+         * whole number of isotope shifts and a peak that lie within the
+         * accuracy. For every theoretic index pairs come in ascending
+         * order of the offset.
+         * @param theoreticIndex the index of the theoretic mass.
+         * @param peakIndex the index of the experimental peak.
+         * @param isotopeOffset the number of isotope shifts between
+         *                      the theoretic mass and the peak.
+         */
+        void onMatch(int theoreticIndex, int peakIndex, int isotopeOffset);
+    }
+
+    /**
+     * Finds all the coincidences between two sorted mass arrays. The
+     * tolerance is queried once per theoretic mass; the bounds of the
+     * window are exclusive.
+     * @param theoretic theoretic masses in ascending order.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @param listener the callback to report matches to.
+     * @return the number of matches found.
+     */
+    public static int sweep(double[] theoretic, double[] peaks,
+                            Tolerance tolerance, MatchListener listener) {
+        int matches = 0;
+        int lo = 0;
+        for (int i = 0; i < theoretic.length; i++) {
+            double mass = theoretic[i];
+            double error = tolerance.getError(mass);
+            double lower = mass - error;
+            double upper = mass + error;
+            lo = findLower(peaks, lo, lower);
+            for (int j = lo; j < peaks.length && peaks[j] < upper; j++) {
+                listener.onMatch(i, j);
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds all the coincidences between two sorted mass arrays allowing
+     * the peaks to be off by up to isotopeErrors isotope shifts in
+     * either direction. Every offset keeps its own cursor over the
+     * peaks, so all the offsets are checked in one pass.
+     * @param theoretic theoretic masses in ascending order.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @param isotopeErrors the maximum number of isotope shifts.
+     * @param listener the callback to report matches to.
+     * @return the number of matches found.
+     */
+    public static int sweep(double[] theoretic, double[] peaks,
+                            Tolerance tolerance, int isotopeErrors,
+                            IsotopeMatchListener listener) {
+        int[] cursors = new int[2 * isotopeErrors + 1];
+        int matches = 0;
+        for (int i = 0; i < theoretic.length; i++) {
+            double error = tolerance.getError(theoretic[i]);
+            for (int offset = -isotopeErrors; offset <= isotopeErrors; offset++) {
+                double mass = theoretic[i] + offset * ISOTOPE_SHIFT;
+                double lower = mass - error;
+                double upper = mass + error;
+                int lo = findLower(peaks, cursors[offset + isotopeErrors], lower);
+                cursors[offset + isotopeErrors] = lo;
+                for (int j = lo; j < peaks.length && peaks[j] < upper; j++) {
+                    listener.onMatch(i, j, offset);
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Counts the theoretic masses having at least one peak within the
+     * tolerance. Unlike sweep() the method makes no callbacks, so it
+     * suits counting many ladders. The count is made by the default
+     * MatchKernel.
+     * @param theoretic theoretic masses in ascending order.
+     * @param length the number of theoretic masses to use.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @return the number of matched theoretic masses.
+     */
+    public static int countMatched(double[] theoretic, int length,
+                                   double[] peaks, Tolerance tolerance) {
+        return MatchKernel.getDefault().countMatched(theoretic, length,
+                peaks, tolerance);
+    }
+
+    /**
+     * Finds the distance from every theoretic mass to the nearest peak.
+     * @param theoretic theoretic masses in ascending order.
+     * @param peaks experimental masses in ascending order.
+     * @param distances the array to put the distances to; infinity is
+     *                  put if there are no peaks.
+     */
+    public static void nearestDistances(double[] theoretic, double[] peaks,
+                                        double[] distances) {
+        int next = 0;
+        for (int i = 0; i < theoretic.length; i++) {
+            double mass = theoretic[i];
+            while (next < peaks.length && peaks[next] < mass) {
+                next++;
+            }
+            double distance = Double.POSITIVE_INFINITY;
+            if (next > 0) {
+                distance = mass - peaks[next - 1];
+            }
+            if (next < peaks.length) {
+                distance = Math.min(distance, peaks[next] - mass);
+            }
+            distances[i] = distance;
+        }
+    }
+
+    /**
+     * Finds the distance from every theoretic mass to the nearest peak
+     * of a stored scan.
+     * @param theoretic theoretic masses in ascending order.
+     * @param peaks the peaks of the scan.
+     * @param distances the array to put the distances to; infinity is
+     *                  put if there are no peaks.
+     */
+    public static void nearestDistances(double[] theoretic,
+                                        PeakStore.Peaks peaks,
+                                        double[] distances) {
+        int size = peaks.size();
+        int next = 0;
+        for (int i = 0; i < theoretic.length; i++) {
+            double mass = theoretic[i];
+            while (next < size && peaks.get(next) < mass) {
+                next++;
+            }
+            double distance = Double.POSITIVE_INFINITY;
+            if (next > 0) {
+                distance = mass - peaks.get(next - 1);
+            }
+            if (next < size) {
+                distance = Math.min(distance, peaks.get(next) - mass);
+            }
+            distances[i] = distance;
+        }
+    }
+
+    /**
+     * Checks if a sorted array contains a value lying within the
+     * tolerance from the given mass.
+     * @param peaks experimental masses in ascending order.
+     * @param mass the mass to look for.
+     * @param tolerance the tolerance of comparison.
+     * @return true if a matching peak exists, false otherwise.
+     */
+    public static boolean contains(double[] peaks, double mass,
+                                   Tolerance tolerance) {
+        double error = tolerance.getError(mass);
+        int left = -1;
+        int right = peaks.length;
+        while (right - left > 1) {
+            int mid = (left + right) >>> 1;
+            if (peaks[mid] <= mass - error) {
+                left = mid;
+            } else {
+                right = mid;
+            }
+        }
+        return right < peaks.length && peaks[right] < mass + error;
+    }
+
+    /**
+     * Checks if a stored scan has a peak lying within the tolerance
+     * from the given mass.
+     * @param peaks the peaks of the scan.
+     * @param mass the mass to look for.
+     * @param tolerance the tolerance of comparison.
+     * @return true if a matching peak exists, false otherwise.
+     */
+    public static boolean contains(PeakStore.Peaks peaks, double mass,
+                                   Tolerance tolerance) {
+        double error = tolerance.getError(mass);
+        int left = -1;
+        int right = peaks.size();
+        while (right - left > 1) {
+            int mid = (left + right) >>> 1;
+            if (peaks.get(mid) <= mass - error) {
+                left = mid;
+            } else {
+                right = mid;
+            }
+        }
+        return right < peaks.size() && peaks.get(right) < mass + error;
+    }
+
+    /**
+     * Moves a cursor to the first peak above the lower bound. The lower
+     * bound usually grows with the mass, but a mass-dependent tolerance
+     * may make it step back a little, so the cursor can move both ways.
+     */
+    static int findLower(double[] peaks, int cursor, double lower) {
+        while (cursor > 0 && peaks[cursor - 1] > lower) {
+            cursor--;
+        }
+        while (cursor < peaks.length && peaks[cursor] <= lower) {
+            cursor++;
+        }
+        return cursor;
+    }
+}
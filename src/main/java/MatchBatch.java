@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+/**
+ * A class holding all the coincidences between the ions of a theoretic
+ * scan and the peaks of an experimental scan as parallel primitive
+ * arrays.
+ */
+public class MatchBatch {
+    private final int scanId;
+    private final double[] theoreticMasses;
+    private final double[] experimentalMasses;
+    private final int size;
+
+    private MatchBatch(int scanId, double[] theoreticMasses,
+                       double[] experimentalMasses, int size) {
+        this.scanId = scanId;
+        this.theoreticMasses = theoreticMasses;
+        this.experimentalMasses = experimentalMasses;
+        this.size = size;
+    }
+
+    /**
+     * Matches a pair of scans.
+     * @param pair the scans to match.
+     * @param tolerance the tolerance of comparison.
+     * @return a batch with all the matches of the pair.
+     */
+    public static MatchBatch match(ScanJoinSpliterator.Pair pair,
+                                   Tolerance tolerance) {
+        double[] ionMasses = pair.getTheoreticScan().getIonMasses();
+        double[] peaks = pair.getExperimentalScan().getSortedPeaks();
+
+        int capacity = Math.max(ionMasses.length, 16);
+        double[][] arrays = {new double[capacity], new double[capacity]};
+        int[] size = {0};
+        MassMatcher.sweep(ionMasses, peaks, tolerance, (ion, peak) -> {
+            if (size[0] == arrays[0].length) {
+                arrays[0] = Arrays.copyOf(arrays[0], 2 * size[0]);
+                arrays[1] = Arrays.copyOf(arrays[1], 2 * size[0]);
+            }
+            arrays[0][size[0]] = ionMasses[ion];
+            arrays[1][size[0]] = peaks[peak];
+            size[0]++;
+        });
+        return new MatchBatch(pair.getTheoreticScan().getId(), arrays[0],
+                arrays[1], size[0]);
+    }
+
+    public int getScanId() {
+        return scanId;
+    }
+
+    /**
+     * Gets the number of the matches in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    public double getTheoreticMass(int i) {
+        return theoreticMasses[i];
+    }
+
+    public double getExperimentalMass(int i) {
+        return experimentalMasses[i];
+    }
+
+    /**
+     * Gets the difference between the experimental and the theoretic
+     * masses of a match.
+     */
+    public double getDiff(int i) {
+        return experimentalMasses[i] - theoreticMasses[i];
+    }
+}
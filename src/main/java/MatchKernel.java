@@ -0,0 +1,91 @@
+/**
+ * A routine counting the theoretic masses matched by experimental
+ * peaks, the inner loop of decoy scoring. The scalar kernel is a
+ * merge-join over the two sorted arrays. A kernel built on the Vector
+ * API lives in the optional vector source set, which needs JDK 16 or
+ * newer; it is available when its class is on the class path and the
+ * jdk.incubator.vector module is added to the JVM. The scalar kernel
+ * stays the default: MatchKernelBenchmark hasn't shown the vector one
+ * to be faster on the ladder and peak list sizes of top-down scans.
+ */
+public abstract class MatchKernel {
+    private static final String VECTOR_KERNEL = "VectorMatchKernel";
+    private static final MatchKernel SCALAR = new Scalar();
+    private static final MatchKernel VECTOR = loadVector();
+
+    private static volatile MatchKernel defaultKernel = SCALAR;
+
+    /**
+     * Counts the theoretic masses having at least one peak within the
+     * tolerance. The bounds of the window are exclusive.
+     * @param theoretic theoretic masses in ascending order.
+     * @param length the number of theoretic masses to use.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @return the number of matched theoretic masses.
+     */
+    public abstract int countMatched(double[] theoretic, int length,
+                                     double[] peaks, Tolerance tolerance);
+
+    /**
+     * Gets the merge-join kernel.
+     */
+    public static MatchKernel scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * Gets the Vector API kernel.
+     * @return the kernel or null if it is not available in this JVM.
+     */
+    public static MatchKernel vector() {
+        return VECTOR;
+    }
+
+    /**
+     * Gets the kernel MassMatcher.countMatched() uses.
+     */
+    public static MatchKernel getDefault() {
+        return defaultKernel;
+    }
+
+    /**
+     * Sets the kernel MassMatcher.countMatched() uses.
+     */
+    public static void setDefault(MatchKernel kernel) {
+        defaultKernel = kernel;
+    }
+
+    private static MatchKernel loadVector() {
+        try {
+            return (MatchKernel) Class.forName(VECTOR_KERNEL)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // no vector source set or no jdk.incubator.vector module
+            return null;
+        }
+    }
+
+    private static class Scalar extends MatchKernel {
+        @Override
+        public int countMatched(double[] theoretic, int length,
+                                double[] peaks, Tolerance tolerance) {
+            int matched = 0;
+            int lo = 0;
+            for (int i = 0; i < length; i++) {
+                double mass = theoretic[i];
+                double error = tolerance.getError(mass);
+                lo = MassMatcher.findLower(peaks, lo, mass - error);
+                if (lo < peaks.length && peaks[lo] < mass + error) {
+                    matched++;
+                }
+            }
+            return matched;
+        }
+
+        @Override
+        public String toString() {
+            return "scalar";
+        }
+    }
+}
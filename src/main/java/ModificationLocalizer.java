@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class for localizing the mass shifts of a theoretic scan. Every
+ * position a shift may occupy inside its range is scored by the number
+ * of b- and y-ions matched by experimental peaks.
+ */
+public class ModificationLocalizer {
+    /**
+     * Finds the best position for every mass shift of a scan.
+     *
+     * The ranges of the shifts don't overlap, so an ion lying outside
+     * of all the ranges doesn't depend on the placement at all and an
+     * ion inside a range depends only on the position of that range's
+     * shift. The best joint placement is therefore made of the best
+     * placements of the single shifts. For a shift every cleavage in
+     * its range is scored twice, with the shift before and after the
+     * cleavage, and the scores of all the positions are then obtained
+     * with running sums over the prefix masses of the residues.
+     * @param scan the theoretic scan to localize the shifts of.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @return a list with a localization for every mass shift in the
+     * order of getModifications().
+     */
+    public static List<Localization> localize(TheoreticScan scan,
+                                              double[] peaks,
+                                              Tolerance tolerance) {
+        List<TheoreticScan.MassShift> shifts = scan.getModifications();
+        List<Localization> localizations = new ArrayList<>(shifts.size());
+        if (shifts.isEmpty()) {
+            return localizations;
+        }
+
+        double[] residues = scan.getResidueMasses();
+        double[] prefixes = new double[residues.length + 1];
+        for (int i = 0; i < residues.length; i++) {
+            prefixes[i + 1] = prefixes[i] + residues[i];
+        }
+        double waterMass = scan.getResidueTable().getWaterMass();
+        double totalMass = prefixes[residues.length];
+        for (TheoreticScan.MassShift shift: shifts) {
+            totalMass += shift.getMass();
+        }
+
+        double shiftsBefore = 0;
+        for (int index = 0; index < shifts.size(); index++) {
+            TheoreticScan.MassShift shift = shifts.get(index);
+            int first = shift.getStart();
+            int last = Math.min(shift.getEnd() - 1, residues.length) - 1;
+
+            // scoreAfter[k] and scoreBefore[k] are the matches of the
+            // cleavage after residue first + k when the shift lies
+            // after or before it
+            int cleavages = last - first;
+            int[] scoreAfter = new int[Math.max(cleavages, 0)];
+            int[] scoreBefore = new int[Math.max(cleavages, 0)];
+            for (int k = 0; k < cleavages; k++) {
+                double prefixMass = prefixes[first + k + 1] + shiftsBefore;
+                scoreAfter[k] = countIonPair(prefixMass, totalMass,
+                        waterMass, peaks, tolerance);
+                scoreBefore[k] = countIonPair(prefixMass + shift.getMass(),
+                        totalMass, waterMass, peaks, tolerance);
+            }
+
+            int score = 0;
+            for (int k = 0; k < cleavages; k++) {
+                score += scoreBefore[k];
+            }
+            int bestScore = score;
+            int bestPosition = first;
+            int ties = 1;
+            for (int k = 0; k < cleavages; k++) {
+                score += scoreAfter[k] - scoreBefore[k];
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestPosition = first + k + 1;
+                    ties = 1;
+                } else if (score == bestScore) {
+                    ties++;
+                }
+            }
+            localizations.add(new Localization(index, shift, bestPosition,
+                    bestScore, ties));
+            shiftsBefore += shift.getMass();
+        }
+        return localizations;
+    }
+
+    /**
+     * Counts the b-ion with the given mass and its complementary y-ion
+     * found among the peaks.
+     */
+    private static int countIonPair(double prefixMass, double totalMass,
+                                    double waterMass, double[] peaks,
+                                    Tolerance tolerance) {
+        int found = 0;
+        if (MassMatcher.contains(peaks, prefixMass, tolerance)) {
+            found++;
+        }
+        if (MassMatcher.contains(peaks,
+                totalMass - prefixMass + waterMass, tolerance)) {
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * Represents the best found position of a mass shift.
+     */
+    public static class Localization {
+        private final int shiftIndex;
+        private final TheoreticScan.MassShift shift;
+        private final int position;
+        private final int score;
+        private final int ties;
+
+        private Localization(int shiftIndex, TheoreticScan.MassShift shift,
+                             int position, int score, int ties) {
+            this.shiftIndex = shiftIndex;
+            this.shift = shift;
+            this.position = position;
+            this.score = score;
+            this.ties = ties;
+        }
+
+        public int getShiftIndex() {
+            return shiftIndex;
+        }
+
+        public TheoreticScan.MassShift getShift() {
+            return shift;
+        }
+
+        /**
+         * Gets the index of the residue carrying the shift.
+         * @return the 0-based index of the best residue.
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * Gets the number of the ions matched when the shift is placed
+         * at the best position.
+         */
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * Gets the number of the positions reaching the best score.
+         * @return 1 if the localization is unambiguous, a larger number
+         * otherwise.
+         */
+        public int getTies() {
+            return ties;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * The formats the results of annotate, searchPeaks and listCoincidences
+ * are written in. The text format is the readable one of the earlier
+ * versions. The other two are for the tools reading the results back:
+ * they are written through a large NIO buffer and the numbers are
+ * encoded without String.format().
+ * <p>
+ * The tsv format has a header line naming the columns and a line for
+ * every match:
+ * <ul>
+ *     <li>annotate: SPECTRUM_ID, MATCH, PEAK_MASS, ION_TYPE,
+ *     ION_NUMBER, ION_MASS, ISOTOPE_OFFSET;</li>
+ *     <li>searchPeaks: SPECTRUM_ID, ION_TYPE, ION_NUMBER, ION_MASS and
+ *     a column for every program with 1 if it has found the ion and 0
+ *     otherwise;</li>
+ *     <li>listCoincidences: SPECTRUM_ID, THEORETIC_MASS,
+ *     EXPERIMENTAL_MASS, DIFF.</li>
+ * </ul>
+ * The masses have six digits after the point like the text format, the
+ * differences have nine.
+ * <p>
+ * The binary format starts with a header: the 8 bytes "NIR2017B", the
+ * version, the length of the header in bytes, the 8-byte name of the
+ * content padded with zeros, the length of a record, the number of the
+ * names following and the names in 16-byte fields padded with zeros.
+ * The records follow. All the numbers are little-endian int32 or
+ * float64, the offsets of the fields are given in bytes.
+ * <ul>
+ *     <li>ANNOTATE, 32-byte records starting with their kind. A scan
+ *     begins with an 'S' record: spectrum id at 4, number of mass
+ *     shifts at 8, number of matches at 12, unmatched peaks at 16,
+ *     isotope-shifted matches at 20. Its 'M' records follow: spectrum
+ *     id at 4, start at 8, end at 12, mass at 16. Then its 'P' records:
+ *     ion type at 1, isotope offset as int8 at 2, spectrum id at 4, ion
+ *     number at 8, match number at 12, peak mass at 16, ion mass at
+ *     24.</li>
+ *     <li>PEAKS, 24-byte records, one for every ion: spectrum id at 0,
+ *     ion number at 4, ion type at 8, the programs having found the ion
+ *     at 12 as a bit mask over the names of the header, ion mass at
+ *     16.</li>
+ *     <li>COINCIDE, 32-byte records: spectrum id at 0, theoretic mass
+ *     at 8, experimental mass at 16, difference at 24.</li>
+ * </ul>
+ */
+public enum OutputFormat {
+    text, tsv, binary;
+
+    private static volatile OutputFormat defaultFormat = text;
+
+    /**
+     * Gets the format the results are written in.
+     */
+    public static OutputFormat getDefault() {
+        return defaultFormat;
+    }
+
+    /**
+     * Sets the format the results are written in.
+     */
+    public static void setDefault(OutputFormat format) {
+        defaultFormat = format;
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.Closeable;
+
+/**
+ * The destination of the printed results of the commands. Like a
+ * PrintStream it doesn't throw: an error is remembered and reported by
+ * checkError(). Unlike System.out it isn't synchronized and doesn't
+ * flush every line, the commands flush it once when they are done. The
+ * ids, ion names and masses of long listings are printed by the methods
+ * writing them without making strings.
+ */
+public interface OutputSink extends Closeable {
+    OutputSink print(CharSequence text);
+
+    OutputSink print(char c);
+
+    OutputSink print(long number);
+
+    /**
+     * Prints a number as Double.toString() does.
+     */
+    OutputSink print(double number);
+
+    /**
+     * Prints a mass with six digits after the point, as %f does.
+     */
+    OutputSink printMass(double mass);
+
+    /**
+     * Prints the name of an ion like B12.
+     */
+    default OutputSink printIon(char type, int number) {
+        return print(type).print(number);
+    }
+
+    default OutputSink print(Object value) {
+        return print(String.valueOf(value));
+    }
+
+    /**
+     * Ends the line with the line separator of the system.
+     */
+    OutputSink println();
+
+    default OutputSink println(CharSequence text) {
+        return print(text).println();
+    }
+
+    default OutputSink println(long number) {
+        return print(number).println();
+    }
+
+    default OutputSink println(double number) {
+        return print(number).println();
+    }
+
+    default OutputSink println(Object value) {
+        return print(value).println();
+    }
+
+    /**
+     * Prints a formatted text.
+     * @see String#format(String, Object...)
+     */
+    default OutputSink printf(String format, Object... args) {
+        return print(String.format(format, args));
+    }
+
+    /**
+     * Writes bytes as they are.
+     */
+    OutputSink write(byte[] bytes);
+
+    /**
+     * Writes out all the printed bytes.
+     */
+    void flush();
+
+    /**
+     * Flushes the sink and checks if it has failed to write.
+     * @return true if there has been an error.
+     */
+    boolean checkError();
+
+    @Override
+    void close();
+}
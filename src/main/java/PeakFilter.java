@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+/**
+ * A rule choosing the peaks of a scan to keep by their intensities. A
+ * peak is kept if its intensity is at least the given share of the
+ * highest intensity of the scan and it is among the given number of the
+ * most intense peaks. The filter is applied while the deconvolution
+ * outputs are parsed, so the dropped peaks never reach the matchers.
+ */
+public final class PeakFilter {
+    private static final PeakFilter NONE =
+            new PeakFilter(Integer.MAX_VALUE, 0);
+
+    private static volatile PeakFilter defaultFilter = NONE;
+
+    private final int maxPeaks;
+    private final double minRelativeIntensity;
+
+    /**
+     * Makes a filter.
+     * @param maxPeaks the maximum number of peaks to keep in a scan.
+     * @param minRelativeIntensity the minimum intensity of a kept peak
+     *                             as a share of the highest intensity.
+     */
+    public PeakFilter(int maxPeaks, double minRelativeIntensity) {
+        if (maxPeaks < 0) {
+            throw new IllegalArgumentException(
+                    "Negative number of peaks: " + maxPeaks);
+        }
+        this.maxPeaks = maxPeaks;
+        this.minRelativeIntensity = minRelativeIntensity;
+    }
+
+    /**
+     * Gets a filter keeping all the peaks.
+     */
+    public static PeakFilter none() {
+        return NONE;
+    }
+
+    /**
+     * Gets the filter the parsers apply.
+     */
+    public static PeakFilter getDefault() {
+        return defaultFilter;
+    }
+
+    /**
+     * Sets the filter the parsers apply.
+     */
+    public static void setDefault(PeakFilter filter) {
+        defaultFilter = filter;
+    }
+
+    public int getMaxPeaks() {
+        return maxPeaks;
+    }
+
+    public double getMinRelativeIntensity() {
+        return minRelativeIntensity;
+    }
+
+    /**
+     * Chooses the peaks to keep.
+     * @param intensities the intensities of the peaks.
+     * @param size the number of the peaks.
+     * @return the indices of the kept peaks in ascending order or null
+     * if all the peaks are kept.
+     */
+    public int[] select(double[] intensities, int size) {
+        if (size == 0 || (minRelativeIntensity <= 0 && size <= maxPeaks)) {
+            return null;
+        }
+        if (maxPeaks == 0) {
+            return new int[0];
+        }
+        double maxIntensity = intensities[0];
+        for (int i = 1; i < size; i++) {
+            maxIntensity = Math.max(maxIntensity, intensities[i]);
+        }
+        double threshold = minRelativeIntensity * maxIntensity;
+        int passed = 0;
+        for (int i = 0; i < size; i++) {
+            if (intensities[i] >= threshold) {
+                passed++;
+            }
+        }
+
+        // the lowest intensity among the top peaks; of the peaks having
+        // exactly it only the first ones are kept
+        int equalAllowed = Integer.MAX_VALUE;
+        if (passed > maxPeaks) {
+            double[] sorted = Arrays.copyOf(intensities, size);
+            Arrays.sort(sorted);
+            double lowest = sorted[size - maxPeaks];
+            threshold = Math.max(threshold, lowest);
+            int above = 0;
+            for (int i = 0; i < size; i++) {
+                if (intensities[i] > lowest) {
+                    above++;
+                }
+            }
+            equalAllowed = maxPeaks - above;
+        }
+
+        int[] kept = new int[Math.min(passed, maxPeaks)];
+        int count = 0;
+        for (int i = 0; i < size && count < kept.length; i++) {
+            if (intensities[i] > threshold ||
+                    intensities[i] == threshold && equalAllowed-- > 0) {
+                kept[count++] = i;
+            }
+        }
+        if (count == size) {
+            return null;
+        }
+        return Arrays.copyOf(kept, count);
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A stage cleaning the peaks of experimental scans before they are
+ * analysed. The peaks are always sorted by mass; the optional steps
+ * merge near-duplicate peaks, drop the peaks heavier than the precursor
+ * and drop the peaks lying an isotope shift above a lighter peak. All
+ * the steps work in place on the arrays of the scan, so the scan given
+ * to process() should not be used afterwards.
+ */
+public final class PeakPreprocessor {
+    private static volatile PeakPreprocessor defaultPreprocessor =
+            new PeakPreprocessor(Tolerance.ppm(10), false, false, false);
+
+    private final Tolerance tolerance;
+    private final boolean merge;
+    private final boolean dropAbovePrecursor;
+    private final boolean deisotope;
+
+    /**
+     * Makes a preprocessor.
+     * @param tolerance the tolerance of comparison of the peaks for the
+     *                  merging and the deisotoping.
+     * @param merge whether to merge peaks lying within the tolerance.
+     * @param dropAbovePrecursor whether to drop peaks heavier than the
+     *                           precursor.
+     * @param deisotope whether to drop peaks lying an isotope shift
+     *                  above a lighter peak.
+     */
+    public PeakPreprocessor(Tolerance tolerance, boolean merge,
+                            boolean dropAbovePrecursor, boolean deisotope) {
+        this.tolerance = tolerance;
+        this.merge = merge;
+        this.dropAbovePrecursor = dropAbovePrecursor;
+        this.deisotope = deisotope;
+    }
+
+    /**
+     * Gets the preprocessor applied to the inputs of the commands.
+     */
+    public static PeakPreprocessor getDefault() {
+        return defaultPreprocessor;
+    }
+
+    /**
+     * Sets the preprocessor applied to the inputs of the commands.
+     */
+    public static void setDefault(PeakPreprocessor preprocessor) {
+        defaultPreprocessor = preprocessor;
+    }
+
+    public Tolerance getTolerance() {
+        return tolerance;
+    }
+
+    public boolean isMerging() {
+        return merge;
+    }
+
+    public boolean isDroppingAbovePrecursor() {
+        return dropAbovePrecursor;
+    }
+
+    public boolean isDeisotoping() {
+        return deisotope;
+    }
+
+    /**
+     * Applies the preprocessor to every scan of an iterator lazily.
+     */
+    public Iterator<ExperimentalScan> apply(
+            Iterator<ExperimentalScan> scans) {
+        return new Iterator<ExperimentalScan>() {
+            @Override
+            public boolean hasNext() {
+                return scans.hasNext();
+            }
+
+            @Override
+            public ExperimentalScan next() {
+                return process(scans.next());
+            }
+        };
+    }
+
+    /**
+     * Cleans the peaks of a scan.
+     * @param scan the scan to clean; its arrays are reused.
+     * @return a scan with sorted clean peaks.
+     */
+    public ExperimentalScan process(ExperimentalScan scan) {
+        Peaks peaks = new Peaks(scan);
+        if (scan.getSourceKey() != null) {
+            peaks.sourceKey = new ResultCache.Fingerprint()
+                    .add(scan.getSourceKey())
+                    .add(tolerance.toString())
+                    .add(merge ? 1 : 0)
+                    .add(dropAbovePrecursor ? 1 : 0)
+                    .add(deisotope ? 1 : 0)
+                    .getKey();
+        }
+        peaks.sort();
+        if (merge) {
+            peaks.merge(tolerance);
+        }
+        if (dropAbovePrecursor) {
+            peaks.dropAbove(scan.getPrecursorMass());
+        }
+        if (deisotope) {
+            peaks.deisotope(tolerance);
+        }
+        return peaks.toScan(scan);
+    }
+
+    /**
+     * The parallel arrays of a scan with the number of the peaks left.
+     */
+    private static class Peaks {
+        private final double[] masses;
+        private final double[] intensities;
+        private final int[] charges;
+        private final double[] fitScores;
+        private int size;
+        private ResultCache.Key sourceKey;
+
+        private Peaks(ExperimentalScan scan) {
+            masses = scan.getPeaks();
+            intensities = scan.getIntensities();
+            charges = scan.getPeakCharges();
+            fitScores = scan.getFitScores();
+            size = masses.length;
+        }
+
+        private void sort() {
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = masses[i - 1] <= masses[i];
+            }
+            if (sorted) {
+                return;
+            }
+            if (intensities == null && charges == null && fitScores == null) {
+                Arrays.sort(masses, 0, size);
+            } else {
+                quickSort(0, size - 1);
+            }
+        }
+
+        /**
+         * Replaces every run of peaks lying within the tolerance from its
+         * lightest peak with a single peak. The mass of the new peak is
+         * the mean weighted by the intensities, its intensity is the sum
+         * of them, its charge and fit score are the ones of the most
+         * intense peak.
+         */
+        private void merge(Tolerance tolerance) {
+            int kept = 0;
+            int start = 0;
+            while (start < size) {
+                double anchor = masses[start];
+                double error = tolerance.getError(anchor);
+                int end = start + 1;
+                while (end < size && masses[end] - anchor < error) {
+                    end++;
+                }
+
+                int strongest = start;
+                double weightedSum = 0;
+                double intensitySum = 0;
+                double massSum = 0;
+                for (int i = start; i < end; i++) {
+                    massSum += masses[i];
+                    if (intensities != null) {
+                        weightedSum += masses[i] * intensities[i];
+                        intensitySum += intensities[i];
+                        if (intensities[i] > intensities[strongest]) {
+                            strongest = i;
+                        }
+                    }
+                }
+                masses[kept] = intensitySum > 0 ? weightedSum / intensitySum :
+                        massSum / (end - start);
+                if (intensities != null) {
+                    intensities[kept] = intensitySum;
+                }
+                if (charges != null) {
+                    charges[kept] = charges[strongest];
+                }
+                if (fitScores != null) {
+                    fitScores[kept] = fitScores[strongest];
+                }
+                kept++;
+                start = end;
+            }
+            size = kept;
+        }
+
+        private void dropAbove(double precursorMass) {
+            while (size > 0 && masses[size - 1] > precursorMass) {
+                size--;
+            }
+        }
+
+        /**
+         * Drops every peak lying an isotope shift above another peak, so
+         * only the lightest peak of an isotope series stays.
+         */
+        private void deisotope(Tolerance tolerance) {
+            boolean[] isotopes = new boolean[size];
+            int lighter = 0;
+            for (int i = 0; i < size; i++) {
+                double expected = masses[i] - MassMatcher.ISOTOPE_SHIFT;
+                double error = tolerance.getError(expected);
+                while (lighter < i && masses[lighter] <= expected - error) {
+                    lighter++;
+                }
+                isotopes[i] = lighter < i &&
+                        masses[lighter] < expected + error;
+            }
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!isotopes[i]) {
+                    move(i, kept++);
+                }
+            }
+            size = kept;
+        }
+
+        private ExperimentalScan toScan(ExperimentalScan scan) {
+            if (size == masses.length) {
+                return new ExperimentalScan(scan.getId(), scan.getPrsmId(),
+                        scan.getCharge(), scan.getPrecursorMass(), masses,
+                        intensities, charges, fitScores, sourceKey);
+            }
+            return new ExperimentalScan(scan.getId(), scan.getPrsmId(),
+                    scan.getCharge(), scan.getPrecursorMass(),
+                    Arrays.copyOf(masses, size),
+                    intensities == null ? null :
+                            Arrays.copyOf(intensities, size),
+                    charges == null ? null : Arrays.copyOf(charges, size),
+                    fitScores == null ? null : Arrays.copyOf(fitScores, size),
+                    sourceKey);
+        }
+
+        private void quickSort(int left, int right) {
+            while (right - left > 16) {
+                int mid = (left + right) >>> 1;
+                if (masses[mid] < masses[left]) {
+                    swap(mid, left);
+                }
+                if (masses[right] < masses[left]) {
+                    swap(right, left);
+                }
+                if (masses[right] < masses[mid]) {
+                    swap(right, mid);
+                }
+                double pivot = masses[mid];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (masses[i] < pivot) {
+                        i++;
+                    }
+                    while (masses[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller part to bound the stack depth
+                if (j - left < right - i) {
+                    quickSort(left, j);
+                    left = i;
+                } else {
+                    quickSort(i, right);
+                    right = j;
+                }
+            }
+            for (int i = left + 1; i <= right; i++) {
+                for (int j = i; j > left && masses[j] < masses[j - 1]; j--) {
+                    swap(j, j - 1);
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            double mass = masses[i];
+            masses[i] = masses[j];
+            masses[j] = mass;
+            if (intensities != null) {
+                double intensity = intensities[i];
+                intensities[i] = intensities[j];
+                intensities[j] = intensity;
+            }
+            if (charges != null) {
+                int charge = charges[i];
+                charges[i] = charges[j];
+                charges[j] = charge;
+            }
+            if (fitScores != null) {
+                double fitScore = fitScores[i];
+                fitScores[i] = fitScores[j];
+                fitScores[j] = fitScore;
+            }
+        }
+
+        private void move(int from, int to) {
+            masses[to] = masses[from];
+            if (intensities != null) {
+                intensities[to] = intensities[from];
+            }
+            if (charges != null) {
+                charges[to] = charges[from];
+            }
+            if (fitScores != null) {
+                fitScores[to] = fitScores[from];
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A store keeping the peaks of many experimental scans outside of the
+ * heap. The peaks of every scan are sorted and put into direct or
+ * memory-mapped buffers of up to 1 GB; only a small index from scan ids
+ * to the positions of their peaks lives on the heap. A store is
+ * immutable, so it may be read by many threads at once.
+ *
+ * A file-backed store is laid out as the peak segments followed by the
+ * index and the 8-byte position of the index.
+ */
+public class PeakStore implements Closeable {
+    private static final int SEGMENT_BYTES = 1 << 30;
+    private static final int INITIAL_SEGMENT_BYTES = 1 << 16;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final DoubleBuffer[] segments;
+    private final int[] ids;
+    private final int[] segmentIndices;
+    private final int[] positions;
+    private final int[] sizes;
+    private final FileChannel channel;
+
+    private PeakStore(DoubleBuffer[] segments, int[] ids,
+                      int[] segmentIndices, int[] positions, int[] sizes,
+                      FileChannel channel) {
+        this.segments = segments;
+        this.ids = ids;
+        this.segmentIndices = segmentIndices;
+        this.positions = positions;
+        this.sizes = sizes;
+        this.channel = channel;
+    }
+
+    /**
+     * Puts the peaks of scans into direct buffers. If several scans
+     * have the same id, the last one is kept.
+     * @param scans the scans to store.
+     * @return a store with the peaks of all the scans.
+     */
+    public static PeakStore build(Iterator<ExperimentalScan> scans) {
+        Index index = new Index();
+        List<ByteBuffer> segments = new ArrayList<>();
+        ByteBuffer segment = ByteBuffer.allocateDirect(INITIAL_SEGMENT_BYTES);
+        int length = 0;
+        while (scans.hasNext()) {
+            ExperimentalScan scan = scans.next();
+            double[] peaks = scan.getSortedPeaks();
+            int bytes = peaks.length * Double.BYTES;
+            if (length + bytes > SEGMENT_BYTES) {
+                segments.add(segment);
+                segment = ByteBuffer.allocateDirect(INITIAL_SEGMENT_BYTES);
+                length = 0;
+            }
+            if (length + bytes > segment.capacity()) {
+                int capacity = (int) Math.min(SEGMENT_BYTES,
+                        Math.max(2L * segment.capacity(), length + bytes));
+                ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+                segment.position(0);
+                segment.limit(length);
+                grown.put(segment);
+                segment = grown;
+            }
+            ByteBuffer target = segment.duplicate().order(ORDER);
+            target.clear();
+            target.position(length);
+            target.asDoubleBuffer().put(peaks);
+            index.add(scan.getId(), segments.size(),
+                    length / Double.BYTES, peaks.length);
+            length += bytes;
+        }
+        segments.add(segment);
+
+        DoubleBuffer[] views = new DoubleBuffer[segments.size()];
+        for (int i = 0; i < views.length; i++) {
+            ByteBuffer view = segments.get(i).duplicate().order(ORDER);
+            view.clear();
+            views[i] = view.asDoubleBuffer();
+        }
+        return index.makeStore(views, null);
+    }
+
+    /**
+     * Writes the peaks of scans to a file and opens it as a store. If
+     * several scans have the same id, the last one is kept.
+     * @param scans the scans to store.
+     * @param path the file to write; an existing file is replaced.
+     * @return a store backed by the file. It should be closed after use.
+     * @throws IOException if an error during writing the file occurs.
+     */
+    public static PeakStore write(Iterator<ExperimentalScan> scans,
+                                  Path path) throws IOException {
+        Index index = new Index();
+        List<long[]> segments = new ArrayList<>();
+        try (FileChannel output = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long start = 0;
+            int length = 0;
+            while (scans.hasNext()) {
+                ExperimentalScan scan = scans.next();
+                double[] peaks = scan.getSortedPeaks();
+                int bytes = peaks.length * Double.BYTES;
+                if (length + bytes > SEGMENT_BYTES) {
+                    segments.add(new long[]{start, length});
+                    start += length;
+                    length = 0;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ORDER);
+                buffer.asDoubleBuffer().put(peaks);
+                writeFully(output, buffer);
+                index.add(scan.getId(), segments.size(),
+                        length / Double.BYTES, peaks.length);
+                length += bytes;
+            }
+            segments.add(new long[]{start, length});
+            long indexPosition = start + length;
+
+            int scanCount = index.size;
+            ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES +
+                    4 * Integer.BYTES * scanCount +
+                    (Long.BYTES + Integer.BYTES) * segments.size() +
+                    Long.BYTES).order(ORDER);
+            buffer.putInt(segments.size());
+            for (long[] segment: segments) {
+                buffer.putLong(segment[0]);
+                buffer.putInt((int) segment[1]);
+            }
+            buffer.putInt(scanCount);
+            for (int i = 0; i < scanCount; i++) {
+                buffer.putInt(index.ids[i]);
+                buffer.putInt(index.segmentIndices[i]);
+                buffer.putInt(index.positions[i]);
+                buffer.putInt(index.sizes[i]);
+            }
+            buffer.putLong(indexPosition);
+            buffer.flip();
+            writeFully(output, buffer);
+        }
+        return open(path);
+    }
+
+    /**
+     * Opens a store file made by write().
+     * @param path the file to open.
+     * @return a store backed by the file. It should be closed after use.
+     * @throws IOException if the file can't be read or is not a store.
+     */
+    public static PeakStore open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < Long.BYTES) {
+                throw new IOException("Not a peak store: " + path);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES).order(ORDER);
+            readFully(channel, trailer, size - Long.BYTES);
+            long indexPosition = trailer.getLong(0);
+            if (indexPosition < 0 || indexPosition > size - Long.BYTES) {
+                throw new IOException("Not a peak store: " + path);
+            }
+            ByteBuffer indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    indexPosition, size - Long.BYTES - indexPosition)
+                    .order(ORDER);
+
+            DoubleBuffer[] segments = new DoubleBuffer[indexBuffer.getInt()];
+            for (int i = 0; i < segments.length; i++) {
+                long start = indexBuffer.getLong();
+                int length = indexBuffer.getInt();
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, length).order(ORDER).asDoubleBuffer();
+            }
+            Index index = new Index();
+            int scanCount = indexBuffer.getInt();
+            for (int i = 0; i < scanCount; i++) {
+                index.add(indexBuffer.getInt(), indexBuffer.getInt(),
+                        indexBuffer.getInt(), indexBuffer.getInt());
+            }
+            return index.makeStore(segments, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the peaks of a scan.
+     * @param scanId the id of the scan.
+     * @return a view of the sorted peaks or null if the store has no
+     * scan with the id.
+     */
+    public Peaks getPeaks(int scanId) {
+        int i = Arrays.binarySearch(ids, scanId);
+        if (i < 0) {
+            return null;
+        }
+        return new Peaks(segments[segmentIndices[i]], positions[i], sizes[i]);
+    }
+
+    /**
+     * Gets the number of the scans in the store.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Releases the file backing the store. A store made by build() has
+     * no file, its buffers are freed when the store is collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of a peak store");
+            }
+        }
+    }
+
+    /**
+     * A read-only view of the sorted peaks of a scan.
+     */
+    public static class Peaks {
+        private final DoubleBuffer segment;
+        private final int offset;
+        private final int size;
+
+        private Peaks(DoubleBuffer segment, int offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Gets the i-th peak in ascending order.
+         */
+        public double get(int i) {
+            return segment.get(offset + i);
+        }
+
+        /**
+         * Copies the peaks to a new array.
+         */
+        public double[] toArray() {
+            double[] peaks = new double[size];
+            for (int i = 0; i < size; i++) {
+                peaks[i] = segment.get(offset + i);
+            }
+            return peaks;
+        }
+    }
+
+    /**
+     * The index of a store being filled. Entries are added in the order
+     * of the scans and sorted by id when the store is made.
+     */
+    private static class Index {
+        private int[] ids = new int[16];
+        private int[] segmentIndices = new int[16];
+        private int[] positions = new int[16];
+        private int[] sizes = new int[16];
+        private int size = 0;
+
+        private void add(int id, int segment, int position, int count) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+                segmentIndices = Arrays.copyOf(segmentIndices, 2 * size);
+                positions = Arrays.copyOf(positions, 2 * size);
+                sizes = Arrays.copyOf(sizes, 2 * size);
+            }
+            ids[size] = id;
+            segmentIndices[size] = segment;
+            positions[size] = position;
+            sizes[size] = count;
+            size++;
+        }
+
+        /**
+         * Sorts the entries by id keeping the last of equal ones and
+         * makes a store of them.
+         */
+        private PeakStore makeStore(DoubleBuffer[] segments,
+                                    FileChannel channel) {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = (long) ids[i] << 32 | i;
+            }
+            Arrays.sort(keys);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (i + 1 == size || keys[i + 1] >> 32 != keys[i] >> 32) {
+                    keys[unique++] = keys[i];
+                }
+            }
+
+            int[] sortedIds = new int[unique];
+            int[] sortedSegments = new int[unique];
+            int[] sortedPositions = new int[unique];
+            int[] sortedSizes = new int[unique];
+            for (int i = 0; i < unique; i++) {
+                int entry = (int) keys[i];
+                sortedIds[i] = ids[entry];
+                sortedSegments[i] = segmentIndices[entry];
+                sortedPositions[i] = positions[entry];
+                sortedSizes[i] = sizes[entry];
+            }
+            return new PeakStore(segments, sortedIds, sortedSegments,
+                    sortedPositions, sortedSizes, channel);
+        }
+    }
+}
@@ -0,0 +1,687 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A chain of typed stages processing the items of a source. The stages
+ * with the same name run on an executor shared by all the pipelines,
+ * its number of threads set with setThreads(), and the source is read
+ * on a shared executor of its own, so pipelines running at once, as
+ * the jobs of a batch do, don't multiply the threads. The stages are
+ * connected with bounded buffers, so a fast stage pauses for a slow one
+ * instead of piling its results up, and the items keep the order of
+ * the source whatever the number of threads. The first
+ * error of any stage stops all the others and is thrown by the method
+ * running the pipeline.
+ * @param <T> the type of the items coming out of the last stage.
+ */
+public class Pipeline<T> {
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final long IDLE_SECONDS = 5;
+    private static final Map<String, Integer> THREADS =
+            new ConcurrentHashMap<>();
+    private static final Map<String, ThreadPoolExecutor> EXECUTORS =
+            new ConcurrentHashMap<>();
+
+    private final Iterator<?> source;
+    private final List<StageDefinition> stages;
+    private final int capacity;
+
+    private Pipeline(Iterator<?> source, List<StageDefinition> stages,
+                     int capacity) {
+        this.source = source;
+        this.stages = stages;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Starts a pipeline.
+     * @param source the items to process; it is read on a separate
+     *               thread, one thread at a time.
+     */
+    public static <T> Pipeline<T> from(Iterator<T> source) {
+        return new Pipeline<>(source, Collections.emptyList(),
+                DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Gets the number of threads running the stages with the given
+     * name, the number of the processors unless it has been set.
+     */
+    public static int getThreads(String stageName) {
+        return THREADS.getOrDefault(stageName,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets the number of threads running the stages with the given name.
+     */
+    public static void setThreads(String stageName, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Stage " + stageName +
+                    " needs at least one thread: " + threads);
+        }
+        THREADS.put(stageName, threads);
+        EXECUTORS.computeIfPresent(stageName, (name, pool) -> {
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+            return pool;
+        });
+    }
+
+    /**
+     * Sets the number of items a buffer between two stages holds.
+     * @param bufferCapacity the capacity; a stage gets at least one slot
+     *                       for every thread.
+     */
+    public Pipeline<T> withCapacity(int bufferCapacity) {
+        return new Pipeline<>(source, stages, bufferCapacity);
+    }
+
+    /**
+     * Adds a stage.
+     * @param name the name of the stage setting its number of threads.
+     * @param stage the function applied to every item. A null result
+     *              drops the item.
+     * @return the pipeline of the results of the stage.
+     */
+    public <R> Pipeline<R> map(String name,
+                               Stage<? super T, ? extends R> stage) {
+        List<StageDefinition> extended = new ArrayList<>(stages);
+        extended.add(new StageDefinition(name, stage));
+        return new Pipeline<>(source, extended, capacity);
+    }
+
+    /**
+     * Runs the pipeline passing every resulting item to a sink on the
+     * calling thread in the order of the source.
+     * @param sink the consumer of the results.
+     * @throws IOException if a stage or the sink throws it or the source
+     * fails with a ScanReadError caused by it.
+     */
+    public void forEach(Sink<? super T> sink) throws IOException {
+        Run run = new Run();
+        Buffer results = run.start();
+        try {
+            long[] sequence = new long[1];
+            while (true) {
+                Object item = results.take(sequence);
+                if (item == Buffer.END) {
+                    run.end();
+                    break;
+                }
+                @SuppressWarnings("unchecked")
+                T result = (T) item;
+                sink.accept(result);
+            }
+        } catch (Cancelled e) {
+            // the failure is thrown below
+        } catch (IOException | RuntimeException | Error e) {
+            run.fail(e);
+        }
+        run.finish();
+    }
+
+    /**
+     * Runs the pipeline accumulating the resulting items in containers
+     * of several threads and combining the containers in the end. The
+     * items come to a container in the order of the source, but they
+     * are spread over the containers.
+     * @param name the name of the accumulating stage setting its number
+     *             of threads.
+     * @param supplier the maker of an empty container.
+     * @param accumulator the function adding an item to a container.
+     * @param combiner the function adding the second container to the
+     *                 first one.
+     * @return the combined container.
+     * @throws IOException if a stage throws it or the source fails with
+     * a ScanReadError caused by it.
+     */
+    public <A> A collect(String name, Supplier<A> supplier,
+                         BiConsumer<A, ? super T> accumulator,
+                         BiConsumer<A, A> combiner) throws IOException {
+        Run run = new Run();
+        Buffer results = run.start();
+        List<A> containers = new ArrayList<>();
+        Queue<A> idleContainers = new ConcurrentLinkedQueue<>();
+        run.addWorker(new Worker(run, name, getThreads(name), results, null) {
+            @Override
+            protected void work() {
+                A container = idleContainers.poll();
+                if (container == null) {
+                    container = supplier.get();
+                    synchronized (containers) {
+                        containers.add(container);
+                    }
+                }
+                try {
+                    long[] sequence = new long[1];
+                    for (int i = 0; i < capacity; i++) {
+                        Object item = results.poll(Long.MAX_VALUE, sequence);
+                        if (item == null) {
+                            return;
+                        }
+                        if (item == Buffer.END) {
+                            end();
+                            run.end();
+                            return;
+                        }
+                        @SuppressWarnings("unchecked")
+                        T result = (T) item;
+                        accumulator.accept(container, result);
+                    }
+                } finally {
+                    idleContainers.add(container);
+                }
+            }
+
+            @Override
+            protected boolean isReady() {
+                return results.isReady(Long.MAX_VALUE);
+            }
+        });
+        run.finish();
+        if (containers.isEmpty()) {
+            return supplier.get();
+        }
+        A combined = containers.get(0);
+        for (int i = 1; i < containers.size(); i++) {
+            combiner.accept(combined, containers.get(i));
+        }
+        return combined;
+    }
+
+    /**
+     * A function run by a stage.
+     */
+    public interface Stage<T, R> {
+        R apply(T item) throws IOException;
+    }
+
+    /**
+     * The consumer of the results of a pipeline.
+     */
+    public interface Sink<T> {
+        void accept(T item) throws IOException;
+    }
+
+    private static class StageDefinition {
+        private final String name;
+        private final Stage<Object, ?> function;
+
+        @SuppressWarnings("unchecked")
+        private StageDefinition(String name, Stage<?, ?> function) {
+            this.name = name;
+            this.function = (Stage<Object, ?>) function;
+        }
+    }
+
+    /**
+     * Gets the executor running the stages with the given name. The
+     * executors are shared by all the pipelines, so pipelines running
+     * at once don't add threads; their idle threads end.
+     */
+    private static Executor getExecutor(String stageName) {
+        return EXECUTORS.computeIfAbsent(stageName, name -> {
+            int threads = getThreads(name);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    task -> {
+                        Thread thread = new Thread(task, "pipeline-" + name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        });
+    }
+
+    /**
+     * The workers and buffers of a running pipeline.
+     */
+    private class Run {
+        private final List<Buffer> buffers = new ArrayList<>();
+        private volatile Throwable failure;
+        // guarded by this
+        private int runningTasks;
+        private boolean ended;
+
+        /**
+         * Starts the source and all the stages.
+         * @return the buffer with the results of the last stage.
+         */
+        private Buffer start() {
+            Buffer sourceItems = new Buffer(this, capacity);
+            addWorker(new Worker(this, "source", 1, null, sourceItems) {
+                private volatile long count;
+
+                @Override
+                protected void work() {
+                    for (int i = 0; i < capacity; i++) {
+                        if (isFailed() || !sourceItems.hasRoom(count)) {
+                            return;
+                        }
+                        if (!source.hasNext()) {
+                            sourceItems.close(count);
+                            end();
+                            return;
+                        }
+                        sourceItems.put(count++, source.next());
+                    }
+                }
+
+                @Override
+                protected boolean isReady() {
+                    return sourceItems.hasRoom(count);
+                }
+            });
+            Buffer input = sourceItems;
+            for (StageDefinition stage: stages) {
+                int stageThreads = getThreads(stage.name);
+                Buffer output = new Buffer(this,
+                        Math.max(capacity, stageThreads));
+                Buffer stageInput = input;
+                addWorker(new Worker(this, stage.name, stageThreads,
+                        stageInput, output) {
+                    @Override
+                    protected void work() throws IOException {
+                        long[] sequence = new long[1];
+                        for (int i = 0; i < capacity; i++) {
+                            Object item = stageInput.poll(
+                                    output.getLimit(), sequence);
+                            if (item == null) {
+                                return;
+                            }
+                            if (item == Buffer.END) {
+                                output.close(stageInput.getTaken());
+                                end();
+                                return;
+                            }
+                            output.put(sequence[0],
+                                    stage.function.apply(item));
+                        }
+                    }
+
+                    @Override
+                    protected boolean isReady() {
+                        return stageInput.isReady(output.getLimit());
+                    }
+                });
+                input = output;
+            }
+            return input;
+        }
+
+        /**
+         * Schedules a new worker if it has work.
+         */
+        private void addWorker(Worker worker) {
+            worker.wake();
+        }
+
+        private synchronized void taskStarted() {
+            runningTasks++;
+        }
+
+        private synchronized void taskEnded() {
+            runningTasks--;
+            notifyAll();
+        }
+
+        /**
+         * Marks the results as all taken.
+         */
+        private synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        private void fail(Throwable e) {
+            List<Buffer> waking;
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+                waking = new ArrayList<>(buffers);
+                notifyAll();
+            }
+            for (Buffer buffer: waking) {
+                buffer.wake();
+            }
+        }
+
+        private boolean isFailed() {
+            return failure != null;
+        }
+
+        /**
+         * Waits for all the tasks and throws the first failure.
+         */
+        private void finish() throws IOException {
+            synchronized (this) {
+                while (runningTasks > 0 || !ended && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        fail(e);
+                    }
+                }
+            }
+            Throwable e = failure;
+            if (e == null) {
+                return;
+            }
+            if (e instanceof DeconvolutionProgram.ScanReadError &&
+                    e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * The tasks of a stage of a run. A task moves a batch of items and
+     * gives its thread back as soon as its input is empty or its output
+     * is full, instead of waiting; the worker is scheduled again when
+     * an item comes or a slot is freed. So a pipeline never holds a
+     * thread of a shared executor while it waits for another pipeline.
+     */
+    private abstract class Worker implements Runnable {
+        private final Run run;
+        private final String name;
+        private final int threads;
+        private final AtomicInteger scheduled = new AtomicInteger();
+        private volatile boolean ended;
+
+        /**
+         * Makes a worker and connects it to its buffers.
+         * @param threads the maximum number of its tasks running at once.
+         * @param input the buffer it takes from or null for the source.
+         * @param output the buffer it puts to or null for a collector.
+         */
+        private Worker(Run run, String name, int threads, Buffer input,
+                       Buffer output) {
+            this.run = run;
+            this.name = name;
+            this.threads = threads;
+            if (input != null) {
+                input.consumer = this;
+            }
+            if (output != null) {
+                output.producer = this;
+            }
+        }
+
+        /**
+         * Moves a batch of items.
+         */
+        protected abstract void work() throws IOException;
+
+        /**
+         * Checks if a task would have work now.
+         */
+        protected abstract boolean isReady();
+
+        /**
+         * Marks the work as done, so no more tasks are scheduled.
+         */
+        protected void end() {
+            ended = true;
+        }
+
+        /**
+         * Schedules a task unless the worker has failed or ended, has all
+         * its tasks scheduled or has no work.
+         */
+        private void wake() {
+            while (!run.isFailed() && !ended && isReady()) {
+                int tasks = scheduled.get();
+                if (tasks >= threads) {
+                    return;
+                }
+                if (scheduled.compareAndSet(tasks, tasks + 1)) {
+                    run.taskStarted();
+                    getExecutor(name).execute(this);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!run.isFailed() && !ended) {
+                    work();
+                }
+            } catch (Cancelled e) {
+                // another task has failed
+            } catch (IOException | RuntimeException | Error e) {
+                run.fail(e);
+            } finally {
+                scheduled.decrementAndGet();
+                // an item may have come while the task was ending
+                wake();
+                run.taskEnded();
+            }
+        }
+    }
+
+    /**
+     * A bounded buffer between two stages keeping the items in order.
+     * An item is put with its number and taken when all the items before
+     * it have been taken. The workers put an item only when its slot is
+     * free and never wait; only the thread taking the results of a
+     * pipeline waits for them.
+     */
+    private static class Buffer {
+        private static final Object END = new Object();
+        private static final Object DROPPED = new Object();
+
+        private final Pipeline<?>.Run run;
+        private final Object[] slots;
+        private volatile Pipeline<?>.Worker producer;
+        private volatile Pipeline<?>.Worker consumer;
+        private long next;
+        private long taken;
+        private long end = -1;
+
+        private Buffer(Pipeline<?>.Run run, int capacity) {
+            this.run = run;
+            slots = new Object[capacity];
+            synchronized (run) {
+                run.buffers.add(this);
+            }
+        }
+
+        /**
+         * Puts an item into a free slot.
+         */
+        private void put(long sequence, Object item) {
+            synchronized (this) {
+                slots[(int) (sequence % slots.length)] =
+                        item == null ? DROPPED : item;
+                notifyAll();
+            }
+            wakeConsumer();
+        }
+
+        /**
+         * Marks the end of the items.
+         * @param count the number of the items put.
+         */
+        private void close(long count) {
+            synchronized (this) {
+                end = count;
+                notifyAll();
+            }
+            wakeConsumer();
+        }
+
+        /**
+         * Checks if the slot of an item is free.
+         */
+        private synchronized boolean hasRoom(long sequence) {
+            return sequence < next + slots.length;
+        }
+
+        /**
+         * Gets the number of the first item that has no free slot yet.
+         */
+        private synchronized long getLimit() {
+            return next + slots.length;
+        }
+
+        /**
+         * Checks if poll() would return an item or END.
+         */
+        private synchronized boolean isReady(long limit) {
+            for (long i = next; i != end && i < next + slots.length; i++) {
+                Object item = slots[(int) (i % slots.length)];
+                if (item == null) {
+                    return false;
+                }
+                if (item != DROPPED) {
+                    return taken < limit;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Takes the next item if it is there.
+         * @param limit the number the taken item must be below, so that
+         *              it has a free slot in the next buffer.
+         * @param sequence the array to put the number of the taken item
+         *                 among the ones not dropped.
+         * @return the item, END if there are no more items or null if
+         * the next item hasn't come or has no room in the next buffer.
+         */
+        private Object poll(long limit, long[] sequence) {
+            boolean freed = false;
+            Object result = null;
+            synchronized (this) {
+                while (true) {
+                    if (next == end) {
+                        result = END;
+                        break;
+                    }
+                    int slot = (int) (next % slots.length);
+                    Object item = slots[slot];
+                    if (item == null ||
+                            item != DROPPED && taken >= limit) {
+                        break;
+                    }
+                    slots[slot] = null;
+                    next++;
+                    freed = true;
+                    if (item != DROPPED) {
+                        sequence[0] = taken++;
+                        result = item;
+                        break;
+                    }
+                }
+            }
+            if (freed) {
+                wakeProducer();
+            }
+            return result;
+        }
+
+        /**
+         * Takes the next item waiting for it if needed.
+         * @param sequence the array to put the number of the taken item
+         *                 among the ones not dropped.
+         * @return the item or END if there are no more items.
+         */
+        private Object take(long[] sequence) {
+            while (true) {
+                Object item = poll(Long.MAX_VALUE, sequence);
+                if (item != null) {
+                    return item;
+                }
+                synchronized (this) {
+                    if (!isReady(Long.MAX_VALUE)) {
+                        await();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the number of the items taken, which is the number of the
+         * items put into the next buffer.
+         */
+        private synchronized long getTaken() {
+            return taken;
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+
+        private void wakeConsumer() {
+            if (consumer != null) {
+                consumer.wake();
+            }
+        }
+
+        private void wakeProducer() {
+            if (producer != null) {
+                producer.wake();
+            }
+        }
+
+        private void await() {
+            if (run.isFailed()) {
+                throw new Cancelled();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                run.fail(e);
+                throw new Cancelled();
+            }
+            if (run.isFailed()) {
+                throw new Cancelled();
+            }
+        }
+    }
+
+    /**
+     * Unwinds a task after another one has failed.
+     */
+    private static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+}
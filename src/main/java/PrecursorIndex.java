@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index of theoretic scans by their precursor masses. The masses are
+ * kept in a sorted primitive array, so a window of masses is found with
+ * two binary searches.
+ */
+public class PrecursorIndex {
+    private final double[] masses;
+    private final List<TheoreticScan> scans;
+
+    /**
+     * Makes an index of the given scans.
+     * @param theoreticScans the scans to index.
+     */
+    public PrecursorIndex(Collection<TheoreticScan> theoreticScans) {
+        TheoreticScan[] sorted = theoreticScans.toArray(
+                new TheoreticScan[theoreticScans.size()]);
+        Arrays.sort(sorted, (scan1, scan2) -> Double.compare(
+                scan1.getPrecursorMass(), scan2.getPrecursorMass()));
+        masses = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            masses[i] = sorted[i].getPrecursorMass();
+        }
+        scans = Collections.unmodifiableList(Arrays.asList(sorted));
+    }
+
+    /**
+     * Finds the scans with precursor masses strictly between the bounds.
+     * @param lower the lower bound of the masses.
+     * @param upper the upper bound of the masses.
+     * @return a view of the found scans in ascending order of the
+     * precursor mass.
+     */
+    public List<TheoreticScan> range(double lower, double upper) {
+        int from = firstAbove(lower);
+        int to = Math.max(firstNotBelow(upper), from);
+        return scans.subList(from, to);
+    }
+
+    /**
+     * Finds the scans with precursor masses lying within the tolerance
+     * from the given mass. The bounds of the window are exclusive, as in
+     * MassMatcher.
+     * @param mass the precursor mass to look for.
+     * @param tolerance the tolerance of comparison.
+     * @return a view of the found scans in ascending order of the
+     * precursor mass.
+     */
+    public List<TheoreticScan> find(double mass, Tolerance tolerance) {
+        double error = tolerance.getError(mass);
+        return range(mass - error, mass + error);
+    }
+
+    public int size() {
+        return masses.length;
+    }
+
+    private int firstAbove(double mass) {
+        int left = -1;
+        int right = masses.length;
+        while (right - left > 1) {
+            int mid = (left + right) >>> 1;
+            if (masses[mid] <= mass) {
+                left = mid;
+            } else {
+                right = mid;
+            }
+        }
+        return right;
+    }
+
+    private int firstNotBelow(double mass) {
+        int left = -1;
+        int right = masses.length;
+        while (right - left > 1) {
+            int mid = (left + right) >>> 1;
+            if (masses[mid] < mass) {
+                left = mid;
+            } else {
+                right = mid;
+            }
+        }
+        return right;
+    }
+}
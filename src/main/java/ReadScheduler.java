@@ -0,0 +1,379 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * A scheduler reading many files at once, for inputs split into many
+ * small files where the time goes to waiting for the storage. Every file
+ * is read by its own task, on a virtual thread if the JVM has them and
+ * on a pool of threads, which end when they are idle, otherwise; the
+ * number of files read at once is limited. The parsed items of every
+ * file go through a bounded queue to the thread consuming them, which
+ * gets the files one after another in the given order. A reader finding its queue full doesn't
+ * block: it gives its thread back and is scheduled again when the
+ * consumer takes from the queue, so the readers of several readings
+ * consumed by one thread can't starve each other.
+ */
+public class ReadScheduler {
+    private static final int DEFAULT_OPEN_FILES = 16;
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final long IDLE_SECONDS = 5;
+    private static final Object END = new Object();
+
+    private static volatile ReadScheduler defaultScheduler =
+            new ReadScheduler(DEFAULT_OPEN_FILES);
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final boolean virtual;
+    private final int maxOpenFiles;
+    private final int queueCapacity;
+
+    /**
+     * Makes a scheduler with queues of the default capacity.
+     * @param maxOpenFiles the maximum number of files read at once.
+     */
+    public ReadScheduler(int maxOpenFiles) {
+        this(maxOpenFiles, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Makes a scheduler.
+     * @param maxOpenFiles the maximum number of files read at once.
+     * @param queueCapacity the number of items a file may read ahead of
+     *                      the consumer.
+     */
+    public ReadScheduler(int maxOpenFiles, int queueCapacity) {
+        if (maxOpenFiles < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Scheduler limits must be " +
+                    "positive: " + maxOpenFiles + ", " + queueCapacity);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        this.queueCapacity = queueCapacity;
+        Executor virtualExecutor = newVirtualThreadExecutor();
+        virtual = virtualExecutor != null;
+        if (virtual) {
+            executor = virtualExecutor;
+            permits = new Semaphore(maxOpenFiles);
+        } else {
+            // the idle threads end, so a scheduler dropped by its job
+            // doesn't keep them for the rest of the process
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxOpenFiles,
+                    maxOpenFiles, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), task -> {
+                        Thread thread = new Thread(task, "reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            permits = null;
+        }
+    }
+
+    /**
+     * Gets the scheduler reading the directories given as inputs.
+     */
+    public static ReadScheduler getDefault() {
+        return defaultScheduler;
+    }
+
+    /**
+     * Sets the scheduler reading the directories given as inputs.
+     */
+    public static void setDefault(ReadScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    /**
+     * Checks if the files are read on virtual threads rather than on a
+     * pool.
+     */
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * Lists the files of a directory to read as one input: the regular
+     * files not starting with a dot, in the order of their names.
+     * @param directory the directory to list.
+     * @return the paths of the files.
+     * @throws IOException if the directory can't be read.
+     */
+    public static List<Path> listFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries =
+                     Files.newDirectoryStream(directory)) {
+            for (Path entry: entries) {
+                if (Files.isRegularFile(entry) &&
+                        !entry.getFileName().toString().startsWith(".")) {
+                    files.add(entry);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Starts reading files. Only as many files as can be read at once
+     * are started ahead of the one being consumed.
+     * @param files the files to read.
+     * @param opener the parser of a file.
+     * @return an iterator over the items of all the files in the order
+     * of the files. An error reading a file is thrown by the iterator
+     * as a ScanReadError when the consumer gets to it.
+     */
+    public <T> Reading<T> read(List<Path> files, Opener<T> opener) {
+        return new Reading<>(files, opener);
+    }
+
+    private void schedule(Runnable task) {
+        if (permits == null) {
+            executor.execute(task);
+        } else {
+            executor.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes an executor starting a virtual thread per task. The source
+     * targets Java 8, so the factory method is looked up reflectively.
+     * @return the executor or null if the JVM has no virtual threads.
+     */
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException |
+                InvocationTargetException e) {
+            // older JVM or virtual threads in preview and not enabled
+            return null;
+        }
+    }
+
+    /**
+     * A parser of a file.
+     */
+    public interface Opener<T> {
+        /**
+         * Opens a file.
+         * @param file the file to read.
+         * @return a stream of the items of the file; it is closed after
+         * it has been read.
+         * @throws IOException if the file can't be opened.
+         */
+        Stream<T> open(Path file) throws IOException;
+    }
+
+    /**
+     * The items of a set of files being read. Closing a reading stops
+     * the reading of the files not consumed yet.
+     */
+    public class Reading<T> implements Iterator<T>, AutoCloseable {
+        private final List<FileReader> readers = new ArrayList<>();
+        private volatile boolean cancelled;
+        private int current;
+        private T next;
+
+        private Reading(List<Path> files, Opener<T> opener) {
+            for (Path file: files) {
+                readers.add(new FileReader(file, opener));
+            }
+            for (int i = 0; i < Math.min(maxOpenFiles, readers.size()); i++) {
+                schedule(readers.get(i));
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            while (next == null) {
+                if (current == readers.size()) {
+                    return false;
+                }
+                Object item = readers.get(current).take();
+                if (item == END) {
+                    current++;
+                    int following = current + maxOpenFiles - 1;
+                    if (following < readers.size() && !cancelled) {
+                        schedule(readers.get(following));
+                    }
+                } else if (item instanceof Failure) {
+                    close();
+                    current = readers.size();
+                    throw new DeconvolutionProgram.ScanReadError(
+                            ((Failure) item).cause);
+                } else {
+                    next = (T) item;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T item = next;
+            next = null;
+            return item;
+        }
+
+        @Override
+        public void close() {
+            cancelled = true;
+            for (FileReader reader: readers) {
+                if (reader.parked.compareAndSet(true, false)) {
+                    reader.closeStream();
+                }
+            }
+        }
+
+        /**
+         * The task reading a file. It runs until the file ends or its
+         * queue gets full; in the latter case it parks and the consumer
+         * schedules it again after taking an item.
+         */
+        private class FileReader implements Runnable {
+            private final Path file;
+            private final Opener<T> opener;
+            private final BlockingQueue<Object> queue =
+                    new ArrayBlockingQueue<>(queueCapacity);
+            private final AtomicBoolean parked = new AtomicBoolean();
+            private Stream<T> stream;
+            private Iterator<T> items;
+            private Object pending;
+            private boolean done;
+
+            private FileReader(Path file, Opener<T> opener) {
+                this.file = file;
+                this.opener = opener;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (items == null && !done) {
+                        if (cancelled) {
+                            return;
+                        }
+                        stream = opener.open(file);
+                        items = stream.iterator();
+                    }
+                    while (!cancelled) {
+                        if (pending == null) {
+                            if (items.hasNext()) {
+                                pending = items.next();
+                            } else {
+                                finish(END);
+                            }
+                        }
+                        if (!queue.offer(pending)) {
+                            parked.set(true);
+                            // the consumer may have taken an item after the
+                            // offer; then one of the two unparks the reader
+                            if (queue.remainingCapacity() == 0 ||
+                                    !parked.compareAndSet(true, false)) {
+                                return;
+                            }
+                            continue;
+                        }
+                        if (done) {
+                            return;
+                        }
+                        pending = null;
+                    }
+                    closeStream();
+                } catch (IOException | RuntimeException | Error e) {
+                    try {
+                        closeStream();
+                    } catch (RuntimeException | Error e1) {
+                        e.addSuppressed(e1);
+                    }
+                    finish(new Failure(e));
+                    if (!queue.offer(pending)) {
+                        parked.set(true);
+                        if (queue.remainingCapacity() > 0 &&
+                                parked.compareAndSet(true, false)) {
+                            schedule(this);
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Takes the next item of the file waiting for it if needed.
+             */
+            private Object take() {
+                Object item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DeconvolutionProgram.ScanReadError(e);
+                }
+                if (parked.compareAndSet(true, false)) {
+                    schedule(this);
+                }
+                return item;
+            }
+
+            private void finish(Object last) {
+                pending = last;
+                done = true;
+                items = Collections.emptyIterator();
+                closeStream();
+            }
+
+            private void closeStream() {
+                Stream<T> closed = stream;
+                stream = null;
+                if (closed != null) {
+                    closed.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The error that stopped the reading of a file.
+     */
+    private static class Failure {
+        private final Throwable cause;
+
+        private Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
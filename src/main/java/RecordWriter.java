@@ -0,0 +1,309 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A writer of the tsv and binary outputs and of the printed results. It
+ * collects the bytes in a large direct buffer and hands them to the
+ * channel only when it is full, the binary numbers are little-endian.
+ * The text numbers are encoded with integer arithmetic into the buffer,
+ * without making strings. It isn't synchronized. A writer without a
+ * channel keeps the bytes in memory, growing as needed, so the results
+ * of a scan can be encoded on a stage of a pipeline and then copied to
+ * the output.
+ */
+public class RecordWriter implements Closeable {
+    private static final int CHANNEL_BUFFER_SIZE = 1 << 20;
+    private static final int MEMORY_BUFFER_SIZE = 4096;
+    private static final String MAGIC = "NIR2017B";
+    private static final int VERSION = 1;
+    private static final int KIND_LENGTH = 8;
+    private static final int NAME_LENGTH = 16;
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L, 10000000000L, 100000000000L,
+            1000000000000L, 10000000000000L, 100000000000000L,
+            1000000000000000L
+    };
+    // above it the scaled doubles are no longer exact integers
+    private static final double MAX_SCALED = 1L << 53;
+
+    private final WritableByteChannel channel;
+    private final byte[] digits = new byte[20];
+    private ByteBuffer buffer;
+
+    /**
+     * Makes a writer to a channel.
+     * @param channel the channel to write to; it is closed with the
+     *                writer.
+     */
+    public RecordWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Makes a writer keeping the bytes in memory.
+     */
+    public RecordWriter() {
+        channel = null;
+        buffer = ByteBuffer.allocate(MEMORY_BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens a file for writing replacing its content.
+     * @param path the path of the file.
+     * @return the writer to the file.
+     * @throws IOException if the file can't be opened.
+     */
+    public static RecordWriter open(Path path) throws IOException {
+        return new RecordWriter(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Writes the header of a binary output as described in OutputFormat.
+     * @param kind the name of the content, up to 8 characters.
+     * @param recordLength the length of a record in bytes.
+     * @param names the names the records refer to, up to 16 characters
+     *              each.
+     */
+    public RecordWriter putHeader(String kind, int recordLength,
+                                  List<String> names) throws IOException {
+        int headerLength = MAGIC.length() + 4 + 4 + KIND_LENGTH + 4 + 4 +
+                names.size() * NAME_LENGTH;
+        putPadded(MAGIC, MAGIC.length());
+        putInt(VERSION);
+        putInt(headerLength);
+        putPadded(kind, KIND_LENGTH);
+        putInt(recordLength);
+        putInt(names.size());
+        for (String name: names) {
+            putPadded(name, NAME_LENGTH);
+        }
+        return this;
+    }
+
+    public RecordWriter putByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public RecordWriter putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public RecordWriter putDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+        return this;
+    }
+
+    /**
+     * Writes zero bytes.
+     * @param count the number of the bytes.
+     */
+    public RecordWriter skip(int count) throws IOException {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a text in UTF-8.
+     */
+    public RecordWriter putText(CharSequence text) throws IOException {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 128) {
+                return put(text.subSequence(i, text.length()).toString()
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            buffer.put((byte) c);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a character in UTF-8.
+     */
+    public RecordWriter putChar(char c) throws IOException {
+        if (c >= 128) {
+            return put(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+        }
+        ensure(1);
+        buffer.put((byte) c);
+        return this;
+    }
+
+    /**
+     * Writes a number in decimal notation.
+     */
+    public RecordWriter putNumber(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return putText(Long.toString(value));
+        }
+        ensure(digits.length);
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        putDigits(value, 1);
+        return this;
+    }
+
+    /**
+     * Writes a number in decimal notation with a fixed number of digits
+     * after the point, rounded to the nearest unit of the last digit.
+     * This is what String.format() writes but for the numbers lying
+     * within a rounding error from the middle of two units, which may go
+     * either way. The numbers too large to be rounded this way,
+     * infinities and NaN are written by String.format().
+     * @param value the number.
+     * @param fractionDigits the number of the digits after the point,
+     *                       up to 15.
+     */
+    public RecordWriter putNumber(double value, int fractionDigits)
+            throws IOException {
+        long power = POWERS_OF_TEN[fractionDigits];
+        double scaled = Math.abs(value) * power;
+        if (!(scaled < MAX_SCALED)) {
+            return putText(String.format(Locale.ROOT,
+                    "%." + fractionDigits + "f", value));
+        }
+        long units = (long) (scaled + 0.5);
+        ensure(digits.length + fractionDigits + 2);
+        if (Double.doubleToRawLongBits(value) < 0) {
+            buffer.put((byte) '-');
+        }
+        putDigits(units / power, 1);
+        if (fractionDigits > 0) {
+            buffer.put((byte) '.');
+            putDigits(units % power, fractionDigits);
+        }
+        return this;
+    }
+
+    /**
+     * Writes bytes.
+     */
+    public RecordWriter put(byte[] bytes) throws IOException {
+        return put(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Gets the bytes written so far that haven't been written to the
+     * channel, all the bytes written if there is no channel.
+     */
+    public byte[] toByteArray() {
+        ByteBuffer content = buffer.duplicate();
+        content.flip();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the bytes the buffer has in memory to the channel.
+     * @throws IOException if the channel fails.
+     */
+    public void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private RecordWriter put(ByteBuffer content) throws IOException {
+        if (channel != null && content.remaining() > buffer.remaining()) {
+            flush();
+            if (content.remaining() > buffer.remaining()) {
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+                return this;
+            }
+        }
+        ensure(content.remaining());
+        buffer.put(content);
+        return this;
+    }
+
+    private void putPadded(String text, int length) throws IOException {
+        int written = Math.min(text.length(), length);
+        putText(text.substring(0, written));
+        skip(length - written);
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative number.
+     * @param minLength the number of digits to write at least, padding
+     *                  the number with leading zeros.
+     */
+    private void putDigits(long value, int minLength) {
+        int start = digits.length;
+        while (value != 0 || digits.length - start < minLength) {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    /**
+     * Makes room for a number of bytes writing the buffer out or making
+     * it larger.
+     */
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        if (channel != null) {
+            flush();
+            if (buffer.remaining() >= length) {
+                return;
+            }
+        }
+        ByteBuffer larger = ByteBuffer.allocate(
+                Math.max(buffer.capacity() * 2, buffer.position() + length))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+}
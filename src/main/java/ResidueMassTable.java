@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * An immutable table of residue masses used for ion generation. The
+ * masses are stored in a primitive array indexed by letter - 'A' that
+ * is never changed after construction, so a table may be shared by any
+ * number of threads.
+ */
+public final class ResidueMassTable {
+    public static final double MONOISOTOPIC_WATER_MASS = 18.010565;
+    public static final double AVERAGE_WATER_MASS = 18.01528;
+    public static final double CARBAMIDOMETHYL_MASS = 57.021464;
+    public static final double AVERAGE_CARBAMIDOMETHYL_MASS = 57.0513;
+
+    private static final String MODE_KEY = "mode";
+    private static final String WATER_KEY = "water";
+    private static final String FIXED_KEY = "fixed";
+    private static final String CARBAMIDOMETHYL = "carbamidomethyl";
+
+    /**
+     * The legacy table the ion generation has always used: the
+     * monoisotopic residue masses with the average water mass
+     * TheoreticScan.DELTA_Y. Loaded tables take their water mass from
+     * it too unless the configuration sets one, so that a file changing
+     * some residues doesn't shift the y-ions.
+     */
+    private static final ResidueMassTable STANDARD =
+            new ResidueMassTable(Mode.MONOISOTOPIC,
+                    baseMasses(Mode.MONOISOTOPIC), TheoreticScan.DELTA_Y);
+
+    private static volatile ResidueMassTable defaultTable = STANDARD;
+
+    private final Mode mode;
+    private final double[] masses;
+    private final double waterMass;
+
+    /**
+     * A kind of masses a table is built of.
+     */
+    public enum Mode {
+        MONOISOTOPIC,
+        AVERAGE
+    }
+
+    private ResidueMassTable(Mode mode, double[] masses, double waterMass) {
+        this.mode = mode;
+        this.masses = masses;
+        this.waterMass = waterMass;
+    }
+
+    /**
+     * Gets the table used for the scans created from now on.
+     * @return the current default table.
+     */
+    public static ResidueMassTable getDefault() {
+        return defaultTable;
+    }
+
+    /**
+     * Sets the table used for the scans created from now on. The scans
+     * already created keep the table they were created with.
+     * @param table the new default table.
+     */
+    public static void setDefault(ResidueMassTable table) {
+        defaultTable = table;
+    }
+
+    /**
+     * Gets the legacy table of the monoisotopic residue masses and the
+     * average water mass.
+     */
+    public static ResidueMassTable standard() {
+        return STANDARD;
+    }
+
+    /**
+     * Reads a residue mass configuration. Every non-empty line not
+     * starting with '#' is a key=value pair:
+     * mode=monoisotopic|average selects the base masses,
+     * water=mass sets the y-ion water mass, which is otherwise the one of
+     * the legacy table (use 18.010565 for the monoisotopic water),
+     * fixed=carbamidomethyl adds the carbamidomethyl mass to C,
+     * L=mass sets the mass of the residue L and
+     * L=+mass or L=-mass adds a fixed modification to it.
+     * The unknown residue X has no mass unless the file sets one.
+     * @param path the path to the configuration file.
+     * @return the table described in the file.
+     * @throws IOException if an error during reading the file occurs.
+     * @throws IllegalArgumentException if the file has a wrong line.
+     */
+    public static ResidueMassTable load(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path);
+        Mode mode = Mode.MONOISOTOPIC;
+        for (String line: lines) {
+            String[] pair = parseLine(line);
+            if (pair != null && pair[0].equalsIgnoreCase(MODE_KEY)) {
+                mode = Mode.valueOf(pair[1].toUpperCase());
+            }
+        }
+
+        double[] masses = baseMasses(mode);
+        double waterMass = STANDARD.waterMass;
+        for (String line: lines) {
+            String[] pair = parseLine(line);
+            if (pair == null || pair[0].equalsIgnoreCase(MODE_KEY)) {
+                continue;
+            }
+            String key = pair[0];
+            String value = pair[1];
+            if (key.equalsIgnoreCase(WATER_KEY)) {
+                waterMass = Double.valueOf(value);
+            } else if (key.equalsIgnoreCase(FIXED_KEY)) {
+                if (!value.equalsIgnoreCase(CARBAMIDOMETHYL)) {
+                    throw new IllegalArgumentException(
+                            "Unknown fixed modification: " + value);
+                }
+                masses['C' - 'A'] += mode == Mode.MONOISOTOPIC ?
+                        CARBAMIDOMETHYL_MASS : AVERAGE_CARBAMIDOMETHYL_MASS;
+            } else if (key.length() == 1 && Character.isLetter(key.charAt(0))) {
+                int index = Character.toUpperCase(key.charAt(0)) - 'A';
+                if (value.startsWith("+") || value.startsWith("-")) {
+                    masses[index] += Double.valueOf(value);
+                } else {
+                    masses[index] = Double.valueOf(value);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown key: " + key);
+            }
+        }
+        return new ResidueMassTable(mode, masses, waterMass);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the mass of a residue.
+     * @param letter the letter code of the residue in either case.
+     * @return the mass of the residue.
+     * @throws IllegalArgumentException if the letter is not a latin
+     * letter or the residue has no mass, like X.
+     */
+    public double getMass(char letter) {
+        int index = Character.toUpperCase(letter) - 'A';
+        if (index < 0 || index >= masses.length ||
+                Double.isNaN(masses[index])) {
+            throw new IllegalArgumentException("Unknown residue: " + letter);
+        }
+        return masses[index];
+    }
+
+    /**
+     * Gets the mass difference between a y-ion and the corresponding
+     * suffix of residues.
+     */
+    public double getWaterMass() {
+        return waterMass;
+    }
+
+    /**
+     * Makes an array containing masses of the residues. Each mass is
+     * stored at the position of its letter in the alphabet
+     * (letter - 'A'); the residues with no mass have NaN.
+     * @return a copy of the mass lookup table.
+     */
+    public double[] getMasses() {
+        return masses.clone();
+    }
+
+    private static double[] baseMasses(Mode mode) {
+        double[] masses = new double[26];
+        for (AminoAcid acid: AminoAcid.values()) {
+            masses[acid.getLetterCode() - 'A'] = mode == Mode.MONOISOTOPIC ?
+                    acid.getMass() : acid.getAverageMass();
+        }
+        return masses;
+    }
+
+    /**
+     * Splits a configuration line into a key and a value.
+     * @return the key and the value or null for empty and comment
+     * lines.
+     */
+    private static String[] parseLine(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        int separator = line.indexOf('=');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Wrong line: " + line);
+        }
+        return new String[] {line.substring(0, separator).trim(),
+                line.substring(separator + 1).trim()};
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of per-scan results kept in a directory. A result is stored
+ * under the fingerprint of everything it was computed from, so a
+ * changed input or parameter gives a new key and old results are never
+ * reused by mistake.
+ *
+ * The results are appended to segment files; an index from the keys to
+ * the positions of the results lives on the heap and is rebuilt from
+ * the segments when the cache is opened. Reads take no lock, so any
+ * number of threads may read at once. When the total size of the
+ * segments exceeds the bound, the oldest segment is deleted; the
+ * results read since it was written are copied to the newest segment
+ * first, so the ones in use stay.
+ *
+ * A segment is laid out as a magic number followed by records of a
+ * 16-byte key, a 4-byte length and the result.
+ */
+public class ResultCache implements Closeable {
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".bin";
+    private static final long MAGIC = 0x5253434143484531L;
+    private static final int RECORD_HEADER_BYTES =
+            2 * Long.BYTES + Integer.BYTES;
+    /**
+     * The number of segments the bound is split into.
+     */
+    private static final int SEGMENTS = 4;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<Key, Entry> index = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+    private int lastNumber;
+    private long bytes;
+
+    /**
+     * Opens a cache directory, creating it if needed, and indexes the
+     * results kept in it.
+     * @param directory the directory to keep the results in.
+     * @param maxBytes the bound of the total size of the results.
+     * @throws IOException if the directory can't be created or read.
+     */
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+                directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file: entries) {
+                if (getNumber(file) > 0) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort((file1, file2) ->
+                Integer.compare(getNumber(file1), getNumber(file2)));
+        try {
+            for (Path file: files) {
+                Segment segment = Segment.open(file);
+                if (segment != null) {
+                    segment.readIndex(index);
+                    segments.add(segment);
+                    bytes += segment.size;
+                }
+                lastNumber = getNumber(file);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets a stored result and marks it as recently used.
+     * @param key the fingerprint of the result.
+     * @return the stored bytes or null if there is no such result.
+     */
+    public byte[] get(Key key) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        byte[] value = new byte[entry.length];
+        try {
+            readFully(entry.segment.channel, ByteBuffer.wrap(value),
+                    entry.position);
+        } catch (IOException e) {
+            // the segment has been evicted
+            return null;
+        }
+        entry.used = true;
+        return value;
+    }
+
+    /**
+     * Stores a result. The cache is a best-effort one, so a failed write
+     * only leaves the result out.
+     * @param key the fingerprint of the result.
+     * @param value the bytes to store.
+     */
+    public synchronized void put(Key key, byte[] value) {
+        try {
+            index.put(key, append(key, ByteBuffer.wrap(value)));
+            if (bytes > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            // the result is left out
+        }
+    }
+
+    /**
+     * Closes the segment files. The results are written as they are
+     * put, so nothing is lost if a cache isn't closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Segment segment: segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        segments.clear();
+        index.clear();
+        current = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Entry append(Key key, ByteBuffer value) throws IOException {
+        if (current == null || current.size >= maxBytes / SEGMENTS) {
+            current = createSegment();
+            segments.add(current);
+            bytes += current.size;
+        }
+        int length = value.remaining();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        header.putLong(key.high).putLong(key.low).putInt(length).flip();
+        long position = current.size;
+        writeFully(current.channel, new ByteBuffer[]{header, value},
+                position);
+        current.size += RECORD_HEADER_BYTES + length;
+        bytes += RECORD_HEADER_BYTES + length;
+        return new Entry(current, position + RECORD_HEADER_BYTES, length);
+    }
+
+    private Segment createSegment() throws IOException {
+        while (true) {
+            Path file = directory.resolve(PREFIX + ++lastNumber + SUFFIX);
+            try {
+                FileChannel channel = FileChannel.open(file,
+                        StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+                magic.putLong(MAGIC).flip();
+                writeFully(channel, new ByteBuffer[]{magic}, 0);
+                return new Segment(file, channel, Long.BYTES);
+            } catch (FileAlreadyExistsException e) {
+                // written by another cache on the same directory
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments until the cache fits into three
+     * quarters of its bound, so that eviction doesn't run on every
+     * following write. The results read since the last eviction are
+     * moved to the newest segment and marked unused.
+     */
+    private void evict() throws IOException {
+        while (bytes > maxBytes / 4 * 3 && segments.peekFirst() != current) {
+            Segment oldest = segments.removeFirst();
+            bytes -= oldest.size;
+            Iterator<Map.Entry<Key, Entry>> entries =
+                    index.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Key, Entry> mapping = entries.next();
+                Entry entry = mapping.getValue();
+                if (entry.segment != oldest) {
+                    continue;
+                }
+                if (entry.used) {
+                    try {
+                        ByteBuffer value = ByteBuffer.allocate(entry.length);
+                        readFully(oldest.channel, value, entry.position);
+                        value.flip();
+                        mapping.setValue(append(mapping.getKey(), value));
+                        continue;
+                    } catch (IOException e) {
+                        // the result is dropped with the segment
+                    }
+                }
+                entries.remove();
+            }
+            oldest.channel.close();
+            Files.deleteIfExists(oldest.file);
+        }
+    }
+
+    /**
+     * Gets the number of a segment file.
+     * @return the number or 0 if the file is not a segment.
+     */
+    private static int getNumber(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers,
+                                   long position) throws IOException {
+        for (ByteBuffer buffer: buffers) {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * A file of results.
+     */
+    private static class Segment {
+        private final Path file;
+        private final FileChannel channel;
+        // guarded by the cache
+        private long size;
+
+        private Segment(Path file, FileChannel channel, long size) {
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * Opens a segment written before.
+         * @return the segment or null if the file is not a segment.
+         */
+        private static Segment open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ);
+            ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+            try {
+                readFully(channel, magic, 0);
+            } catch (EOFException e) {
+                magic.clear();
+            }
+            if (magic.getLong(0) != MAGIC) {
+                channel.close();
+                return null;
+            }
+            return new Segment(file, channel, channel.size());
+        }
+
+        /**
+         * Puts the results of the segment into an index. A record cut
+         * by a failed write ends the segment.
+         */
+        private void readIndex(Map<Key, Entry> index) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            long position = Long.BYTES;
+            while (position + RECORD_HEADER_BYTES <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                int length = header.getInt(2 * Long.BYTES);
+                long end = position + RECORD_HEADER_BYTES + length;
+                if (length < 0 || end > size) {
+                    break;
+                }
+                index.put(new Key(header.getLong(0),
+                                header.getLong(Long.BYTES)),
+                        new Entry(this, position + RECORD_HEADER_BYTES,
+                                length));
+                position = end;
+            }
+        }
+    }
+
+    /**
+     * The place of a result in a segment.
+     */
+    private static class Entry {
+        private final Segment segment;
+        private final long position;
+        private final int length;
+        private volatile boolean used;
+
+        private Entry(Segment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A 128-bit fingerprint of the inputs and parameters of a result.
+     */
+    public static final class Key {
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", high, low);
+        }
+    }
+
+    /**
+     * A fast 128-bit hash of the inputs and parameters of a result. It
+     * is not a cryptographic one: it tells apart inputs that differ by
+     * chance, which is all a cache keyed by its inputs needs.
+     */
+    public static class Fingerprint {
+        private long high = 0x6A09E667F3BCC908L;
+        private long low = 0xBB67AE8584CAA73BL;
+        private long length;
+
+        public Fingerprint add(String value) {
+            int length = value.length();
+            int i = 0;
+            // four chars at a time
+            for (; i + 4 <= length; i += 4) {
+                update(value.charAt(i) | (long) value.charAt(i + 1) << 16 |
+                        (long) value.charAt(i + 2) << 32 |
+                        (long) value.charAt(i + 3) << 48);
+            }
+            long rest = 0;
+            for (; i < length; i++) {
+                rest = rest << 16 | value.charAt(i);
+            }
+            update(rest);
+            // keeps "ab" + "c" apart from "a" + "bc"
+            update(length);
+            return this;
+        }
+
+        public Fingerprint add(int value) {
+            update(value);
+            return this;
+        }
+
+        public Fingerprint add(long value) {
+            update(value);
+            return this;
+        }
+
+        public Fingerprint add(double value) {
+            update(Double.doubleToLongBits(value));
+            return this;
+        }
+
+        public Fingerprint add(double[] values) {
+            for (double value: values) {
+                add(value);
+            }
+            update(values.length);
+            return this;
+        }
+
+        public Fingerprint add(Key key) {
+            update(key.high);
+            update(key.low);
+            return this;
+        }
+
+        /**
+         * Finishes the fingerprint.
+         * @return the key of everything added so far.
+         */
+        public Key getKey() {
+            long a = mix(high ^ length);
+            long b = mix(low + a);
+            return new Key(mix(a + b), b);
+        }
+
+        private void update(long value) {
+            high = Long.rotateLeft((high ^ value) * 0x9E3779B97F4A7C15L, 31);
+            low = (low + value) * 0xC2B2AE3D27D4EB4FL;
+            low ^= low >>> 29;
+            length++;
+        }
+
+        /**
+         * The finalizer of MurmurHash3, spreading every input bit over
+         * the whole value.
+         */
+        private static long mix(long value) {
+            value ^= value >>> 33;
+            value *= 0xFF51AFD7ED558CCDL;
+            value ^= value >>> 33;
+            value *= 0xC4CEB9FE1A85EC53L;
+            value ^= value >>> 33;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the scans of a memory-mapped deconvolution output
+ * file. A range of the file is split at the first scan beginning after
+ * its middle, so every part contains whole scans and the parts are of
+ * about the same size.
+ */
+public class ScanFileSpliterator implements Spliterator<ExperimentalScan> {
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long MIN_SPLIT_SIZE = 1 << 20;
+
+    private final DeconvolutionProgram program;
+    private final PeakFilter filter;
+    private final MappedFile file;
+    private final byte[] marker;
+    private long start;
+    private final long end;
+    private Iterator<ExperimentalScan> scans;
+
+    /**
+     * Makes a spliterator over a whole file. The peaks pass the default
+     * PeakFilter.
+     * @param program the program that has written the file.
+     * @param filePath the path to the file.
+     * @throws IOException if an error during mapping the file occurs.
+     */
+    public ScanFileSpliterator(DeconvolutionProgram program, Path filePath)
+            throws IOException {
+        this(program, filePath, PeakFilter.getDefault());
+    }
+
+    /**
+     * Makes a spliterator over a whole file.
+     * @param program the program that has written the file.
+     * @param filePath the path to the file.
+     * @param filter the filter of the peaks of every scan.
+     * @throws IOException if an error during mapping the file occurs.
+     */
+    public ScanFileSpliterator(DeconvolutionProgram program, Path filePath,
+                               PeakFilter filter) throws IOException {
+        this(program, filter, new MappedFile(filePath), 0);
+    }
+
+    private ScanFileSpliterator(DeconvolutionProgram program,
+                                PeakFilter filter, MappedFile file,
+                                long start) {
+        this(program, filter, file, start, file.size);
+    }
+
+    private ScanFileSpliterator(DeconvolutionProgram program,
+                                PeakFilter filter, MappedFile file,
+                                long start, long end) {
+        this.program = program;
+        this.filter = filter;
+        this.file = file;
+        this.marker = program.getScanMarker()
+                .getBytes(StandardCharsets.US_ASCII);
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ExperimentalScan> action) {
+        Iterator<ExperimentalScan> iterator = getScans();
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        action.accept(iterator.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super ExperimentalScan> action) {
+        getScans().forEachRemaining(action);
+    }
+
+    @Override
+    public Spliterator<ExperimentalScan> trySplit() {
+        if (scans != null || end - start < MIN_SPLIT_SIZE) {
+            return null;
+        }
+        long boundary = findScanStart(start + (end - start) / 2);
+        if (boundary >= end) {
+            return null;
+        }
+        Spliterator<ExperimentalScan> prefix =
+                new ScanFileSpliterator(program, filter, file, start,
+                        boundary);
+        start = boundary;
+        return prefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return the number of the bytes left to read.
+     */
+    @Override
+    public long estimateSize() {
+        return scans == null ? end - start : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * Releases the file. The mapped memory itself is freed when the
+     * buffers are collected.
+     */
+    public void close() {
+        try {
+            file.channel.close();
+        } catch (IOException e) {
+            throw new DeconvolutionProgram.ScanReadError(e);
+        }
+    }
+
+    private Iterator<ExperimentalScan> getScans() {
+        if (scans == null) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new RangeInputStream(file, start, end),
+                    StandardCharsets.UTF_8));
+            try {
+                scans = program.getOutputIterator(reader, filter);
+            } catch (IOException e) {
+                throw new DeconvolutionProgram.ScanReadError(e);
+            }
+        }
+        return scans;
+    }
+
+    /**
+     * Finds the first line starting with the scan marker at or after
+     * the given position.
+     * @return the position of the line or end if there is none.
+     */
+    private long findScanStart(long from) {
+        for (long pos = from; pos + marker.length <= end; pos++) {
+            if (pos > 0 && file.get(pos - 1) != '\n') {
+                continue;
+            }
+            int i = 0;
+            while (i < marker.length && file.get(pos + i) == marker[i]) {
+                i++;
+            }
+            if (i == marker.length) {
+                return pos;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * A file mapped into memory by chunks, as a single mapping can't
+     * exceed 2 GB.
+     */
+    private static class MappedFile {
+        private final FileChannel channel;
+        private final MappedByteBuffer[] chunks;
+        private final long size;
+
+        private MappedFile(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>
+                    CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(CHUNK_SIZE, size - position));
+            }
+        }
+
+        private byte get(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)]
+                    .get((int) (pos & (CHUNK_SIZE - 1)));
+        }
+    }
+
+    /**
+     * A stream reading a range of a mapped file. It has its own views
+     * of the chunks, so streams over one file can be read concurrently.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final MappedFile file;
+        private final ByteBuffer[] views;
+        private long pos;
+        private final long end;
+
+        private RangeInputStream(MappedFile file, long start, long end) {
+            this.file = file;
+            this.views = new ByteBuffer[file.chunks.length];
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            if (pos >= end) {
+                return -1;
+            }
+            return file.get(pos++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (pos >= end) {
+                return -1;
+            }
+            int chunk = (int) (pos >>> CHUNK_BITS);
+            int chunkPos = (int) (pos & (CHUNK_SIZE - 1));
+            if (views[chunk] == null) {
+                views[chunk] = file.chunks[chunk].duplicate();
+            }
+            ByteBuffer view = views[chunk];
+            int count = (int) Math.min(Math.min(length, end - pos),
+                    view.capacity() - chunkPos);
+            view.position(chunkPos);
+            view.get(buffer, offset, count);
+            pos += count;
+            return count;
+        }
+    }
+}
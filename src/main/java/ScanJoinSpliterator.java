@@ -0,0 +1,185 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator pairing theoretic and experimental scans with equal
+ * ids. The theoretic scans, a table row each, are read when the first
+ * pair is requested; the pairs follow their order. While both sources
+ * ascend by id, they are merged and the experimental scans are read
+ * lazily, one scan at a time. When an experimental id comes out of
+ * order, the rest of the experimental scans is indexed by id, keeping
+ * only the ids of the theoretic scans not paired yet, and the scans the
+ * merge passed without a pair are paired through the index before the
+ * rest. A table not sorted by id is paired through such an index from
+ * the start. If some experimental scans share an id, the last one read
+ * before the pair is made is taken.
+ */
+public class ScanJoinSpliterator
+        extends Spliterators.AbstractSpliterator<ScanJoinSpliterator.Pair> {
+    private Iterator<TheoreticScan> theoreticSource;
+    private final Iterator<ExperimentalScan> experimentalScans;
+    private List<TheoreticScan> theoreticScans;
+    private int position;
+    /**
+     * The last experimental scan of the latest id read by the merge.
+     */
+    private ExperimentalScan current;
+    /**
+     * The experimental scan read after the current one.
+     */
+    private ExperimentalScan next;
+    private Map<Integer, ExperimentalScan> experimentalIndex;
+
+    /**
+     * Makes a spliterator joining two sources.
+     * @param theoreticScans theoretic scans, best in ascending order of
+     *                       ids.
+     * @param experimentalScans experimental scans, best in ascending
+     *                          order of ids.
+     */
+    public ScanJoinSpliterator(Iterator<TheoreticScan> theoreticScans,
+                               Iterator<ExperimentalScan> experimentalScans) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.theoreticSource = theoreticScans;
+        this.experimentalScans = experimentalScans;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Pair> action) {
+        if (theoreticScans == null) {
+            start();
+        }
+        while (position < theoreticScans.size()) {
+            TheoreticScan theoreticScan = theoreticScans.get(position);
+            if (theoreticScan == null) {
+                position++;
+                continue;
+            }
+            boolean merging = experimentalIndex == null;
+            ExperimentalScan experimentalScan =
+                    find(theoreticScan.getId());
+            if (merging && experimentalIndex != null) {
+                // look up the scans the merge passed without a pair too
+                position = 0;
+                continue;
+            }
+            if (experimentalScan != null) {
+                // the ions of the scan are built lazily, don't keep them
+                theoreticScans.set(position++, null);
+                action.accept(new Pair(theoreticScan, experimentalScan));
+                return true;
+            }
+            position++;
+        }
+        return false;
+    }
+
+    private void start() {
+        theoreticScans = new ArrayList<>();
+        theoreticSource.forEachRemaining(theoreticScans::add);
+        theoreticSource = null;
+        for (int i = 1; i < theoreticScans.size(); i++) {
+            if (theoreticScans.get(i).getId() <
+                    theoreticScans.get(i - 1).getId()) {
+                index();
+                return;
+            }
+        }
+        next = nextExperimental();
+        advance();
+    }
+
+    /**
+     * Finds the experimental scan with the id of the theoretic scan at
+     * the position.
+     */
+    private ExperimentalScan find(int id) {
+        while (experimentalIndex == null && current != null &&
+                current.getId() < id) {
+            advance();
+        }
+        if (experimentalIndex != null) {
+            return experimentalIndex.get(id);
+        }
+        return current != null && current.getId() == id ? current : null;
+    }
+
+    /**
+     * Moves the merge to the next id of the experimental scans.
+     */
+    private void advance() {
+        current = next;
+        next = nextExperimental();
+        while (current != null && next != null &&
+                next.getId() <= current.getId()) {
+            if (next.getId() < current.getId()) {
+                index();
+                return;
+            }
+            current = next;
+            next = nextExperimental();
+        }
+    }
+
+    /**
+     * Indexes the experimental scans not read by the merge yet with the
+     * ids of the theoretic scans not paired yet.
+     */
+    private void index() {
+        Set<Integer> ids = new HashSet<>();
+        for (TheoreticScan scan: theoreticScans) {
+            if (scan != null) {
+                ids.add(scan.getId());
+            }
+        }
+        experimentalIndex = new HashMap<>();
+        put(current, ids);
+        put(next, ids);
+        for (ExperimentalScan scan = nextExperimental(); scan != null;
+             scan = nextExperimental()) {
+            put(scan, ids);
+        }
+        current = null;
+        next = null;
+    }
+
+    private void put(ExperimentalScan scan, Set<Integer> ids) {
+        if (scan != null && ids.contains(scan.getId())) {
+            experimentalIndex.put(scan.getId(), scan);
+        }
+    }
+
+    private ExperimentalScan nextExperimental() {
+        return experimentalScans.hasNext() ? experimentalScans.next() : null;
+    }
+
+    /**
+     * A theoretic scan and an experimental scan with the same id.
+     */
+    public static class Pair {
+        private final TheoreticScan theoreticScan;
+        private final ExperimentalScan experimentalScan;
+
+        private Pair(TheoreticScan theoreticScan,
+                     ExperimentalScan experimentalScan) {
+            this.theoreticScan = theoreticScan;
+            this.experimentalScan = experimentalScan;
+        }
+
+        public TheoreticScan getTheoreticScan() {
+            return theoreticScan;
+        }
+
+        public ExperimentalScan getExperimentalScan() {
+            return experimentalScan;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * A class representing how well an experimental scan is explained by a
+ * theoretic one.
+ */
+public class ScanScore {
+    private final int ions;
+    private final int matchedIons;
+    private final double coverage;
+    private final int longestRun;
+    private final double score;
+
+    private ScanScore(int ions, int matchedIons, double coverage,
+                      int longestRun, double score) {
+        this.ions = ions;
+        this.matchedIons = matchedIons;
+        this.coverage = coverage;
+        this.longestRun = longestRun;
+        this.score = score;
+    }
+
+    /**
+     * Matches a theoretic scan against experimental peaks and scores it.
+     * @param theoreticScan the theoretic scan to score.
+     * @param peaks experimental masses in ascending order.
+     * @param tolerance the tolerance of comparison.
+     * @return the score of the scan.
+     */
+    public static ScanScore compute(TheoreticScan theoreticScan,
+                                    double[] peaks, Tolerance tolerance) {
+        Accumulator accumulator = new Accumulator(theoreticScan);
+        MassMatcher.sweep(theoreticScan.getIonMasses(), peaks, tolerance,
+                (ion, peak) -> accumulator.addMatch(ion));
+        return accumulator.build(peaks, tolerance);
+    }
+
+    /**
+     * Gets the number of the theoretic ions of the scan.
+     */
+    public int getIons() {
+        return ions;
+    }
+
+    /**
+     * Gets the number of the theoretic ions matched by at least one peak.
+     */
+    public int getMatchedIons() {
+        return matchedIons;
+    }
+
+    /**
+     * Gets the share of the cleavage sites confirmed by a b- or y-ion.
+     */
+    public double getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Gets the length of the longest run of consecutive confirmed
+     * cleavage sites.
+     */
+    public int getLongestRun() {
+        return longestRun;
+    }
+
+    /**
+     * Gets -log10 of the probability to match at least as many ions by
+     * chance. Every ion is assumed to hit a peak independently with the
+     * probability equal to the share of the precursor mass range covered
+     * by the tolerance windows of the peaks.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Collects the matches of a scan found during the sweep of compute().
+     */
+    private static class Accumulator {
+        private final TheoreticScan theoreticScan;
+        private final boolean[] matched;
+
+        private Accumulator(TheoreticScan theoreticScan) {
+            this.theoreticScan = theoreticScan;
+            this.matched = new boolean[theoreticScan.getIons().length];
+        }
+
+        /**
+         * Registers a match of an ion.
+         * @param ion the index of the ion in the getIons() array.
+         */
+        private void addMatch(int ion) {
+            matched[ion] = true;
+        }
+
+        /**
+         * Makes the score of the registered matches.
+         * @param peaks the experimental masses in ascending order.
+         * @param tolerance the tolerance the matches were found with.
+         * @return the score of the scan.
+         */
+        private ScanScore build(double[] peaks, Tolerance tolerance) {
+            TheoreticScan.Ion[] ions = theoreticScan.getIons();
+            int residues = theoreticScan.getResidueMasses().length;
+            boolean[] cleavages = new boolean[Math.max(residues - 1, 0)];
+            int matchedIons = 0;
+            for (int i = 0; i < ions.length; i++) {
+                if (!matched[i]) {
+                    continue;
+                }
+                matchedIons++;
+                int cleavage = ions[i].getType() == 'B' ?
+                        ions[i].getNumber() : residues - ions[i].getNumber();
+                if (cleavage >= 1 && cleavage <= cleavages.length) {
+                    cleavages[cleavage - 1] = true;
+                }
+            }
+
+            int covered = 0;
+            int run = 0;
+            int longestRun = 0;
+            for (boolean cleavage: cleavages) {
+                if (cleavage) {
+                    covered++;
+                    run++;
+                    longestRun = Math.max(longestRun, run);
+                } else {
+                    run = 0;
+                }
+            }
+            double coverage = cleavages.length == 0 ? 0 :
+                    (double) covered / cleavages.length;
+
+            double windows = 0;
+            for (double peak: peaks) {
+                windows += 2 * tolerance.getError(peak);
+            }
+            double range = theoreticScan.getPrecursorMass();
+            double probability = range > 0 ? Math.min(1, windows / range) : 1;
+            return new ScanScore(ions.length, matchedIons, coverage,
+                    longestRun, binomialTailScore(ions.length, matchedIons,
+                    probability));
+        }
+    }
+
+    /**
+     * Computes -log10 P(X >= k) for X ~ Binomial(n, p).
+     */
+    static double binomialTailScore(int n, int k, double p) {
+        final double MIN_PROBABILITY = 1e-12;
+        if (k <= 0 || p >= 1) {
+            return 0;
+        }
+        if (k > n) {
+            return Double.POSITIVE_INFINITY;
+        }
+        p = Math.max(p, MIN_PROBABILITY);
+        double logP = Math.log(p);
+        double logQ = Math.log1p(-p);
+
+        // log of the k-th term, then the following terms by recurrence
+        double logTerm = k * logP + (n - k) * logQ;
+        for (int i = 1; i <= k; i++) {
+            logTerm += Math.log((double) (n - k + i) / i);
+        }
+        double maxLog = logTerm;
+        double sum = 1;
+        double current = logTerm;
+        for (int i = k; i < n; i++) {
+            current += Math.log((double) (n - i) / (i + 1)) + logP - logQ;
+            if (current > maxLog) {
+                sum = sum * Math.exp(maxLog - current) + 1;
+                maxLog = current;
+            } else {
+                sum += Math.exp(current - maxLog);
+            }
+        }
+        double logTail = maxLog + Math.log(sum);
+        return Math.max(0, -logTail / Math.log(10));
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The statistics of a table of theoretic scans: the distributions of the
+ * eValues by decades, of the charges, of the precursor masses and of the
+ * sequence lengths, the share of the modified scans and the frequencies
+ * of the mass shifts. The table is read in one parallel pass, every
+ * thread counting into a summary of its own made of arrays of primitive
+ * counters, and the summaries of the threads are merged in the end.
+ */
+public class TableSummary {
+    /**
+     * The precision the masses of the shifts are rounded to.
+     */
+    public static final double SHIFT_PRECISION = 0.01;
+
+    private final double massStep;
+    private final int lengthStep;
+    private long scans;
+    private long modifiedScans;
+    private long shifts;
+    private long nonPositiveEValues;
+    private final Counts eValueDecades = new Counts();
+    private final Counts charges = new Counts();
+    private final Counts precursorMasses = new Counts();
+    private final Counts lengths = new Counts();
+    private final Counts massShifts = new Counts();
+
+    /**
+     * Makes an empty summary.
+     * @param massStep the width of the bins of the precursor masses.
+     * @param lengthStep the width of the bins of the sequence lengths.
+     */
+    public TableSummary(double massStep, int lengthStep) {
+        if (!(massStep > 0) || lengthStep < 1) {
+            throw new IllegalArgumentException("Bin widths must be " +
+                    "positive: " + massStep + ", " + lengthStep);
+        }
+        this.massStep = massStep;
+        this.lengthStep = lengthStep;
+    }
+
+    /**
+     * Summarizes the scans of a table in parallel.
+     * @param scans the scans of the table.
+     * @param massStep the width of the bins of the precursor masses.
+     * @param lengthStep the width of the bins of the sequence lengths.
+     * @return the summary of all the scans.
+     */
+    public static TableSummary of(Stream<TheoreticScan> scans,
+                                  double massStep, int lengthStep) {
+        return scans.parallel().collect(
+                () -> new TableSummary(massStep, lengthStep),
+                TableSummary::add, TableSummary::merge);
+    }
+
+    /**
+     * Counts a scan.
+     */
+    public void add(TheoreticScan scan) {
+        scans++;
+        double eValue = scan.getEValue();
+        if (eValue > 0) {
+            eValueDecades.add((long) Math.floor(Math.log10(eValue)), 1);
+        } else {
+            nonPositiveEValues++;
+        }
+        charges.add(scan.getCharge(), 1);
+        precursorMasses.add(
+                (long) Math.floor(scan.getPrecursorMass() / massStep), 1);
+        lengths.add(scan.getResidueMasses().length / lengthStep, 1);
+        if (!scan.getModifications().isEmpty()) {
+            modifiedScans++;
+        }
+        for (TheoreticScan.MassShift shift: scan.getModifications()) {
+            shifts++;
+            massShifts.add(Math.round(shift.getMass() / SHIFT_PRECISION), 1);
+        }
+    }
+
+    /**
+     * Adds the counts of another summary with the same bins to this one.
+     */
+    public void merge(TableSummary other) {
+        scans += other.scans;
+        modifiedScans += other.modifiedScans;
+        shifts += other.shifts;
+        nonPositiveEValues += other.nonPositiveEValues;
+        eValueDecades.merge(other.eValueDecades);
+        charges.merge(other.charges);
+        precursorMasses.merge(other.precursorMasses);
+        lengths.merge(other.lengths);
+        massShifts.merge(other.massShifts);
+    }
+
+    public long getScans() {
+        return scans;
+    }
+
+    public long getModifiedScans() {
+        return modifiedScans;
+    }
+
+    /**
+     * Gets the number of the mass shifts of all the scans.
+     */
+    public long getShifts() {
+        return shifts;
+    }
+
+    /**
+     * Gets the number of the scans with eValues of zero or below, which
+     * belong to no decade.
+     */
+    public long getNonPositiveEValues() {
+        return nonPositiveEValues;
+    }
+
+    /**
+     * Gets the distribution of the eValues.
+     * @return a map from the exponent n of a decade [10^n, 10^(n+1)) to
+     * the number of the scans with eValues in it.
+     */
+    public SortedMap<Long, Long> getEValueDecades() {
+        return eValueDecades.toMap(1);
+    }
+
+    /**
+     * Gets the distribution of the precursor charges.
+     */
+    public SortedMap<Long, Long> getCharges() {
+        return charges.toMap(1);
+    }
+
+    /**
+     * Gets the distribution of the precursor masses.
+     * @return a map from the lower bounds of the bins to the numbers of
+     * the scans.
+     */
+    public SortedMap<Double, Long> getPrecursorMasses() {
+        return precursorMasses.toMap(massStep);
+    }
+
+    /**
+     * Gets the distribution of the numbers of residues of the sequences.
+     * @return a map from the lower bounds of the bins to the numbers of
+     * the scans.
+     */
+    public SortedMap<Long, Long> getLengths() {
+        return lengths.toMap(lengthStep);
+    }
+
+    /**
+     * Gets the frequencies of the mass shifts.
+     * @return a map from the masses rounded to SHIFT_PRECISION to the
+     * numbers of the shifts.
+     */
+    public SortedMap<Double, Long> getMassShifts() {
+        return massShifts.toMap(SHIFT_PRECISION);
+    }
+
+    /**
+     * Counters of long keys in an open-addressing table.
+     */
+    private static class Counts {
+        private long[] keys = new long[16];
+        private long[] counts = new long[16];
+        private int size;
+
+        private void add(long key, long count) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (counts[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (counts[slot] != 0) {
+                counts[slot] += count;
+                return;
+            }
+            keys[slot] = key;
+            counts[slot] = count;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        private void merge(Counts other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.keys[i], other.counts[i]);
+                }
+            }
+        }
+
+        private SortedMap<Long, Long> toMap(long scale) {
+            SortedMap<Long, Long> map = new TreeMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (counts[i] != 0) {
+                    map.put(keys[i] * scale, counts[i]);
+                }
+            }
+            return map;
+        }
+
+        private SortedMap<Double, Long> toMap(double scale) {
+            SortedMap<Double, Long> map = new TreeMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (counts[i] != 0) {
+                    map.put(keys[i] * scale, counts[i]);
+                }
+            }
+            return map;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new long[oldCounts.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) {
+                    add(oldKeys[i], oldCounts[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ mixed >>> 32);
+        }
+    }
+}
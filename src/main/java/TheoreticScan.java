@@ -4,22 +4,43 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A class for a scan prediction based on theoretical data.
  */
 public class TheoreticScan extends Scan {
-    private AminoAcid[] sequence;
-    private Ion[] ions;
+    /**
+     * The mass difference between a y-ion and the corresponding suffix
+     * of residues.
+     */
+    public static final double DELTA_Y = 18.01528;
+
     private double eValue;
     private String stringSequence;
-    private List<MassShift> modifications;
+    private final ResidueMassTable residueTable;
+    // Built on the first use. A scan may be shared by parallel workers,
+    // so the fields are volatile to publish the filled arrays safely;
+    // workers racing for a field build equal values.
+    private volatile AminoAcid[] sequence;
+    private volatile Ion[] ions;
+    private volatile double[] ionMasses;
+    private volatile ChargeLadder chargeLadder;
+    private volatile List<MassShift> modifications;
 
     public TheoreticScan(int id, int prsmId, int charge, double precursorMass,
                          double eValue, String stringSequence) {
+        this(id, prsmId, charge, precursorMass, eValue, stringSequence,
+                ResidueMassTable.getDefault());
+    }
+
+    public TheoreticScan(int id, int prsmId, int charge, double precursorMass,
+                         double eValue, String stringSequence,
+                         ResidueMassTable residueTable) {
         super(id, prsmId, charge, precursorMass);
         this.eValue = eValue;
         this.stringSequence = stringSequence;
+        this.residueTable = residueTable;
     }
 
     /**
@@ -35,6 +56,35 @@ public class TheoreticScan extends Scan {
         return ions;
     }
 
+    /**
+     * Gets the masses of all the b- and y-ions of the scan.
+     * @return an array with the masses of the ions returned by
+     * getIons() in the same order.
+     */
+    public double[] getIonMasses() {
+        if (ionMasses == null) {
+            Ion[] scanIons = getIons();
+            double[] masses = new double[scanIons.length];
+            for (int i = 0; i < scanIons.length; i++) {
+                masses[i] = scanIons[i].getMass();
+            }
+            ionMasses = masses;
+        }
+        return ionMasses;
+    }
+
+    /**
+     * Gets the m/z values of the ions of the scan in all the charge
+     * states from 1 to the precursor charge.
+     * @return a ladder built from the ions returned by getIons().
+     */
+    public ChargeLadder getChargeLadder() {
+        if (chargeLadder == null) {
+            chargeLadder = ChargeLadder.build(getIonMasses(), getCharge());
+        }
+        return chargeLadder;
+    }
+
     public double getEValue() {
         return eValue;
     }
@@ -44,9 +94,41 @@ public class TheoreticScan extends Scan {
      * @return an array with all the amino acids of the peptide.
      */
     public AminoAcid[] getSequence() {
+        if (sequence == null) {
+            makeSequence();
+        }
         return sequence;
     }
 
+    /**
+     * Gets the masses of the residues of the sequence without any
+     * modifications.
+     * @return an array with the mass of every amino acid of the
+     * peptide in the sequence order.
+     */
+    public double[] getResidueMasses() {
+        double[] residues = new double[stringSequence.length()];
+        int acidsNumber = 0;
+        for (int pos = 0; pos < stringSequence.length(); pos++) {
+            char c = stringSequence.charAt(pos);
+            if (c == '[') {
+                pos = stringSequence.indexOf(']', pos);
+            } else if (Character.isLetter(c)) {
+                residues[acidsNumber++] = residueTable.getMass(c);
+            }
+        }
+        return Arrays.copyOf(residues, acidsNumber);
+    }
+
+    /**
+     * Gets the residue masses the ions of the scan are built with.
+     * @return the table that was the default one when the scan was
+     * created.
+     */
+    public ResidueMassTable getResidueTable() {
+        return residueTable;
+    }
+
     /**
      * Gets the amino acid sequence in the string form.
      * @return a string representing the acid sequence of the peptide.
@@ -56,16 +138,44 @@ public class TheoreticScan extends Scan {
     }
 
     /**
-     * Makes a stream containing all the scans from a table.
-     * @param tablePath the path to the file with the table.
+     * Makes a stream containing all the scans from a table. The scans
+     * use the default ResidueMassTable.
+     * @param tablePath the path to the file with the table or to a
+     *                  directory of tables read at once by the default
+     *                  ReadScheduler.
      * @return a stream with all the scans presented in the table.
      * @throws IOException if an error occurs during reading the table.
      */
     public static Stream<TheoreticScan> readTable(Path tablePath)
             throws IOException {
+        return readTable(tablePath, ResidueMassTable.getDefault(),
+                ReadScheduler.getDefault());
+    }
+
+    /**
+     * Makes a stream containing all the scans from a table.
+     * @param tablePath the path to the file with the table or to a
+     *                  directory of tables.
+     * @param residueTable the residue masses of the scans.
+     * @param scheduler the scheduler reading the tables of a directory.
+     * @return a stream with all the scans presented in the table.
+     * @throws IOException if an error occurs during reading the table.
+     */
+    public static Stream<TheoreticScan> readTable(Path tablePath,
+                                                  ResidueMassTable residueTable,
+                                                  ReadScheduler scheduler)
+            throws IOException {
+        if (Files.isDirectory(tablePath)) {
+            ReadScheduler.Reading<TheoreticScan> scans = scheduler.read(
+                    ReadScheduler.listFiles(tablePath),
+                    file -> readTable(file, residueTable, scheduler));
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                    scans, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(scans::close);
+        }
         return Files.lines(tablePath)
                 .skip(1)
-                .map(TheoreticScan::parseTableLine);
+                .map(line -> parseTableLine(line, residueTable));
     }
 
     /**
@@ -90,7 +200,7 @@ public class TheoreticScan extends Scan {
      */
     public List<MassShift> getModifications() {
         if (modifications == null) {
-            modifications = new ArrayList<>();
+            List<MassShift> shifts = new ArrayList<>();
             int acids = 0;
             int start = 0, end = 0;
             double mass = 0;
@@ -103,12 +213,13 @@ public class TheoreticScan extends Scan {
                     int massEndIndex = stringSequence.indexOf(']', pos);
                     mass = Double.valueOf(stringSequence.substring(pos,
                             massEndIndex));
-                    modifications.add(new MassShift(start, end, mass));
+                    shifts.add(new MassShift(start, end, mass));
                     pos = massEndIndex;
                 } else {
                     acids++;
                 }
             }
+            modifications = shifts;
         }
         return modifications;
     }
@@ -189,7 +300,8 @@ public class TheoreticScan extends Scan {
      * @return a TheoreticScan representation of the scan described in
      * the line.
      */
-    private static TheoreticScan parseTableLine(String line) {
+    private static TheoreticScan parseTableLine(String line,
+                                                ResidueMassTable residueTable) {
         String[] data = line.split("\t");
         Integer id  = Integer.valueOf(data[2]);
         Integer prsmId = Integer.valueOf(data[1]);
@@ -203,75 +315,26 @@ public class TheoreticScan extends Scan {
 
 
         return new TheoreticScan(id, prsmId, charge, precursorMass, eValue,
-                sequenceStr);
+                sequenceStr, residueTable);
     }
 
     private void makeSequence() {
         List<AminoAcid> aminoSequence = new ArrayList<>();
         for (char c: stringSequence.toCharArray()) {
             if (Character.isLetter(c)) {
-                aminoSequence.add(AminoAcid.valueOf(String.valueOf(c)));
+                aminoSequence.add(AminoAcid.fromLetter(c));
             }
         }
-        sequence = new AminoAcid[aminoSequence.size()];
-        for (int i = 0; i < sequence.length; i++) {
-            sequence[i] = aminoSequence.get(i);
+        AminoAcid[] acids = new AminoAcid[aminoSequence.size()];
+        for (int i = 0; i < acids.length; i++) {
+            acids[i] = aminoSequence.get(i);
         }
+        sequence = acids;
     }
 
     private void makeIons() {
-        final double DELTA_Y = 18.01528;
-
-        int pos = 0;
-        double prefMass = 0.0;
-        boolean modified = false;
-        double[] acidMasses = AminoAcid.getMasses();
-        List<Ion> ionsBList = new ArrayList<>();
-        List<Ion> ionsYList = new ArrayList<>();
-        int acidsNumber = 0;
-
-        for (; pos < stringSequence.length() - 1; pos++) {
-            if (Character.isLetter(stringSequence.charAt(pos))) {
-                acidsNumber++;
-                prefMass += acidMasses[stringSequence.charAt(pos) - 'A'];
-                if (!modified) {
-                    ionsBList.add(new Ion('B', acidsNumber, prefMass));
-                }
-            } else {
-                switch (stringSequence.charAt(pos)) {
-                    case '(': {
-                        modified = true;
-                        break;
-                    } case ')': {
-                        pos += 2;
-                        int closingPos = stringSequence.indexOf(']', pos);
-                        prefMass += Double.valueOf(
-                                stringSequence.substring(pos, closingPos));
-                        pos = closingPos;
-                        modified = false;
-                        ionsBList.add(new Ion('B', acidsNumber, prefMass));
-                        break;
-                    }
-                }
-            }
-        }
-        double totalMass = prefMass;
-        if (Character.isLetter(stringSequence.charAt(stringSequence.length() - 1))) {
-            acidsNumber++;
-            totalMass += acidMasses[
-                    stringSequence.charAt(stringSequence.length() - 1) - 'A'];
-        }
-        for (Ion ionB: ionsBList) {
-            ionsYList.add(new Ion('Y', acidsNumber - ionB.getNumber(),
-                    totalMass - ionB.getMass() + DELTA_Y));
-        }
-        ions = new Ion[ionsBList.size() * 2];
-        for (int i = 0; i < ionsBList.size(); i++) {
-            ions[i] = ionsBList.get(i);
-        }
-        for (int i = 0; i < ionsYList.size(); i++) {
-            ions[i + ionsBList.size()] = ionsYList.get(i);
-        }
-        Arrays.sort(ions, Ion.MASS_ASCENDING_ORDER);
+        IonLadder ladder = IonLadder.build(stringSequence, residueTable);
+        ionMasses = ladder.getMasses();
+        ions = ladder.getIons();
     }
 }
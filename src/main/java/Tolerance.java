@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class representing the allowed difference between a theoretic mass
+ * and an experimental peak. The allowed difference may depend on the
+ * mass.
+ */
+public abstract class Tolerance {
+    private static final String PPM_SUFFIX = "ppm";
+    private static final String DALTON_SUFFIX = "da";
+    private static final String PART_SEPARATOR = ",";
+    private static final String THRESHOLD_SEPARATOR = ":";
+    private static final String LIST_SEPARATOR = ";";
+
+    /**
+     * Gets the maximum allowed difference for a mass.
+     * @param mass the theoretic mass.
+     * @return the half-width of the window around the mass.
+     */
+    public abstract double getError(double mass);
+
+    /**
+     * Makes a tolerance proportional to the mass.
+     * @param accuracy the allowed difference as a share of the mass.
+     */
+    public static Tolerance relative(double accuracy) {
+        return new Relative(accuracy);
+    }
+
+    /**
+     * Makes a tolerance proportional to the mass.
+     * @param ppm the allowed difference in parts per million.
+     */
+    public static Tolerance ppm(double ppm) {
+        return new Relative(ppm * 1e-6);
+    }
+
+    /**
+     * Makes a tolerance independent of the mass.
+     * @param dalton the allowed difference in daltons.
+     */
+    public static Tolerance absolute(double dalton) {
+        return new Absolute(dalton);
+    }
+
+    /**
+     * Parses a tolerance description. A description is a single
+     * tolerance or a comma-separated list of them where every one but
+     * the first is prefixed with the mass it starts to apply at, like
+     * "0.01Da,1000:10ppm". A single tolerance is either a number with
+     * the "ppm" or "Da" suffix or a plain number meaning a share of the
+     * mass.
+     * @param description the string to parse.
+     * @return the described tolerance.
+     * @throws IllegalArgumentException if the description is wrong.
+     */
+    public static Tolerance parse(String description) {
+        String[] parts = description.split(PART_SEPARATOR);
+        if (parts.length == 1) {
+            return parseSingle(parts[0]);
+        }
+        List<Tolerance> tolerances = new ArrayList<>();
+        double[] thresholds = new double[parts.length - 1];
+        tolerances.add(parseSingle(parts[0]));
+        for (int i = 1; i < parts.length; i++) {
+            int separator = parts[i].indexOf(THRESHOLD_SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException(
+                        "No threshold in tolerance: " + parts[i]);
+            }
+            thresholds[i - 1] = Double.valueOf(parts[i].substring(0, separator));
+            if (i > 1 && thresholds[i - 1] <= thresholds[i - 2]) {
+                throw new IllegalArgumentException(
+                        "Thresholds must increase: " + description);
+            }
+            tolerances.add(parseSingle(parts[i].substring(separator + 1)));
+        }
+        return new Piecewise(thresholds,
+                tolerances.toArray(new Tolerance[tolerances.size()]));
+    }
+
+    /**
+     * Parses a semicolon-separated list of tolerance descriptions.
+     * @param descriptions the string to parse.
+     * @return an array with the described tolerances in the same order.
+     * @throws IllegalArgumentException if a description is wrong.
+     */
+    public static Tolerance[] parseList(String descriptions) {
+        String[] parts = descriptions.split(LIST_SEPARATOR);
+        Tolerance[] tolerances = new Tolerance[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            tolerances[i] = parse(parts[i]);
+        }
+        return tolerances;
+    }
+
+    private static Tolerance parseSingle(String description) {
+        String value = description.trim().toLowerCase();
+        if (value.endsWith(PPM_SUFFIX)) {
+            return ppm(Double.valueOf(value.substring(0,
+                    value.length() - PPM_SUFFIX.length())));
+        }
+        if (value.endsWith(DALTON_SUFFIX)) {
+            return absolute(Double.valueOf(value.substring(0,
+                    value.length() - DALTON_SUFFIX.length())));
+        }
+        return relative(Double.valueOf(value));
+    }
+
+    private static class Relative extends Tolerance {
+        private final double accuracy;
+
+        private Relative(double accuracy) {
+            this.accuracy = accuracy;
+        }
+
+        @Override
+        public double getError(double mass) {
+            return mass * accuracy;
+        }
+
+        @Override
+        public String toString() {
+            return accuracy * 1e6 + PPM_SUFFIX;
+        }
+    }
+
+    private static class Absolute extends Tolerance {
+        private final double error;
+
+        private Absolute(double error) {
+            this.error = error;
+        }
+
+        @Override
+        public double getError(double mass) {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return error + "Da";
+        }
+    }
+
+    /**
+     * A tolerance made of several ones each applying to its own range
+     * of masses.
+     */
+    private static class Piecewise extends Tolerance {
+        private final double[] thresholds;
+        private final Tolerance[] tolerances;
+
+        private Piecewise(double[] thresholds, Tolerance[] tolerances) {
+            this.thresholds = thresholds;
+            this.tolerances = tolerances;
+        }
+
+        @Override
+        public double getError(double mass) {
+            int part = 0;
+            while (part < thresholds.length && mass >= thresholds[part]) {
+                part++;
+            }
+            return tolerances[part].getError(mass);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(tolerances[0].toString());
+            for (int i = 0; i < thresholds.length; i++) {
+                builder.append(PART_SEPARATOR).append(thresholds[i])
+                        .append(THRESHOLD_SEPARATOR).append(tolerances[i + 1]);
+            }
+            return builder.toString();
+        }
+    }
+}
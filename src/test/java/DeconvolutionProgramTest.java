@@ -0,0 +1,91 @@
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DeconvolutionProgramTest {
+    private static ExperimentalScan readOne(DeconvolutionProgram program,
+                                            String... lines)
+            throws IOException {
+        Iterator<ExperimentalScan> scans = program.getOutputIterator(
+                new BufferedReader(new StringReader(
+                        String.join("\n", lines) + "\n")));
+        ExperimentalScan scan = scans.next();
+        assertFalse(scans.hasNext());
+        return scan;
+    }
+
+    @Test
+    public void readsHardklorCorrelationScore() throws IOException {
+        ExperimentalScan scan = readOne(DeconvolutionProgram.Hardklor,
+                "S\t1862\t24.5631\tsample.ms1\t0.0\t0\t0.0",
+                "P\t1184.5769\t2\t6612.9\t593.2957\t592.5-596.6\t0\t_\t0.9522",
+                "P\t2376.1345\t3\t1840.2\t793.0521\t792.0-796.2\t0\t_\t0.8713");
+
+        assertEquals(1862, scan.getId());
+        assertArrayEquals(new double[] {1184.5769, 2376.1345},
+                scan.getPeaks(), 0.0);
+        assertArrayEquals(new double[] {6612.9, 1840.2},
+                scan.getIntensities(), 0.0);
+        assertArrayEquals(new int[] {2, 3}, scan.getPeakCharges());
+        assertArrayEquals(new double[] {0.9522, 0.8713},
+                scan.getFitScores(), 0.0);
+    }
+
+    @Test
+    public void readsSignedMgfCharges() throws IOException {
+        ExperimentalScan scan = readOne(DeconvolutionProgram.ThermoXtract,
+                "BEGIN IONS",
+                "TITLE=sample.17.17.2 File:\"sample.raw\", NativeID:" +
+                        "\"controllerType=0 controllerNumber=1 scan=17\"",
+                "PEPMASS=1243.6210 1503.2",
+                "1184.5769 6612.9 2+",
+                "1207.4410 980.3 1",
+                "1311.2007 411.0 ?",
+                "END IONS");
+
+        assertEquals(17, scan.getId());
+        assertArrayEquals(new int[] {2, 1, 0}, scan.getPeakCharges());
+    }
+
+    @Test
+    public void readsMgfPeaksSeparatedByRepeatedSpaces() throws IOException {
+        ExperimentalScan scan = readOne(DeconvolutionProgram.ThermoXtract,
+                "BEGIN IONS",
+                "TITLE=sample.21.21.2 File:\"sample.raw\",  NativeID:" +
+                        "\"controllerType=0 controllerNumber=1 scan=21\"",
+                "PEPMASS=1243.6210 1503.2",
+                "1184.5769  6612.9 2+",
+                "1207.4410 980.3\t\t1",
+                "END IONS");
+
+        assertEquals(21, scan.getId());
+        assertArrayEquals(new double[] {1184.5769, 1207.4410},
+                scan.getPeaks(), 0.0);
+        assertArrayEquals(new double[] {6612.9, 980.3},
+                scan.getIntensities(), 0.0);
+        assertArrayEquals(new int[] {2, 1}, scan.getPeakCharges());
+    }
+
+    @Test
+    public void readsMsalignCharges() throws IOException {
+        ExperimentalScan scan = readOne(DeconvolutionProgram.MSDeconv,
+                "BEGIN IONS",
+                "ID=3",
+                "PRECURSOR_CHARGE=11",
+                "PRECURSOR_MASS=3082.30948",
+                "2481.47102\t89977.86\t1",
+                "1969.79330\t15780.83\t6+",
+                "END IONS");
+
+        assertEquals(3, scan.getId());
+        assertEquals(11, scan.getCharge());
+        assertArrayEquals(new int[] {1, 6}, scan.getPeakCharges());
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JobContextTest {
+    private Path table;
+    private Path out;
+    private OutputSink sink;
+
+    @Before
+    public void setUp() throws IOException {
+        String[] row = new String[19];
+        Arrays.fill(row, "0");
+        row[1] = "1";
+        row[2] = "7";
+        row[5] = "2";
+        row[6] = "1000.5";
+        row[13] = "K.PEPTIDE.A";
+        row[18] = "1e-10";
+        table = Files.createTempFile("table", ".tsv");
+        Files.write(table, Arrays.asList("header", String.join("\t", row)),
+                StandardCharsets.UTF_8);
+        out = Files.createTempFile("out", ".txt");
+        sink = ChannelSink.open(out);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sink.close();
+        Files.delete(out);
+        Files.delete(table);
+    }
+
+    @Test
+    public void recordsFailurePerJob() {
+        JobContext shared = JobContext.sharing(sink,
+                JobContext.Settings.defaults());
+        JobContext job = shared.withOut(sink);
+        JobContext otherJob = shared.withOut(sink);
+        JobContext sameJob = job.withSettings(job.getSettings()
+                .withFormat(OutputFormat.tsv));
+
+        sameJob.fail("Error reading table.");
+        sameJob.fail("File read error.");
+
+        assertTrue(job.hasFailed());
+        assertEquals("Error reading table.", job.getFailure());
+        assertFalse(otherJob.hasFailed());
+        assertNull(otherJob.getFailure());
+    }
+
+    @Test
+    public void sharesInputsUntilReleased() throws IOException {
+        JobContext shared = JobContext.sharing(sink,
+                JobContext.Settings.defaults());
+        Map<Integer, TheoreticScan> scans =
+                shared.withOut(sink).mapFromTable(table);
+
+        assertEquals(1, scans.size());
+        assertSame(scans, shared.withOut(sink).mapFromTable(table));
+
+        shared.release(table);
+        assertNotSame(scans, shared.mapFromTable(table));
+    }
+
+    @Test
+    public void parsesTableWithResidueTableOfSettings() throws IOException {
+        JobContext shared = JobContext.sharing(sink,
+                JobContext.Settings.defaults());
+        Path config = Files.createTempFile("residues", ".cfg");
+        Files.write(config, Arrays.asList("water=18.010565"),
+                StandardCharsets.UTF_8);
+        ResidueMassTable residues = ResidueMassTable.load(config);
+        Files.delete(config);
+        JobContext job = shared.withSettings(
+                shared.getSettings().withResidueTable(residues));
+
+        TheoreticScan scan = job.mapFromTable(table).get(7);
+        assertSame(residues, scan.getResidueTable());
+        assertNotSame(job.mapFromTable(table), shared.mapFromTable(table));
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PeakStoreTest {
+    private static ExperimentalScan scan(int id, double... masses) {
+        return new ExperimentalScan(id, id, 1, 1000.0, masses);
+    }
+
+    @Test
+    public void readsWrittenPeaksBack() throws IOException {
+        List<ExperimentalScan> scans = Arrays.asList(
+                scan(9, 500.25, 120.5, 300.125),
+                scan(2),
+                scan(4, 1000.0),
+                scan(9, 700.5, 600.75));
+        Path path = Files.createTempFile("peaks", ".store");
+        try {
+            try (PeakStore written = PeakStore.write(scans.iterator(), path)) {
+                assertEquals(3, written.size());
+            }
+            try (PeakStore store = PeakStore.open(path)) {
+                assertEquals(3, store.size());
+                assertArrayEquals(new double[]{600.75, 700.5},
+                        store.getPeaks(9).toArray(), 0.0);
+                assertEquals(0, store.getPeaks(2).size());
+                assertArrayEquals(new double[]{1000.0},
+                        store.getPeaks(4).toArray(), 0.0);
+                assertNull(store.getPeaks(3));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Path path = Files.createTempFile("peaks", ".store");
+        try {
+            Files.write(path, new byte[]{1, 2, 3});
+            PeakStore.open(path).close();
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PipelineTest {
+    private static List<Integer> numbers(int count) {
+        return IntStream.range(0, count).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void keepsOrderAndDropsNullResults() throws IOException {
+        Pipeline.setThreads("testOdd", 4);
+        Pipeline.setThreads("testSquare", 3);
+        List<Integer> results = new ArrayList<>();
+        Pipeline.from(numbers(1000).iterator())
+                .withCapacity(5)
+                .map("testOdd", i -> i % 2 == 1 ? i : null)
+                .map("testSquare", i -> i * i)
+                .forEach(results::add);
+
+        assertEquals(numbers(1000).stream().filter(i -> i % 2 == 1)
+                .map(i -> i * i).collect(Collectors.toList()), results);
+    }
+
+    @Test
+    public void throwsFirstError() {
+        try {
+            Pipeline.from(numbers(1000).iterator())
+                    .map("testFail", i -> {
+                        if (i == 500) {
+                            throw new IOException("broken " + i);
+                        }
+                        return i;
+                    })
+                    .forEach(i -> {});
+            fail();
+        } catch (IOException e) {
+            assertEquals("broken 500", e.getMessage());
+        }
+    }
+
+    @Test
+    public void sharesStageThreadsBetweenRuns() throws Exception {
+        Pipeline.setThreads("testShared", 1);
+        ExecutorService runs = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Long>> sums = new ArrayList<>();
+            for (int run = 0; run < 4; run++) {
+                sums.add(runs.submit(() -> Pipeline.from(
+                        numbers(2000).iterator())
+                        .withCapacity(2)
+                        .map("testShared", i -> (long) i)
+                        .collect("testShared", () -> new long[1],
+                                (sum, i) -> sum[0] += i,
+                                (sum, other) -> sum[0] += other[0])[0]));
+            }
+            for (Future<Long> sum: sums) {
+                assertEquals(1999L * 2000 / 2, (long) sum.get());
+            }
+        } finally {
+            runs.shutdown();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResidueMassTableTest {
+    private static ResidueMassTable load(String... lines) throws IOException {
+        Path path = Files.createTempFile("residues", ".cfg");
+        try {
+            Files.write(path, Arrays.asList(lines), StandardCharsets.UTF_8);
+            return ResidueMassTable.load(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void fixedModificationKeepsWaterMass() throws IOException {
+        ResidueMassTable table = load("fixed=carbamidomethyl");
+        ResidueMassTable standard = ResidueMassTable.standard();
+
+        assertEquals(standard.getWaterMass(), table.getWaterMass(), 0.0);
+        assertEquals(standard.getMass('C') +
+                        ResidueMassTable.CARBAMIDOMETHYL_MASS,
+                table.getMass('C'), 1e-9);
+        assertEquals(standard.getMass('K'), table.getMass('K'), 0.0);
+    }
+
+    @Test
+    public void waterMassCanBeSet() throws IOException {
+        ResidueMassTable table = load("water=18.010565");
+
+        assertEquals(ResidueMassTable.MONOISOTOPIC_WATER_MASS,
+                table.getWaterMass(), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownResidueHasNoMass() {
+        ResidueMassTable.standard().getMass('X');
+    }
+
+    @Test
+    public void unknownResidueMassCanBeSet() throws IOException {
+        assertEquals(110.0, load("X=110").getMass('x'), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ladderRejectsUnknownResidue() {
+        new TheoreticScan(1, 1, 1, 1000.0, 1e-10, "PEPXTIDE").getIons();
+    }
+}
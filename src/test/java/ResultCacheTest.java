@@ -0,0 +1,72 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResultCacheTest {
+    private Path directory;
+
+    private static ResultCache.Key key(int i) {
+        return new ResultCache.Fingerprint().add("scan").add(i).getKey();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files =
+                     Files.newDirectoryStream(directory)) {
+            for (Path file: files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void readsResultsBackAfterReopening() throws IOException {
+        try (ResultCache cache = new ResultCache(directory, 1 << 20)) {
+            cache.put(key(1), new byte[]{1, 2, 3});
+            cache.put(key(2), new byte[0]);
+            assertArrayEquals(new byte[]{1, 2, 3}, cache.get(key(1)));
+        }
+        try (ResultCache cache = new ResultCache(directory, 1 << 20)) {
+            assertArrayEquals(new byte[]{1, 2, 3}, cache.get(key(1)));
+            assertArrayEquals(new byte[0], cache.get(key(2)));
+            assertNull(cache.get(key(3)));
+        }
+    }
+
+    @Test
+    public void keepsUsedResultsWhenEvicting() throws IOException {
+        byte[] value = new byte[100];
+        try (ResultCache cache = new ResultCache(directory, 4000)) {
+            cache.put(key(0), value);
+            for (int i = 1; i < 100; i++) {
+                cache.get(key(0));
+                cache.put(key(i), value);
+            }
+            assertArrayEquals(value, cache.get(key(0)));
+            assertArrayEquals(value, cache.get(key(99)));
+            assertNull(cache.get(key(1)));
+        }
+    }
+
+    @Test
+    public void tellsSplitStringsApart() {
+        assertNotEquals(new ResultCache.Fingerprint().add("ab").add("c")
+                        .getKey(),
+                new ResultCache.Fingerprint().add("a").add("bc").getKey());
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class ScanJoinSpliteratorTest {
+    private static TheoreticScan theoretic(int id) {
+        return new TheoreticScan(id, id, 1, 1000.0, 1e-10, "PEPTIDE");
+    }
+
+    private static ExperimentalScan experimental(int id) {
+        return new ExperimentalScan(id, id, 1, 1000.0, new double[0]);
+    }
+
+    private static List<ScanJoinSpliterator.Pair> join(
+            List<TheoreticScan> theoreticScans,
+            List<ExperimentalScan> experimentalScans) {
+        return StreamSupport.stream(new ScanJoinSpliterator(
+                theoreticScans.iterator(), experimentalScans.iterator()),
+                false).collect(Collectors.toList());
+    }
+
+    @Test
+    public void joinsUnsortedIds() {
+        List<TheoreticScan> theoreticScans = Arrays.asList(
+                theoretic(7), theoretic(2), theoretic(9), theoretic(4));
+        List<ExperimentalScan> experimentalScans = Arrays.asList(
+                experimental(4), experimental(9), experimental(1),
+                experimental(7), experimental(3));
+        List<ScanJoinSpliterator.Pair> pairs =
+                join(theoreticScans, experimentalScans);
+
+        assertEquals(Arrays.asList(7, 9, 4), pairs.stream()
+                .map(pair -> pair.getTheoreticScan().getId())
+                .collect(Collectors.toList()));
+        for (ScanJoinSpliterator.Pair pair: pairs) {
+            assertEquals(pair.getTheoreticScan().getId(),
+                    pair.getExperimentalScan().getId());
+        }
+    }
+
+    @Test
+    public void takesLastExperimentalScanOfRepeatedId() {
+        ExperimentalScan first = experimental(5);
+        ExperimentalScan last = experimental(5);
+        List<ScanJoinSpliterator.Pair> pairs = join(
+                Arrays.asList(theoretic(5), theoretic(5)),
+                Arrays.asList(first, experimental(3), last));
+
+        assertEquals(2, pairs.size());
+        assertSame(last, pairs.get(0).getExperimentalScan());
+        assertSame(last, pairs.get(1).getExperimentalScan());
+    }
+
+    @Test
+    public void joinsInParallel() {
+        List<TheoreticScan> theoreticScans = Arrays.asList(
+                theoretic(3), theoretic(1), theoretic(2));
+        List<ExperimentalScan> experimentalScans = Arrays.asList(
+                experimental(2), experimental(3), experimental(1));
+        List<Integer> ids = StreamSupport.stream(new ScanJoinSpliterator(
+                theoreticScans.iterator(), experimentalScans.iterator()),
+                true)
+                .map(pair -> pair.getExperimentalScan().getId())
+                .collect(Collectors.toList());
+
+        assertEquals(Arrays.asList(3, 1, 2), ids);
+    }
+
+    @Test
+    public void readsSortedExperimentalScansLazily() {
+        List<ExperimentalScan> experimentalScans = Arrays.asList(
+                experimental(1), experimental(2), experimental(3),
+                experimental(4), experimental(5));
+        Iterator<ExperimentalScan> source = experimentalScans.iterator();
+        ScanJoinSpliterator join = new ScanJoinSpliterator(
+                Arrays.asList(theoretic(2), theoretic(5)).iterator(),
+                source);
+        int[] ids = new int[1];
+
+        join.tryAdvance(pair -> ids[0] = pair.getExperimentalScan().getId());
+        assertEquals(2, ids[0]);
+        assertSame(experimentalScans.get(3), source.next());
+        join.tryAdvance(pair -> ids[0] = pair.getExperimentalScan().getId());
+        assertEquals(5, ids[0]);
+        assertFalse(join.tryAdvance(pair -> { }));
+    }
+
+    @Test
+    public void indexesRestAfterOutOfOrderId() {
+        List<ScanJoinSpliterator.Pair> pairs = join(
+                Arrays.asList(theoretic(1), theoretic(3), theoretic(5),
+                        theoretic(6)),
+                Arrays.asList(experimental(1), experimental(3),
+                        experimental(6), experimental(5)));
+
+        assertEquals(Arrays.asList(1, 3, 5, 6), pairs.stream()
+                .map(pair -> pair.getExperimentalScan().getId())
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void pairsPassedScansAfterOutOfOrderId() {
+        List<ScanJoinSpliterator.Pair> pairs = join(
+                Arrays.asList(theoretic(1), theoretic(2), theoretic(3)),
+                Arrays.asList(experimental(2), experimental(3),
+                        experimental(1)));
+
+        assertEquals(Arrays.asList(2, 1, 3), pairs.stream()
+                .map(pair -> pair.getExperimentalScan().getId())
+                .collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,68 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A match kernel built on the Vector API. The theoretic masses are
+ * taken in blocks of as many masses as a vector has lanes, and the
+ * lower and upper bounds of their windows make two vectors. Every peak
+ * lying between the lowest and the highest bound of a block is then
+ * compared with the whole block at once, so the inner loop has no
+ * branches depending on the data. The masses left over after the last
+ * full block are matched by the merge-join.
+ */
+public class VectorMatchKernel extends MatchKernel {
+    private static final VectorSpecies<Double> SPECIES =
+            DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public int countMatched(double[] theoretic, int length,
+                            double[] peaks, Tolerance tolerance) {
+        double[] lowers = new double[LANES];
+        double[] uppers = new double[LANES];
+        int matched = 0;
+        int lo = 0;
+        int block = 0;
+        for (; block + LANES <= length; block += LANES) {
+            double minLower = Double.POSITIVE_INFINITY;
+            double maxUpper = Double.NEGATIVE_INFINITY;
+            for (int lane = 0; lane < LANES; lane++) {
+                double mass = theoretic[block + lane];
+                double error = tolerance.getError(mass);
+                lowers[lane] = mass - error;
+                uppers[lane] = mass + error;
+                minLower = Math.min(minLower, lowers[lane]);
+                maxUpper = Math.max(maxUpper, uppers[lane]);
+            }
+            DoubleVector lower = DoubleVector.fromArray(SPECIES, lowers, 0);
+            DoubleVector upper = DoubleVector.fromArray(SPECIES, uppers, 0);
+            VectorMask<Double> hits = SPECIES.maskAll(false);
+            lo = MassMatcher.findLower(peaks, lo, minLower);
+            for (int j = lo; j < peaks.length && peaks[j] < maxUpper; j++) {
+                DoubleVector peak = DoubleVector.broadcast(SPECIES, peaks[j]);
+                hits = hits.or(lower.lt(peak).and(
+                        upper.compare(VectorOperators.GT, peak)));
+                if (hits.allTrue()) {
+                    break;
+                }
+            }
+            matched += hits.trueCount();
+        }
+        for (int i = block; i < length; i++) {
+            double mass = theoretic[i];
+            double error = tolerance.getError(mass);
+            lo = MassMatcher.findLower(peaks, lo, mass - error);
+            if (lo < peaks.length && peaks[lo] < mass + error) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public String toString() {
+        return "vector" + LANES;
+    }
+}